@@ -0,0 +1,287 @@
+package qmpzaltb.circleizer;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of the hot paths of circleizing on generated images, so a change to one of them can be told to help or hurt.
+ * Every phase is measured on its own, on one thread, across image sizes, palette sizes, bubble minimum diameters and histogram resolutions:
+ * <ul>
+ * <li>sample: sampling the image and classifying every sample to its circle color</li>
+ * <li>place: placing the bubbles of every size pass the way a single-threaded Circleizer places them</li>
+ * <li>render: drawing the placed bubbles</li>
+ * <li>histogram: counting the colors of the image into a cubic table</li>
+ * <li>regions: finding the palette in a counted table, for every palette extractor</li>
+ * </ul>
+ * Every benchmark returns its result, so JMH consumes it and the JIT compiler can't drop the work.
+ * The images are generated from a fixed seed, so runs can be compared with each other.
+ * <p>
+ * Build the library, then the benchmarks, and run them with the GC profiler for the allocation rate and bytes allocated per operation:
+ * <pre>
+ * mvn install
+ * mvn -f benchmarks/pom.xml package
+ * java -jar benchmarks/target/benchmarks.jar -prof gc
+ * </pre>
+ * Any JMH option works, such as a regular expression to pick benchmarks, or -p imageSize=1920x1080 to pick parameters.
+ *
+ * @author qmpzaltb
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CircleizerBenchmark {
+	
+	private static final long SEED = 42;
+	
+	/**
+	 * The image the palette extractors are measured on; their time hardly depends on its size.
+	 */
+	private static final String REGIONS_IMAGE_SIZE = "1920x1080";
+	
+	/**
+	 * An image and the circle colors of a palette size, circleized with a bubble minimum diameter.
+	 */
+	@State(Scope.Thread)
+	public static class Circleizing {
+		
+		@Param({"640x480", "1920x1080", "4000x3000"})
+		public String imageSize;
+		
+		@Param({"4", "16", "64"})
+		public int colors;
+		
+		@Param({"2", "4", "8"})
+		public int diameter;
+		
+		ImagePixels image;
+		CircleizerSettings settings;
+		SampleGrid grid;
+		
+		@Setup(Level.Trial)
+		public void setUp() {
+			image = image(imageSize);
+			settings = CircleizerSettings.DEFAULT.withCircleColors(palette(image, colors)).withBubbleMinDiameter(diameter);
+			grid = new SampleGrid(image.getWidth() / diameter, image.getHeight() / diameter);
+		}
+	
+	}
+	
+	/**
+	 * A freshly sampled grid before every placement, since placing fills the grid. The sampling is not part of the measured time.
+	 */
+	@State(Scope.Thread)
+	public static class Placing extends Circleizing {
+		
+		int largestSize;
+		
+		@Override
+		@Setup(Level.Trial)
+		public void setUp() {
+			super.setUp();
+			largestSize = Circleizer.largestBubbleSize(image.getWidth(), image.getHeight(), diameter, settings.bubbleSizeExponentiation);
+		}
+		
+		@Setup(Level.Invocation)
+		public void sample() {
+			grid.reset(grid.width, grid.height);
+			Circleizer.sample(image, grid, settings, true);
+			grid.updateColorEdges();
+		}
+	
+	}
+	
+	/**
+	 * The bubbles placed on an image, to draw.
+	 */
+	@State(Scope.Thread)
+	public static class Rendering extends Circleizing {
+		
+		final BubbleRasterizer rasterizer = new BubbleRasterizer();
+		BubbleBuffer bubbles;
+		
+		@Override
+		@Setup(Level.Trial)
+		public void setUp() {
+			super.setUp();
+			bubbles = new Circleizer().placeBubbles(image, settings, null);
+		}
+	
+	}
+	
+	/**
+	 * An image and a histogram of a resolution to count it into.
+	 */
+	@State(Scope.Thread)
+	public static class Counting {
+		
+		@Param({"640x480", "1920x1080", "4000x3000"})
+		public String imageSize;
+		
+		@Param({"32", "64", "128"})
+		public int resolution;
+		
+		ImagePixels image;
+		ColorHistogram histogram;
+		
+		@Setup(Level.Trial)
+		public void setUp() {
+			image = image(imageSize);
+			histogram = new ColorHistogram(resolution, resolution, resolution);
+		}
+	
+	}
+	
+	/**
+	 * A counted histogram and a palette extractor to find colors in it.
+	 */
+	@State(Scope.Thread)
+	public static class Extracting {
+		
+		@Param({"ColorFinder", "MedianCutExtractor", "WuExtractor", "KMeansExtractor"})
+		public String extractor;
+		
+		@Param({"32", "64", "128"})
+		public int resolution;
+		
+		@Param({"4", "16", "64"})
+		public int colors;
+		
+		ColorFinder finder;
+		ColorHistogram histogram;
+		
+		@Setup(Level.Trial)
+		public void setUp() {
+			if (extractor.equals("ColorFinder")) {
+				finder = new ColorFinder();
+			} else if (extractor.equals("MedianCutExtractor")) {
+				finder = new MedianCutExtractor();
+			} else if (extractor.equals("WuExtractor")) {
+				finder = new WuExtractor();
+			} else if (extractor.equals("KMeansExtractor")) {
+				finder = new KMeansExtractor();
+			} else {
+				throw new IllegalArgumentException("Unknown extractor " + extractor);
+			}
+			histogram = new ColorHistogram(resolution, resolution, resolution);
+			histogram.count(image(REGIONS_IMAGE_SIZE), null, 1, PaletteSettings.DEFAULT.pixelBudget, null);
+		}
+	
+	}
+	
+	@Benchmark
+	public SampleGrid sample(Circleizing state) {
+		Circleizer.sample(state.image, state.grid, state.settings, true);
+		state.grid.updateColorEdges();
+		return state.grid;
+	}
+	
+	/**
+	 * Places the bubbles of every size pass on the sampled grid, the way a single-threaded Circleizer places them,
+	 * building the uniformity index before the largest size.
+	 * @return the amount of placed bubbles
+	 */
+	@Benchmark
+	public long place(Placing state) {
+		SampleGrid grid = state.grid;
+		int exponentiation = state.settings.bubbleSizeExponentiation;
+		long placed = 0;
+		grid.buildIndex();
+		for (int size = state.largestSize; size >= 1; size /= exponentiation) {
+			DiskMask mask = DiskMask.of(size);
+			if (grid.index != null && grid.index.skipLevel(mask) == 0) {
+				grid.dropIndex();
+			}
+			UniformityIndex index = grid.index;
+			int skipLevel = index == null ? 0 : index.skipLevel(mask);
+			for (int y = 0; y < grid.height; y ++) {
+				for (int x = 0; x < grid.width; x ++) {
+					int skipped = skipLevel == 0 ? 0 : index.skipRight(x, y, mask, skipLevel);
+					if (skipped > 0) {
+						x += skipped - 1;
+						continue;
+					}
+					if (Circleizer.tryBubble(grid, x, y, mask)) {
+						placed ++;
+					}
+				}
+			}
+		}
+		return placed;
+	}
+	
+	@Benchmark
+	public BufferedImage render(Rendering state) {
+		return state.rasterizer.render(state.bubbles, 1);
+	}
+	
+	@Benchmark
+	public ColorHistogram histogram(Counting state) {
+		state.histogram.reset();
+		state.histogram.count(state.image, null, 1, PaletteSettings.DEFAULT.pixelBudget, null);
+		return state.histogram;
+	}
+	
+	@Benchmark
+	public int[] regions(Extracting state) {
+		return state.finder.findColors(state.histogram, state.colors);
+	}
+	
+	/**
+	 * @return the generated image of a size given as WIDTHxHEIGHT
+	 */
+	static ImagePixels image(String size) {
+		int x = size.indexOf('x');
+		return ImagePixels.of(generateImage(Integer.parseInt(size.substring(0, x)), Integer.parseInt(size.substring(x + 1)), SEED));
+	}
+	
+	/**
+	 * @return the palette of the given amount of colors of an image, found with the default ColorFinder
+	 */
+	static int[] palette(ImagePixels image, int colors) {
+		return new ColorFinder().findColors(image, PaletteSettings.DEFAULT.withColorAmount(colors));
+	}
+	
+	/**
+	 * Generates an image with smooth gradients, which give many colors, and overlapping ellipses, which give large areas of one color.
+	 * The same size and seed always give the same image.
+	 */
+	public static BufferedImage generateImage(int width, int height, long seed) {
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		int[] row = new int[width];
+		for (int y = 0; y < height; y ++) {
+			for (int x = 0; x < width; x ++) {
+				row[x] = ((x * 255 / width) << 16) | ((y * 255 / height) << 8) | ((x + y) & 0xFF);
+			}
+			image.setRGB(0, y, width, 1, row, 0, width);
+		}
+		
+		Random random = new Random(seed);
+		Graphics2D g = image.createGraphics();
+		for (int i = 0; i < 60; i ++) {
+			g.setColor(new Color(random.nextInt(0x1000000)));
+			g.fillOval(random.nextInt(width), random.nextInt(height), random.nextInt(width / 3 + 1) + 5, random.nextInt(height / 3 + 1) + 5);
+		}
+		g.dispose();
+		return image;
+	}
+	
+}
@@ -0,0 +1,527 @@
+package qmpzaltb.circleizer;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Circleizes many image files without a display.
+ * Every file goes through four stages, each with its own threads: decoding, finding colors, circleizing and encoding.
+ * Different files can be in different stages at once. A memory budget limits how many files are in flight;
+ * a file only starts decoding once the pixels it will take up fit within the budget.
+ * Circleized images are written next to their originals, named like the ones the GUI writes.
+ * <p>
+ * Files can also be circleized as the frames of a sequence, in the order of their names, with a CircleizeSequence,
+ * so that the parts frames have in common are circleized alike and only once.
+ * 
+ * @author qmpzaltb
+ *
+ */
+public class BatchCircleizer {
+	
+	public static final long DEFAULT_MEMORY_BUDGET = 1024L * 1024 * 1024;
+	
+	/**
+	 * The bytes per pixel a file in flight is expected to take up besides its decoded pixels: the circleized image and a bit for the sample grid.
+	 */
+	private static final int BYTES_PER_PIXEL = 5;
+	
+	/**
+	 * The bytes per decoded pixel. Only every n-th pixel of every n-th row is decoded, with n the subsampling of ImageDecoder.
+	 */
+	private static final int BYTES_PER_DECODED_PIXEL = 4;
+	
+	private static final int DECODE = 0;
+	private static final int PALETTE = 1;
+	private static final int CIRCLEIZE = 2;
+	private static final int ENCODE = 3;
+	
+	int colorAmount;
+	int resolution;
+	int bubbleMinDiameter;
+	int bubbleSizeExponentiation;
+	int placementMode;
+	int stageThreads;
+	long memoryBudget;
+	Instrumentation instrumentation = Instrumentation.NONE;
+	
+	public BatchCircleizer() {
+		colorAmount = 16;
+		resolution = 128;
+		bubbleMinDiameter = Circleizer.DEFAULT_BUBBLE_MIN_DIAMETER;
+		bubbleSizeExponentiation = Circleizer.DEFAULT_BUBBLE_SIZE_EXPONENTIATION;
+		stageThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+		memoryBudget = DEFAULT_MEMORY_BUDGET;
+	}
+	
+	public void setColorAmount(int colorAmount) {
+		this.colorAmount = colorAmount;
+	}
+	
+	public void setResolution(int resolution) {
+		this.resolution = resolution;
+	}
+	
+	public void setBubbleMinDiameter(int bubbleMinDiameter) {
+		this.bubbleMinDiameter = bubbleMinDiameter;
+	}
+	
+	public void setBubbleSizeExponentiation(int bubbleSizeExponentiation) {
+		this.bubbleSizeExponentiation = bubbleSizeExponentiation;
+	}
+	
+	/**
+	 * @param placementMode Circleizer.PLACEMENT_EXPONENTIAL or Circleizer.PLACEMENT_DISTANCE
+	 */
+	public void setPlacementMode(int placementMode) {
+		this.placementMode = placementMode;
+	}
+	
+	/**
+	 * Sets the amount of threads of every stage. Finding colors and circleizing take the most time, so they get twice as many.
+	 */
+	public void setStageThreads(int stageThreads) {
+		this.stageThreads = Math.max(1, stageThreads);
+	}
+	
+	/**
+	 * Sets about how many bytes the files in flight may take up together.
+	 */
+	public void setMemoryBudget(long memoryBudget) {
+		this.memoryBudget = Math.max(1024 * 1024, memoryBudget);
+	}
+	
+	/**
+	 * Sets what decoding, finding colors, circleizing and encoding every file report to.
+	 */
+	public void setInstrumentation(Instrumentation instrumentation) {
+		if (instrumentation == null) {
+			throw new IllegalArgumentException("instrumentation must not be null, use Instrumentation.NONE");
+		}
+		this.instrumentation = instrumentation;
+	}
+	
+	/**
+	 * @return the settings every file is circleized with
+	 * @throws IllegalArgumentException if a setting is out of range
+	 */
+	CircleizerSettings settings() {
+		return CircleizerSettings.DEFAULT.withBubbleMinDiameter(bubbleMinDiameter).withBubbleSizeExponentiation(bubbleSizeExponentiation)
+				.withPlacementMode(placementMode);
+	}
+	
+	/**
+	 * @return the settings the colors of every file are found with
+	 * @throws IllegalArgumentException if a setting is out of range
+	 */
+	PaletteSettings paletteSettings() {
+		return PaletteSettings.DEFAULT.withResolution(resolution).withColorAmount(colorAmount);
+	}
+	
+	/**
+	 * Parses the command line of a batch run and runs it.
+	 * @return the amount of files that failed, or -1 if the command line is wrong
+	 */
+	public static int run(String[] args, PrintStream out, PrintStream err) {
+		BatchCircleizer batch = new BatchCircleizer();
+		ArrayList<String> inputs = new ArrayList<String>();
+		File metrics = null;
+		boolean sequence = false;
+		try {
+			for (int i = 0; i < args.length; i ++) {
+				String arg = args[i];
+				if (arg.equals("-colors")) {
+					batch.setColorAmount(Integer.parseInt(args[++ i]));
+				} else if (arg.equals("-resolution")) {
+					batch.setResolution(Integer.parseInt(args[++ i]));
+				} else if (arg.equals("-diameter")) {
+					batch.setBubbleMinDiameter(Integer.parseInt(args[++ i]));
+				} else if (arg.equals("-exponent")) {
+					batch.setBubbleSizeExponentiation(Integer.parseInt(args[++ i]));
+				} else if (arg.equals("-placement")) {
+					batch.setPlacementMode(Circleizer.placementMode(args[++ i]));
+				} else if (arg.equals("-threads")) {
+					batch.setStageThreads(Integer.parseInt(args[++ i]));
+				} else if (arg.equals("-memory")) {
+					batch.setMemoryBudget(Long.parseLong(args[++ i]) * 1024 * 1024);
+				} else if (arg.equals("-metrics")) {
+					metrics = new File(args[++ i]);
+				} else if (arg.equals("-sequence")) {
+					sequence = true;
+				} else if (arg.startsWith("-")) {
+					throw new IllegalArgumentException("Unknown option " + arg);
+				} else {
+					inputs.add(arg);
+				}
+			}
+			if (inputs.isEmpty()) {
+				throw new IllegalArgumentException("No inputs");
+			}
+			// out of range settings are reported with the usage, not thrown from the run
+			batch.settings();
+			batch.paletteSettings();
+			if (sequence && batch.placementMode != Circleizer.PLACEMENT_EXPONENTIAL) {
+				throw new IllegalArgumentException("-sequence only places bubbles exponentially, it can't be used with -placement distance");
+			}
+		} catch (RuntimeException e) {
+			err.println(e.getMessage() == null ? e.toString() : e.getMessage());
+			err.println("Usage: CircleizerMain -serve [port]");
+			err.println("   or: CircleizerMain [-colors n] [-resolution n] [-diameter n] [-exponent n] [-placement exponential|distance] [-threads n] [-memory mb] [-metrics file] [-sequence] <file|directory|glob>...");
+			return -1;
+		}
+		
+		List<File> files = new ArrayList<File>();
+		for (String input : inputs) {
+			try {
+				files.addAll(findImages(input));
+			} catch (IOException e) {
+				err.println("Failed to list " + input + ": " + e.getMessage());
+			}
+		}
+		HistogramInstrumentation histograms = null;
+		if (metrics != null) {
+			histograms = new HistogramInstrumentation();
+			batch.setInstrumentation(histograms);
+		}
+		int failures = sequence ? batch.circleizeSequence(files, out, err) : batch.circleize(files, out, err);
+		if (histograms != null) {
+			try {
+				Writer writer = new OutputStreamWriter(new FileOutputStream(metrics), StandardCharsets.UTF_8);
+				try {
+					histograms.writeTo(writer);
+				} finally {
+					writer.close();
+				}
+			} catch (IOException e) {
+				err.println("Failed to write metrics to " + metrics.getAbsolutePath() + ": " + e.getMessage());
+			}
+		}
+		return failures;
+	}
+	
+	/**
+	 * Finds the image files an input names: the file itself, the image files directly within a directory,
+	 * or the image files matching a glob such as photos/*.jpg.
+	 */
+	static List<File> findImages(String input) throws IOException {
+		ArrayList<File> found = new ArrayList<File>();
+		File file = new File(input);
+		if (file.isFile()) {
+			found.add(file);
+			return found;
+		}
+		
+		Path directory;
+		PathMatcher matcher = null;
+		if (file.isDirectory()) {
+			directory = file.toPath();
+		} else {
+			// the glob starts at the first name that has a glob character in it
+			String normalized = input.replace(File.separatorChar, '/');
+			int globStart = normalized.length();
+			for (char c : new char[] {'*', '?', '[', '{'}) {
+				int index = normalized.indexOf(c);
+				if (index >= 0) {
+					globStart = Math.min(globStart, index);
+				}
+			}
+			if (globStart == normalized.length()) {
+				throw new IOException("No such file or directory");
+			}
+			int baseEnd = normalized.lastIndexOf('/', globStart);
+			directory = Paths.get(baseEnd < 0 ? "." : baseEnd == 0 ? "/" : normalized.substring(0, baseEnd));
+			matcher = FileSystems.getDefault().getPathMatcher("glob:" + normalized.substring(baseEnd + 1));
+		}
+		
+		Stream<Path> paths = matcher == null ? Files.list(directory) : Files.walk(directory);
+		try {
+			Iterator<Path> iterator = paths.iterator();
+			while (iterator.hasNext()) {
+				Path path = iterator.next();
+				File candidate = path.toFile();
+				if (!candidate.isFile() || !CircleizerFiles.isImageFile(candidate)) {
+					continue;
+				}
+				if (matcher == null || matcher.matches(directory.relativize(path))) {
+					found.add(candidate);
+				}
+			}
+		} finally {
+			paths.close();
+		}
+		return found;
+	}
+	
+	/**
+	 * Circleizes the given files, printing a line for every file that was circleized or that failed.
+	 * @return the amount of files that failed
+	 */
+	public int circleize(List<File> files, PrintStream out, PrintStream err) {
+		
+		ExecutorService[] stages = {
+				Executors.newFixedThreadPool(stageThreads),
+				Executors.newFixedThreadPool(stageThreads * 2),
+				Executors.newFixedThreadPool(stageThreads * 2),
+				Executors.newFixedThreadPool(stageThreads)
+		};
+		
+		// one ColorFinder and one Circleizer serve all threads; every image passes its own circle colors
+		ColorFinder cf = new ColorFinder();
+		cf.setSettings(paletteSettings());
+		cf.setInstrumentation(instrumentation);
+		Circleizer c = new Circleizer(settings());
+		c.setInstrumentation(instrumentation);
+		
+		int subsampling = ImageDecoder.subsamplingFor(c.getSettings());
+		int budget = (int) Math.min(Integer.MAX_VALUE, memoryBudget / 1024);
+		Semaphore memory = new Semaphore(budget);
+		CountDownLatch done = new CountDownLatch(files.size());
+		AtomicInteger failures = new AtomicInteger();
+		
+		try {
+			for (File f : files) {
+				long pixels = pixelsOf(f);
+				long bytes = pixels * BYTES_PER_PIXEL + pixels / ((long) subsampling * subsampling) * BYTES_PER_DECODED_PIXEL;
+				int permits = (int) Math.max(1, Math.min(budget, bytes / 1024));
+				memory.acquireUninterruptibly(permits);
+				Job job = new Job(f, permits, stages, cf, c, memory, done, failures, out, err);
+				stages[DECODE].execute(job);
+			}
+			done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			for (ExecutorService stage : stages) {
+				stage.shutdownNow();
+			}
+		}
+		
+		return failures.get();
+	}
+	
+	/**
+	 * Circleizes the given files as the frames of a sequence, one after another in the order of their names,
+	 * printing a line for every file that was circleized or that failed. A frame that fails is left out of the sequence.
+	 * Sequences only place bubbles exponentially (see CircleizeSession), so the placement mode must be Circleizer.PLACEMENT_EXPONENTIAL.
+	 * @return the amount of files that failed
+	 */
+	public int circleizeSequence(List<File> files, PrintStream out, PrintStream err) {
+		ArrayList<File> frames = new ArrayList<File>(files);
+		Collections.sort(frames);
+		
+		ColorFinder cf = new ColorFinder();
+		cf.setInstrumentation(instrumentation);
+		CircleizerSettings settings = settings();
+		if (settings.placementMode != Circleizer.PLACEMENT_EXPONENTIAL) {
+			throw new IllegalArgumentException("Sequences only place bubbles exponentially, not with placement mode " + placementMode);
+		}
+		CircleizeSequence sequence = new CircleizeSequence(settings, paletteSettings());
+		sequence.setPaletteExtractor(cf);
+		
+		int failures = 0;
+		for (File file : frames) {
+			BufferedImage circleized;
+			try {
+				PhaseTimer timer = PhaseTimer.start(instrumentation);
+				ImagePixels pixels;
+				try {
+					pixels = ImageDecoder.read(file, settings);
+				} catch (IOException e) {
+					pixels = null;
+				}
+				if (pixels == null) {
+					err.println("Failed to get image from " + file.getAbsolutePath());
+					failures ++;
+					continue;
+				}
+				timer.phase(Instrumentation.PHASE_DECODE);
+				sequence.next(pixels);
+				circleized = sequence.render();
+			} catch (RuntimeException e) {
+				err.println("Failed to circleize " + file.getAbsolutePath() + ": " + e);
+				failures ++;
+				continue;
+			} catch (OutOfMemoryError e) {
+				err.println("Ran out of memory circleizing " + file.getAbsolutePath());
+				failures ++;
+				continue;
+			}
+			
+			File writeTo = CircleizerFiles.reserveCircleizedFile(file);
+			try {
+				PhaseTimer timer = PhaseTimer.start(instrumentation);
+				ImageIO.write(circleized, "png", writeTo);
+				timer.phase(Instrumentation.PHASE_ENCODE);
+			} catch (IOException e) {
+				err.println("Failed to write bubbled image from " + file.getAbsolutePath() + " to " + writeTo.getAbsolutePath());
+				failures ++;
+				continue;
+			} finally {
+				CircleizerFiles.releaseCircleizedFile(writeTo);
+			}
+			out.println("Circleized image from " + file.getAbsolutePath() + " to " + writeTo.getAbsolutePath());
+		}
+		return failures;
+	}
+	
+	/**
+	 * @return the amount of pixels of an image file according to its header, or 0 if it can't be read
+	 */
+	private static long pixelsOf(File f) {
+		try {
+			ImageInputStream in = ImageIO.createImageInputStream(f);
+			if (in == null) {
+				return 0;
+			}
+			try {
+				Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+				if (!readers.hasNext()) {
+					return 0;
+				}
+				ImageReader reader = readers.next();
+				try {
+					reader.setInput(in);
+					return (long) reader.getWidth(0) * reader.getHeight(0);
+				} finally {
+					reader.dispose();
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return 0;
+		}
+	}
+	
+	/**
+	 * A file on its way through the stages. Every stage hands the job on to the executor of the next stage when it's done.
+	 */
+	private final class Job implements Runnable {
+		
+		final File file;
+		final int permits;
+		final ExecutorService[] stages;
+		final ColorFinder colorFinder;
+		final Circleizer circleizer;
+		final Semaphore memory;
+		final CountDownLatch done;
+		final AtomicInteger failures;
+		final PrintStream out;
+		final PrintStream err;
+		
+		int stage = DECODE;
+		ImagePixels pixels;
+		int[] colors;
+		BufferedImage circleized;
+		
+		Job(File file, int permits, ExecutorService[] stages, ColorFinder colorFinder, Circleizer circleizer, Semaphore memory, CountDownLatch done, AtomicInteger failures, PrintStream out, PrintStream err) {
+			this.file = file;
+			this.permits = permits;
+			this.stages = stages;
+			this.colorFinder = colorFinder;
+			this.circleizer = circleizer;
+			this.memory = memory;
+			this.done = done;
+			this.failures = failures;
+			this.out = out;
+			this.err = err;
+		}
+		
+		@Override
+		public void run() {
+			try {
+				switch (stage) {
+				case DECODE: {
+					PhaseTimer timer = PhaseTimer.start(instrumentation);
+					try {
+						pixels = ImageDecoder.read(file, circleizer.getSettings());
+					} catch (IOException e) {
+						pixels = null;
+					}
+					if (pixels == null) {
+						fail("Failed to get image from " + file.getAbsolutePath());
+						return;
+					}
+					timer.phase(Instrumentation.PHASE_DECODE);
+					break;
+				}
+				case PALETTE: {
+					colors = colorFinder.findColors(pixels);
+					break;
+				}
+				case CIRCLEIZE: {
+					circleized = circleizer.circleize(pixels, circleizer.getSettings().withCircleColors(colors));
+					pixels = null;
+					break;
+				}
+				case ENCODE: {
+					File writeTo = CircleizerFiles.reserveCircleizedFile(file);
+					try {
+						PhaseTimer timer = PhaseTimer.start(instrumentation);
+						ImageIO.write(circleized, "png", writeTo);
+						timer.phase(Instrumentation.PHASE_ENCODE);
+					} catch (IOException e) {
+						fail("Failed to write bubbled image from " + file.getAbsolutePath() + " to " + writeTo.getAbsolutePath());
+						return;
+					} finally {
+						CircleizerFiles.releaseCircleizedFile(writeTo);
+					}
+					out.println("Circleized image from " + file.getAbsolutePath() + " to " + writeTo.getAbsolutePath());
+					finish();
+					return;
+				}
+				}
+				stage ++;
+				stages[stage].execute(this);
+			} catch (RuntimeException e) {
+				fail("Failed to circleize " + file.getAbsolutePath() + ": " + e);
+			} catch (OutOfMemoryError e) {
+				pixels = null;
+				circleized = null;
+				fail("Ran out of memory circleizing " + file.getAbsolutePath());
+			} catch (Error e) {
+				// the job must still finish, or its permits stay taken and the batch waits for it forever
+				fail("Failed to circleize " + file.getAbsolutePath() + ": " + e);
+				throw e;
+			}
+		}
+		
+		private void fail(String message) {
+			err.println(message);
+			failures.incrementAndGet();
+			finish();
+		}
+		
+		private void finish() {
+			pixels = null;
+			circleized = null;
+			memory.release(permits);
+			done.countDown();
+		}
+	}
+	
+}
@@ -0,0 +1,167 @@
+package qmpzaltb.circleizer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Writes bubbles in a compact binary form meant for shipping to clients that draw the circles themselves.
+ * <p>
+ * All numbers are unsigned LEB128 varints unless noted. The stream starts with the bytes "CRCL", a version byte (1),
+ * the width, the height and the background color as three bytes (red, green, blue).
+ * Every bubble is then a color tag, followed by its diameter, its x as a zigzag-encoded difference from the previous bubble's x
+ * and its y as a difference from the previous bubble's y (also zigzag).
+ * A color tag of n > 0 refers to the n-th distinct color of the stream; a tag one larger than the amount of colors seen so far
+ * is followed by the new color as three bytes. A tag of 0 ends the stream.
+ * The underlying OutputStream is flushed, but not closed, at the end.
+ * 
+ * @author qmpzaltb
+ *
+ */
+public class BinaryBubbleWriter implements BubbleSink {
+	
+	public static final int VERSION = 1;
+	
+	private static final byte[] MAGIC = {'C', 'R', 'C', 'L'};
+	
+	private final OutputStream out;
+	
+	private int[] palette = new int[16];
+	private int paletteSize;
+	private int lastX;
+	private int lastY;
+	
+	public BinaryBubbleWriter(OutputStream out) {
+		this.out = out;
+	}
+	
+	@Override
+	public void begin(int width, int height, int backgroundColor) throws IOException {
+		out.write(MAGIC);
+		out.write(VERSION);
+		writeVarint(width);
+		writeVarint(height);
+		writeRgb(backgroundColor);
+		paletteSize = 0;
+		lastX = 0;
+		lastY = 0;
+	}
+	
+	@Override
+	public void bubble(int x, int y, int diameter, int rgb) throws IOException {
+		rgb &= 0xFFFFFF;
+		int index = 0;
+		while (index < paletteSize && palette[index] != rgb) {
+			index ++;
+		}
+		writeVarint(index + 1);
+		if (index == paletteSize) {
+			if (paletteSize == palette.length) {
+				palette = Arrays.copyOf(palette, paletteSize * 2);
+			}
+			palette[paletteSize ++] = rgb;
+			writeRgb(rgb);
+		}
+		writeVarint(diameter);
+		writeVarint(zigzag(x - lastX));
+		writeVarint(zigzag(y - lastY));
+		lastX = x;
+		lastY = y;
+	}
+	
+	@Override
+	public void end() throws IOException {
+		writeVarint(0);
+		out.flush();
+	}
+	
+	/**
+	 * Reads a stream written by a BinaryBubbleWriter and passes its bubbles on to a sink.
+	 */
+	public static void replay(InputStream in, BubbleSink sink) throws IOException {
+		for (int i = 0; i < MAGIC.length; i ++) {
+			if (readByte(in) != MAGIC[i]) {
+				throw new IOException("Not a bubble stream");
+			}
+		}
+		int version = readByte(in);
+		if (version != VERSION) {
+			throw new IOException("Unsupported bubble stream version " + version);
+		}
+		int width = readVarint(in);
+		int height = readVarint(in);
+		sink.begin(width, height, readRgb(in));
+		
+		int[] palette = new int[16];
+		int paletteSize = 0;
+		int x = 0;
+		int y = 0;
+		for (int tag = readVarint(in); tag != 0; tag = readVarint(in)) {
+			if (tag == paletteSize + 1) {
+				if (paletteSize == palette.length) {
+					palette = Arrays.copyOf(palette, paletteSize * 2);
+				}
+				palette[paletteSize ++] = readRgb(in);
+			} else if (tag > paletteSize) {
+				throw new IOException("Bad color tag " + tag);
+			}
+			int diameter = readVarint(in);
+			x += unzigzag(readVarint(in));
+			y += unzigzag(readVarint(in));
+			sink.bubble(x, y, diameter, palette[tag - 1]);
+		}
+		sink.end();
+	}
+	
+	private void writeVarint(int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+	
+	private void writeRgb(int rgb) throws IOException {
+		out.write((rgb >> 16) & 0xFF);
+		out.write((rgb >> 8) & 0xFF);
+		out.write(rgb & 0xFF);
+	}
+	
+	private static int zigzag(int value) {
+		return (value << 1) ^ (value >> 31);
+	}
+	
+	private static int unzigzag(int value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+	
+	private static int readByte(InputStream in) throws IOException {
+		int b = in.read();
+		if (b < 0) {
+			throw new EOFException();
+		}
+		return b;
+	}
+	
+	private static int readVarint(InputStream in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = readByte(in);
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+	
+	private static int readRgb(InputStream in) throws IOException {
+		int r = readByte(in);
+		int g = readByte(in);
+		int b = readByte(in);
+		return (r << 16) | (g << 8) | b;
+	}
+	
+}
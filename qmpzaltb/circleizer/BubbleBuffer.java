@@ -0,0 +1,145 @@
+package qmpzaltb.circleizer;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A growable list of bubbles stored as parallel int arrays, one per bubble property.
+ * Bubbles are kept in image pixel coordinates, in the order they were added.
+ * Clearing a buffer keeps its arrays, so a buffer reused across images stops allocating once it is large enough.
+ * 
+ * @author qmpzaltb
+ *
+ */
+public class BubbleBuffer implements BubbleSink {
+	
+	private static final int DEFAULT_CAPACITY = 64;
+	
+	int[] x;
+	int[] y;
+	int[] diameter;
+	int[] rgb;
+	int count;
+	
+	int width;
+	int height;
+	int backgroundColor;
+	
+	public BubbleBuffer() {
+		this(DEFAULT_CAPACITY);
+	}
+	
+	public BubbleBuffer(int capacity) {
+		capacity = Math.max(capacity, 1);
+		x = new int[capacity];
+		y = new int[capacity];
+		diameter = new int[capacity];
+		rgb = new int[capacity];
+	}
+	
+	/**
+	 * Clears the buffer and records the size of the image its bubbles belong to.
+	 */
+	@Override
+	public void begin(int width, int height, int backgroundColor) {
+		this.width = width;
+		this.height = height;
+		this.backgroundColor = backgroundColor;
+		count = 0;
+	}
+	
+	@Override
+	public void bubble(int x, int y, int diameter, int rgb) {
+		add(x, y, diameter, rgb);
+	}
+	
+	@Override
+	public void end() {
+	}
+	
+	public void add(int x, int y, int diameter, int rgb) {
+		if (count == this.x.length) {
+			ensureCapacity(count * 2);
+		}
+		this.x[count] = x;
+		this.y[count] = y;
+		this.diameter[count] = diameter;
+		this.rgb[count] = rgb;
+		count ++;
+	}
+	
+	/**
+	 * Scales all bubbles and the image size by a whole factor, turning a layout of a downscaled image into one of the full image.
+	 * @param width the width of the full image, which may be up to factor - 1 pixels more than the scaled width
+	 * @param height the height of the full image
+	 */
+	public void scale(int factor, int width, int height) {
+		for (int i = 0; i < count; i ++) {
+			x[i] *= factor;
+			y[i] *= factor;
+			diameter[i] *= factor;
+		}
+		this.width = width;
+		this.height = height;
+	}
+	
+	/**
+	 * Removes all bubbles, keeping the allocated storage.
+	 */
+	public void clear() {
+		count = 0;
+	}
+	
+	public void ensureCapacity(int capacity) {
+		if (capacity > x.length) {
+			x = Arrays.copyOf(x, capacity);
+			y = Arrays.copyOf(y, capacity);
+			diameter = Arrays.copyOf(diameter, capacity);
+			rgb = Arrays.copyOf(rgb, capacity);
+		}
+	}
+	
+	/**
+	 * Hands the image size and every bubble of this buffer, in order, to a sink.
+	 */
+	public void writeTo(BubbleSink sink) throws IOException {
+		sink.begin(width, height, backgroundColor);
+		for (int i = 0; i < count; i ++) {
+			sink.bubble(x[i], y[i], diameter[i], rgb[i]);
+		}
+		sink.end();
+	}
+	
+	public int size() {
+		return count;
+	}
+	
+	public int getX(int index) {
+		return x[index];
+	}
+	
+	public int getY(int index) {
+		return y[index];
+	}
+	
+	public int getDiameter(int index) {
+		return diameter[index];
+	}
+	
+	public int getRgb(int index) {
+		return rgb[index];
+	}
+	
+	public int getWidth() {
+		return width;
+	}
+	
+	public int getHeight() {
+		return height;
+	}
+	
+	public int getBackgroundColor() {
+		return backgroundColor;
+	}
+	
+}
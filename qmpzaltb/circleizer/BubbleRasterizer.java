@@ -0,0 +1,334 @@
+package qmpzaltb.circleizer;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Draws bubbles straight into the pixel array of a TYPE_INT_RGB image.
+ * Every bubble diameter gets a coverage table once: the first fully covered pixel of every row, and the coverage of the edge pixels before it.
+ * Bubbles are symmetric, so the right half of every row mirrors the left half.
+ * <p>
+ * Images can be drawn in horizontal bands in parallel. Every band draws the bubbles that reach into it in buffer order,
+ * so the result is the same for any amount of threads.
+ * <p>
+ * render(BubbleBuffer) can be called from any amount of threads at once. Drawing through begin(), bubble() and end()
+ * keeps the image being drawn in this rasterizer, so only one thread can do that at a time.
+ * Only render(BubbleBuffer) reports to the instrumentation; drawing through the sink methods happens between the placing of bubbles.
+ * 
+ * @author qmpzaltb
+ *
+ */
+public class BubbleRasterizer implements BubbleSink {
+	
+	/**
+	 * The height of the bands an image is split into when drawing it in parallel.
+	 */
+	public static final int BAND_HEIGHT = 256;
+	
+	/**
+	 * The amount of sub-rows a pixel row is split into to find the coverage of edge pixels.
+	 */
+	private static final int SUBROWS = 16;
+	
+	volatile boolean antialiasing;
+	volatile int parallelism;
+	volatile Instrumentation instrumentation = Instrumentation.NONE;
+	
+	/**
+	 * Coverage tables indexed by diameter, created as needed.
+	 * Tables never change once created, so they are read without locking and only added under the lock of this rasterizer.
+	 */
+	private volatile DiskCoverage[] coverages = new DiskCoverage[0];
+	
+	private BufferedImage image;
+	private int[] pixels;
+	
+	public BubbleRasterizer() {
+		antialiasing = true;
+		parallelism = 1;
+	}
+	
+	/**
+	 * Sets whether the edges of bubbles are blended with what is behind them, like Java2D's antialiased ovals.
+	 * Without antialiasing, a pixel is drawn if its center lies within the bubble.
+	 */
+	public void setAntialiasing(boolean antialiasing) {
+		this.antialiasing = antialiasing;
+	}
+	
+	/**
+	 * Sets the amount of threads used by render(BubbleBuffer).
+	 * @param parallelism the amount of threads, a positive non-zero value
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+		}
+		this.parallelism = parallelism;
+	}
+	
+	/**
+	 * Sets what every render(BubbleBuffer) reports its time to.
+	 */
+	public void setInstrumentation(Instrumentation instrumentation) {
+		if (instrumentation == null) {
+			throw new IllegalArgumentException("instrumentation must not be null, use Instrumentation.NONE");
+		}
+		this.instrumentation = instrumentation;
+	}
+	
+	public Instrumentation getInstrumentation() {
+		return instrumentation;
+	}
+	
+	/**
+	 * Draws all bubbles of a buffer into a new image the size recorded in the buffer.
+	 */
+	public BufferedImage render(BubbleBuffer bubbles) {
+		return render(bubbles, parallelism);
+	}
+	
+	/**
+	 * Draws all bubbles of a buffer into a new image with the given amount of threads instead of the one set on this rasterizer.
+	 */
+	public BufferedImage render(BubbleBuffer bubbles, int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+		}
+		PhaseTimer timer = PhaseTimer.start(instrumentation);
+		BufferedImage target = new BufferedImage(bubbles.width, bubbles.height, BufferedImage.TYPE_INT_RGB);
+		final int[] targetPixels = ((DataBufferInt) target.getRaster().getDataBuffer()).getData();
+		final int width = bubbles.width;
+		final int height = bubbles.height;
+		final BubbleBuffer b = bubbles;
+		
+		// every diameter the buffer uses, so the bands don't look any up
+		boolean aa = antialiasing;
+		final DiskCoverage[] tables = new DiskCoverage[maxDiameter(b) + 1];
+		for (int i = 0; i < b.count; i ++) {
+			if (tables[b.diameter[i]] == null) {
+				tables[b.diameter[i]] = coverage(b.diameter[i], aa);
+			}
+		}
+		
+		int bands = (height + BAND_HEIGHT - 1) / BAND_HEIGHT;
+		if (parallelism == 1 || bands < 2) {
+			drawBand(targetPixels, width, 0, height, b, tables);
+			timer.phase(Instrumentation.PHASE_RENDER);
+			return target;
+		}
+		
+		final ArrayList<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+		for (int band = 0; band < bands; band ++) {
+			final int minY = band * BAND_HEIGHT;
+			final int maxY = Math.min(height, minY + BAND_HEIGHT);
+			tasks.add(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+				@Override
+				protected void compute() {
+					drawBand(targetPixels, width, minY, maxY, b, tables);
+				}
+			});
+		}
+		WorkerPools.get(parallelism).invoke(new RecursiveAction() {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected void compute() {
+				invokeAll(tasks);
+			}
+		});
+		timer.phase(Instrumentation.PHASE_RENDER);
+		return target;
+	}
+	
+	@Override
+	public void begin(int width, int height, int backgroundColor) {
+		image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+		Arrays.fill(pixels, backgroundColor & 0xFFFFFF);
+	}
+	
+	@Override
+	public void bubble(int x, int y, int diameter, int rgb) {
+		drawBubble(pixels, image.getWidth(), 0, image.getHeight(), x, y, coverage(diameter, antialiasing), rgb);
+	}
+	
+	@Override
+	public void end() {
+		pixels = null;
+	}
+	
+	/**
+	 * @return the image drawn by the last begin() and bubble() calls
+	 */
+	public BufferedImage getImage() {
+		return image;
+	}
+	
+	private static void drawBand(int[] target, int width, int minY, int maxY, BubbleBuffer b, DiskCoverage[] coverages) {
+		int background = b.backgroundColor & 0xFFFFFF;
+		for (int i = minY * width, end = maxY * width; i < end; i ++) {
+			target[i] = background;
+		}
+		for (int i = 0; i < b.count; i ++) {
+			int y = b.y[i];
+			int diameter = b.diameter[i];
+			if (y < maxY && y + diameter > minY) {
+				drawBubble(target, width, minY, maxY, b.x[i], y, coverages[diameter], b.rgb[i]);
+			}
+		}
+	}
+	
+	/**
+	 * Draws the rows of a bubble that lie between minY (inclusive) and maxY (exclusive).
+	 */
+	private static void drawBubble(int[] target, int width, int minY, int maxY, int x, int y, DiskCoverage coverage, int rgb) {
+		int diameter = coverage.diameter;
+		int color = rgb & 0xFFFFFF;
+		int firstRow = Math.max(0, minY - y);
+		int lastRow = Math.min(diameter, maxY - y);
+		for (int row = firstRow; row < lastRow; row ++) {
+			int edgeStart = coverage.edgeStart[row];
+			int fullStart = coverage.fullStart[row];
+			int[] alpha = coverage.alpha[row];
+			int rowOffset = (y + row) * width;
+			
+			int from = Math.max(edgeStart, -x);
+			int to = Math.min(diameter - edgeStart, width - x);
+			int rightStart = Math.max(diameter - fullStart, fullStart);
+			
+			for (int px = from, end = Math.min(fullStart, to); px < end; px ++) {
+				blend(target, rowOffset + x + px, color, alpha[px - edgeStart]);
+			}
+			for (int px = Math.max(fullStart, from), end = Math.min(diameter - fullStart, to); px < end; px ++) {
+				target[rowOffset + x + px] = color;
+			}
+			for (int px = Math.max(rightStart, from); px < to; px ++) {
+				blend(target, rowOffset + x + px, color, alpha[diameter - 1 - px - edgeStart]);
+			}
+		}
+	}
+	
+	private static void blend(int[] target, int index, int color, int alpha) {
+		if (alpha == 0) {
+			return;
+		}
+		if (alpha == 255) {
+			target[index] = color;
+			return;
+		}
+		int behind = target[index];
+		int inverse = 255 - alpha;
+		int r = (((color >> 16) & 0xFF) * alpha + ((behind >> 16) & 0xFF) * inverse + 127) / 255;
+		int g = (((color >> 8) & 0xFF) * alpha + ((behind >> 8) & 0xFF) * inverse + 127) / 255;
+		int b = ((color & 0xFF) * alpha + (behind & 0xFF) * inverse + 127) / 255;
+		target[index] = (r << 16) | (g << 8) | b;
+	}
+	
+	/**
+	 * Draws a single bubble into a band of an image that holds the given amount of rows starting at bandY.
+	 * Only the rows of the bubble within the band are drawn.
+	 */
+	void drawInto(int[] band, int width, int bandY, int rows, int x, int y, int diameter, int rgb) {
+		drawBubble(band, width, 0, rows, x, y - bandY, coverage(diameter, antialiasing), rgb);
+	}
+	
+	private static int maxDiameter(BubbleBuffer b) {
+		int max = 0;
+		for (int i = 0; i < b.count; i ++) {
+			max = Math.max(max, b.diameter[i]);
+		}
+		return max;
+	}
+	
+	private DiskCoverage coverage(int diameter, boolean antialiasing) {
+		DiskCoverage[] current = coverages;
+		if (diameter < current.length && current[diameter] != null && current[diameter].antialiasing == antialiasing) {
+			return current[diameter];
+		}
+		synchronized (this) {
+			current = coverages;
+			if (diameter >= current.length) {
+				current = Arrays.copyOf(current, Math.max(diameter + 1, current.length * 2));
+			}
+			if (current[diameter] == null || current[diameter].antialiasing != antialiasing) {
+				current[diameter] = new DiskCoverage(diameter, antialiasing);
+			}
+			coverages = current;
+			return current[diameter];
+		}
+	}
+	
+	/**
+	 * The pixel coverage of a bubble of one diameter.
+	 * Every row covers the pixels from edgeStart to diameter - edgeStart; the ones from fullStart to diameter - fullStart are fully covered.
+	 * The alpha (0-255) of the left edge pixels of a row, from edgeStart up to fullStart, is kept in alpha; the right edge is its mirror image.
+	 */
+	static final class DiskCoverage {
+		
+		final int diameter;
+		final boolean antialiasing;
+		final int[] edgeStart;
+		final int[] fullStart;
+		final int[][] alpha;
+		
+		DiskCoverage(int diameter, boolean antialiasing) {
+			this.diameter = diameter;
+			this.antialiasing = antialiasing;
+			edgeStart = new int[diameter];
+			fullStart = new int[diameter];
+			alpha = new int[diameter][];
+			
+			double center = diameter / 2.0;
+			double radiusSquared = center * center;
+			int half = (diameter + 1) / 2;
+			
+			for (int row = 0; row < (diameter + 1) / 2; row ++) {
+				int start;
+				int full;
+				int[] rowAlpha;
+				
+				if (antialiasing) {
+					double[] left = new double[SUBROWS];
+					double minLeft = center;
+					double maxLeft = 0;
+					for (int k = 0; k < SUBROWS; k ++) {
+						double dy = row + (k + 0.5) / SUBROWS - center;
+						double chordSquared = radiusSquared - dy * dy;
+						left[k] = chordSquared > 0 ? center - Math.sqrt(chordSquared) : center;
+						minLeft = Math.min(minLeft, left[k]);
+						maxLeft = Math.max(maxLeft, left[k]);
+					}
+					start = Math.min((int) Math.floor(minLeft), half);
+					full = Math.min((int) Math.ceil(maxLeft), half);
+					rowAlpha = new int[full - start];
+					for (int px = start; px < full; px ++) {
+						double covered = 0;
+						for (int k = 0; k < SUBROWS; k ++) {
+							double right = diameter - left[k];
+							covered += Math.max(0, Math.min(px + 1, right) - Math.max(px, left[k]));
+						}
+						rowAlpha[px - start] = (int) Math.round(covered * 255 / SUBROWS);
+					}
+				} else {
+					double dy = row + 0.5 - center;
+					double chordSquared = radiusSquared - dy * dy;
+					start = chordSquared > 0 ? Math.min((int) Math.ceil(center - Math.sqrt(chordSquared) - 0.5), half) : half;
+					full = start;
+					rowAlpha = new int[0];
+				}
+				
+				edgeStart[row] = start;
+				fullStart[row] = full;
+				alpha[row] = rowAlpha;
+				edgeStart[diameter - 1 - row] = start;
+				fullStart[diameter - 1 - row] = full;
+				alpha[diameter - 1 - row] = rowAlpha;
+			}
+		}
+	}
+	
+}
@@ -0,0 +1,36 @@
+package qmpzaltb.circleizer;
+
+import java.io.IOException;
+
+/**
+ * Receives the bubbles of a circleized image as they are placed.
+ * Bubbles arrive largest size first, in image pixel coordinates.
+ * 
+ * @author qmpzaltb
+ *
+ */
+public interface BubbleSink {
+	
+	/**
+	 * Called once before any bubbles.
+	 * @param width the width of the circleized image in pixels
+	 * @param height the height of the circleized image in pixels
+	 * @param backgroundColor the color behind the bubbles in RGB form
+	 */
+	void begin(int width, int height, int backgroundColor) throws IOException;
+	
+	/**
+	 * Called for every placed bubble.
+	 * @param x the left edge of the bubble's bounding square
+	 * @param y the top edge of the bubble's bounding square
+	 * @param diameter the diameter of the bubble
+	 * @param rgb the color of the bubble in RGB form
+	 */
+	void bubble(int x, int y, int diameter, int rgb) throws IOException;
+	
+	/**
+	 * Called once after the last bubble.
+	 */
+	void end() throws IOException;
+	
+}
@@ -0,0 +1,244 @@
+package qmpzaltb.circleizer;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * Circleizes a sequence of images of the same size, such as the frames of a video, keeping what it can from one frame to the next.
+ * <p>
+ * Every frame is handed to a CircleizeSession: it is sampled, and only the samples whose circle color changed
+ * since the last frame have their bubbles taken away and placed again. Bubbles elsewhere stay exactly where they were,
+ * so still parts of a video stay still, and the work of a frame grows with the area that changed rather than with its size.
+ * A sample only changes its circle color if another one is closer to it by more than the color stickiness,
+ * so noise between two about equally close circle colors doesn't make bubbles flicker.
+ * <p>
+ * The circle colors are found in the first frame and kept while they fit the frames. Every few frames, how well they fit is measured,
+ * and if they fit notably worse than when they were found, colors are found again in the current frame.
+ * They are also found again whenever most of the samples changed at once, as at a cut. Found colors that are close to one of the old colors
+ * keep the old color, so only the samples of colors that really changed are classified again.
+ * <p>
+ * A sequence is not thread-safe.
+ *
+ * @author qmpzaltb
+ *
+ */
+public class CircleizeSequence {
+	
+	public static final int DEFAULT_PALETTE_CHECK_INTERVAL = 8;
+	public static final double DEFAULT_PALETTE_TOLERANCE = 0.25;
+	public static final int DEFAULT_COLOR_STICKINESS = 12;
+	
+	/**
+	 * How much the mean squared error of the circle colors may grow beyond the tolerance, so that colors fitting a frame
+	 * almost perfectly aren't found again over the slightest change.
+	 */
+	private static final double ERROR_SLACK = 64;
+	
+	private final CircleizerSettings settings;
+	
+	/**
+	 * The settings to find circle colors with, or null to keep the circle colors of the settings.
+	 */
+	private final PaletteSettings paletteSettings;
+	
+	private PaletteExtractor paletteExtractor = new ColorFinder();
+	private int paletteCheckInterval = DEFAULT_PALETTE_CHECK_INTERVAL;
+	private double paletteTolerance = DEFAULT_PALETTE_TOLERANCE;
+	private int colorStickiness = DEFAULT_COLOR_STICKINESS;
+	
+	/**
+	 * The session of the last frame, or null before the first one.
+	 */
+	private CircleizeSession session;
+	
+	/**
+	 * The mean squared error of the circle colors right after they were found.
+	 */
+	private double foundError;
+	private int framesSinceCheck;
+	private int frameCount;
+	private int paletteChanges;
+	
+	/**
+	 * Circleizes frames with the given settings, finding their circle colors in the frames with the given palette settings.
+	 */
+	public CircleizeSequence(CircleizerSettings settings, PaletteSettings paletteSettings) {
+		if (settings == null) {
+			throw new IllegalArgumentException("settings must not be null");
+		}
+		this.settings = settings;
+		this.paletteSettings = paletteSettings;
+	}
+	
+	/**
+	 * Circleizes frames with the circle colors of the given settings, which never change.
+	 */
+	public CircleizeSequence(CircleizerSettings settings) {
+		this(settings, null);
+	}
+	
+	/**
+	 * Sets what finds the circle colors in frames. A ColorFinder by default.
+	 */
+	public void setPaletteExtractor(PaletteExtractor paletteExtractor) {
+		if (paletteExtractor == null) {
+			throw new IllegalArgumentException("paletteExtractor must not be null");
+		}
+		this.paletteExtractor = paletteExtractor;
+	}
+	
+	/**
+	 * Sets after how many frames how well the circle colors fit is measured again.
+	 */
+	public void setPaletteCheckInterval(int paletteCheckInterval) {
+		this.paletteCheckInterval = Math.max(1, paletteCheckInterval);
+	}
+	
+	/**
+	 * Sets by how much, relative to when they were found, the mean squared error of the circle colors may grow before colors are found again.
+	 */
+	public void setPaletteTolerance(double paletteTolerance) {
+		this.paletteTolerance = Math.max(0, paletteTolerance);
+	}
+	
+	/**
+	 * Sets by how much closer, in RGB distance, another circle color has to be for a sample to change to it, and how close a newly found
+	 * circle color has to be to an old one to keep the old one. 0 always takes the closest color, like circleizing a single image does.
+	 */
+	public void setColorStickiness(int colorStickiness) {
+		this.colorStickiness = Math.max(0, colorStickiness);
+	}
+	
+	/**
+	 * Circleizes the next frame.
+	 * @return the area of the frame, in pixels, in which bubbles were taken away or placed, or null if no bubble changed.
+	 *   All of it for the first frame, or for a frame of another size than the one before it.
+	 */
+	public Rectangle next(ImagePixels frame) {
+		frameCount ++;
+		if (session == null) {
+			CircleizerSettings first = settings;
+			if (paletteSettings != null) {
+				first = settings.withCircleColors(paletteExtractor.findColors(frame, paletteSettings));
+			}
+			session = new CircleizeSession(frame, first);
+			foundError = session.meanSquaredError();
+			framesSinceCheck = 0;
+			return new Rectangle(0, 0, frame.getWidth(), frame.getHeight());
+		}
+		
+		Rectangle changed = session.setImage(frame, colorStickiness * colorStickiness);
+		if (paletteSettings == null) {
+			return changed;
+		}
+		framesSinceCheck ++;
+		boolean cut = session.getChangedSamples() * 2L > session.getSampleCount();
+		if (!cut) {
+			if (framesSinceCheck < paletteCheckInterval) {
+				return changed;
+			}
+			framesSinceCheck = 0;
+			if (session.meanSquaredError() <= foundError * (1 + paletteTolerance) + ERROR_SLACK) {
+				return changed;
+			}
+		}
+		framesSinceCheck = 0;
+		
+		int[] colors = keepCloseColors(paletteExtractor.findColors(frame, paletteSettings), session.getSettings().colors);
+		Rectangle recolored = session.setCircleColors(colors);
+		foundError = session.meanSquaredError();
+		paletteChanges ++;
+		if (changed == null) {
+			return recolored;
+		}
+		return recolored == null ? changed : changed.union(recolored);
+	}
+	
+	/**
+	 * @see #next(ImagePixels)
+	 */
+	public Rectangle next(BufferedImage frame) {
+		return next(ImagePixels.of(frame));
+	}
+	
+	/**
+	 * Replaces every found color by the old color closest to it, if it is within the color stickiness and no found color closer to it took it first.
+	 * @return the found colors, with those close to old ones replaced
+	 */
+	private int[] keepCloseColors(int[] found, int[] old) {
+		int[] colors = found.clone();
+		int limit = colorStickiness * colorStickiness;
+		
+		// every close pair of a found and an old color, by distance
+		long[] pairs = new long[found.length * old.length];
+		int pairCount = 0;
+		for (int i = 0; i < found.length; i ++) {
+			for (int j = 0; j < old.length; j ++) {
+				int distance = PaletteLookup.fastDistance(found[i], old[j]);
+				if (distance <= limit) {
+					pairs[pairCount ++] = ((long) distance << 40) | ((long) i << 20) | j;
+				}
+			}
+		}
+		Arrays.sort(pairs, 0, pairCount);
+		
+		boolean[] foundTaken = new boolean[found.length];
+		boolean[] oldTaken = new boolean[old.length];
+		for (int p = 0; p < pairCount; p ++) {
+			int i = (int) (pairs[p] >>> 20) & 0xFFFFF;
+			int j = (int) pairs[p] & 0xFFFFF;
+			if (foundTaken[i] || oldTaken[j]) {
+				continue;
+			}
+			foundTaken[i] = true;
+			oldTaken[j] = true;
+			colors[i] = old[j];
+		}
+		return colors;
+	}
+	
+	/**
+	 * @return a new buffer holding the bubbles of the last frame in pixel coordinates, largest first, or null before the first frame
+	 */
+	public BubbleBuffer getBubbles() {
+		return session == null ? null : session.getBubbles();
+	}
+	
+	/**
+	 * Draws the bubbles of the last frame, or returns null before the first frame.
+	 */
+	public BufferedImage render() {
+		return session == null ? null : session.render();
+	}
+	
+	/**
+	 * @return the circle colors of the last frame, or null before the first frame
+	 */
+	public int[] getCircleColors() {
+		return session == null ? null : session.getSettings().colors.clone();
+	}
+	
+	/**
+	 * @return the session holding the last frame, or null before the first frame.
+	 *   Its settings can be changed; the sequence goes on with the changed ones.
+	 */
+	public CircleizeSession getSession() {
+		return session;
+	}
+	
+	/**
+	 * @return the amount of frames circleized so far
+	 */
+	public int getFrameCount() {
+		return frameCount;
+	}
+	
+	/**
+	 * @return how many times the circle colors were found again after the first frame
+	 */
+	public int getPaletteChanges() {
+		return paletteChanges;
+	}
+	
+}
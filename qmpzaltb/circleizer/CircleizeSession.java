@@ -0,0 +1,535 @@
+package qmpzaltb.circleizer;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * Keeps everything circleizing an image produced, so the image can be circleized again after a small change of settings
+ * without starting over. Meant for editors that make many small changes to the settings of a single image.
+ * <p>
+ * A session keeps the sampled color of every sample, the circle color it was classified as, and the placed bubbles.
+ * When the circle colors or the sampling mode change, only the samples whose circle color changed are marked as changed.
+ * The bubbles covering changed samples are taken away, and bubbles are placed again, largest first,
+ * only where the squares of bubbles would overlap the freed samples. Bubbles elsewhere stay where they are.
+ * Changing only the background color doesn't place any bubbles. Changing the bubble size exponentiation keeps the samples
+ * but places all bubbles again, and changing the bubble minimum diameter changes the grid itself, so the image is sampled again.
+ * <p>
+ * A fresh session places bubbles exactly like a single-threaded Circleizer. After changes, bubbles that were kept can keep
+ * a neighbouring area from getting the larger bubbles a fresh circleization would give it, so the layout can differ slightly
+ * from circleizing the image again with the new settings. Sessions always place bubbles of the powers of the bubble size exponentiation;
+ * the placement mode of the settings is ignored.
+ * <p>
+ * The image itself can be changed too, for the next frame of a sequence of images of the same size.
+ * The new image is sampled, and only the samples whose sampled color changed are classified again;
+ * from there on it is handled like a change of circle colors. See CircleizeSequence.
+ * <p>
+ * A session is not thread-safe.
+ * 
+ * @author qmpzaltb
+ *
+ */
+public class CircleizeSession {
+	
+	private ImagePixels image;
+	private CircleizerSettings settings;
+	
+	/**
+	 * The sampled colors of the image, before they are classified.
+	 */
+	private SampleGrid sampled;
+	
+	/**
+	 * The sampled colors of the next image, swapped with the sampled colors once it is set. Null until the image is first changed.
+	 */
+	private SampleGrid nextSampled;
+	
+	/**
+	 * The circle colors of the samples, with the coverage of the placed bubbles.
+	 * Unlike when circleizing, bubbles of size 1 also mark their sample as covered, so no other bubble is placed over them.
+	 */
+	private SampleGrid grid;
+	
+	/**
+	 * The index of the bubble covering every sample, or -1.
+	 */
+	private int[] owners;
+	
+	/**
+	 * The placed bubbles in sample coordinates, in the order they were placed. Taken away bubbles have a size of 0 until the arrays are compacted.
+	 */
+	private int[] bubbleX = new int[64];
+	private int[] bubbleY = new int[64];
+	private int[] bubbleSize = new int[64];
+	private int[] bubbleColor = new int[64];
+	private int bubbleCount;
+	private int removedCount;
+	
+	/**
+	 * The amount of samples whose circle color changed with the last change of the settings or the image.
+	 */
+	private int changedSamples;
+	
+	private final BubbleRasterizer rasterizer = new BubbleRasterizer();
+	
+	/**
+	 * Circleizes an image and keeps the result for later changes.
+	 */
+	public CircleizeSession(ImagePixels image, CircleizerSettings settings) {
+		this.image = image;
+		this.settings = settings;
+		resample();
+		placeAll();
+	}
+	
+	public CircleizerSettings getSettings() {
+		return settings;
+	}
+	
+	/**
+	 * Changes the settings of the session and places again only the bubbles the change affects.
+	 * @return the area of the image, in pixels, in which bubbles were taken away or placed, or null if no bubble changed
+	 */
+	public Rectangle setSettings(CircleizerSettings settings) {
+		CircleizerSettings old = this.settings;
+		this.settings = settings;
+		
+		changedSamples = grid.width * grid.height;
+		if (settings.bubbleMinDiameter != old.bubbleMinDiameter) {
+			resample();
+			placeAll();
+			changedSamples = grid.width * grid.height;
+			return new Rectangle(0, 0, image.getWidth(), image.getHeight());
+		}
+		if (settings.bubbleSizeExponentiation != old.bubbleSizeExponentiation) {
+			if (settings.samplingMode != old.samplingMode) {
+				resample();
+			} else if (settings.palette != old.palette) {
+				reclassifyAll();
+			}
+			placeAll();
+			return new Rectangle(0, 0, image.getWidth(), image.getHeight());
+		}
+		if (settings.samplingMode != old.samplingMode) {
+			Circleizer.sample(image, sampled, settings, false);
+			return reclassify();
+		}
+		if (settings.palette != old.palette) {
+			return reclassify();
+		}
+		changedSamples = 0;
+		return null;
+	}
+	
+	/**
+	 * Changes the circle colors of the session.
+	 * @see #setSettings(CircleizerSettings)
+	 */
+	public Rectangle setCircleColors(int... colors) {
+		return setSettings(settings.withCircleColors(colors));
+	}
+	
+	public ImagePixels getImage() {
+		return image;
+	}
+	
+	/**
+	 * Changes the image of the session, such as to the next frame of a video, and places again only the bubbles on samples whose circle color changed.
+	 * An image of another size is circleized from scratch.
+	 * @return the area of the image, in pixels, in which bubbles were taken away or placed, or null if no bubble changed
+	 */
+	public Rectangle setImage(ImagePixels image) {
+		return setImage(image, 0);
+	}
+	
+	/**
+	 * Changes the image of the session, keeping the circle color of a changed sample unless another circle color is closer to it by more than the stickiness.
+	 * Small changes of color, such as the noise of a video, then don't move samples back and forth between two circle colors that are about as close.
+	 * @param stickiness how much closer, in squared RGB distance, another circle color has to be
+	 * @see #setImage(ImagePixels)
+	 */
+	Rectangle setImage(ImagePixels image, int stickiness) {
+		int d = settings.bubbleMinDiameter;
+		if (image.getWidth() / d != grid.width || image.getHeight() / d != grid.height) {
+			this.image = image;
+			resample();
+			placeAll();
+			changedSamples = grid.width * grid.height;
+			return new Rectangle(0, 0, image.getWidth(), image.getHeight());
+		}
+		this.image = image;
+		if (nextSampled == null) {
+			nextSampled = new SampleGrid(grid.width, grid.height);
+		}
+		Circleizer.sample(image, nextSampled, settings, false);
+		SampleGrid previous = sampled;
+		sampled = nextSampled;
+		nextSampled = previous;
+		
+		// only samples whose sampled color changed can change their circle color
+		PaletteLookup palette = settings.palette;
+		int width = grid.width;
+		int[] changed = new int[64];
+		int changedCount = 0;
+		for (int y = 0; y < grid.height; y ++) {
+			boolean rowChanged = false;
+			for (int x = 0, i = y * width; x < width; x ++, i ++) {
+				int sample = sampled.colors[i];
+				if (sample == previous.colors[i]) {
+					continue;
+				}
+				int color = palette.closestColor(sample);
+				int old = grid.colors[i];
+				if (color == old || (stickiness > 0 && PaletteLookup.fastDistance(old, sample) <= PaletteLookup.fastDistance(color, sample) + stickiness)) {
+					continue;
+				}
+				grid.colors[i] = color;
+				rowChanged = true;
+				if (changedCount == changed.length) {
+					changed = Arrays.copyOf(changed, changedCount * 2);
+				}
+				changed[changedCount ++] = i;
+			}
+			if (rowChanged) {
+				grid.updateColorEdges(y, y + 1);
+			}
+		}
+		return replace(changed, changedCount);
+	}
+	
+	/**
+	 * @return the amount of samples whose circle color changed with the last change of the settings or the image
+	 */
+	int getChangedSamples() {
+		return changedSamples;
+	}
+	
+	/**
+	 * @return the amount of samples of the grid
+	 */
+	int getSampleCount() {
+		return grid.width * grid.height;
+	}
+	
+	/**
+	 * @return the mean squared RGB distance of the sampled colors to the circle colors they are shown as
+	 */
+	double meanSquaredError() {
+		int count = grid.width * grid.height;
+		if (count == 0) {
+			return 0;
+		}
+		long error = 0;
+		for (int i = 0; i < count; i ++) {
+			error += PaletteLookup.fastDistance(sampled.colors[i], grid.colors[i]);
+		}
+		return (double) error / count;
+	}
+	
+	/**
+	 * @return a new buffer holding the placed bubbles in pixel coordinates, largest first
+	 */
+	public BubbleBuffer getBubbles() {
+		int d = settings.bubbleMinDiameter;
+		BubbleBuffer bubbles = new BubbleBuffer(Math.max(1, bubbleCount - removedCount));
+		bubbles.begin(image.getWidth(), image.getHeight(), settings.backgroundColor);
+		
+		// bubbles placed later can be larger than ones placed earlier, so they are sorted by size, keeping the order of equal sizes:
+		// every key holds the negated size above the index, so sorting the keys puts larger bubbles first and equal ones in placement order
+		long[] order = new long[bubbleCount];
+		int live = 0;
+		for (int i = 0; i < bubbleCount; i ++) {
+			if (bubbleSize[i] > 0) {
+				order[live ++] = ((long) -bubbleSize[i] << 32) | i;
+			}
+		}
+		Arrays.sort(order, 0, live);
+		for (int k = 0; k < live; k ++) {
+			int i = (int) order[k];
+			bubbles.add(bubbleX[i] * d, bubbleY[i] * d, bubbleSize[i] * d, bubbleColor[i]);
+		}
+		return bubbles;
+	}
+	
+	/**
+	 * Draws the placed bubbles.
+	 */
+	public BufferedImage render() {
+		return rasterizer.render(getBubbles(), settings.parallelism);
+	}
+	
+	/**
+	 * Samples the image into a new grid.
+	 */
+	private void resample() {
+		int d = settings.bubbleMinDiameter;
+		int width = image.getWidth() / d;
+		int height = image.getHeight() / d;
+		sampled = new SampleGrid(width, height);
+		nextSampled = null;
+		Circleizer.sample(image, sampled, settings, false);
+		grid = new SampleGrid(width, height);
+		owners = new int[width * height];
+		reclassifyAll();
+	}
+	
+	/**
+	 * Classifies every sample again, before all bubbles are placed again.
+	 */
+	private void reclassifyAll() {
+		PaletteLookup palette = settings.palette;
+		for (int i = 0; i < grid.colors.length && i < grid.width * grid.height; i ++) {
+			grid.colors[i] = palette.closestColor(sampled.colors[i]);
+		}
+		grid.updateColorEdges();
+	}
+	
+	/**
+	 * Classifies every sample again, takes away the bubbles covering samples whose circle color changed,
+	 * and places bubbles again where they were taken away.
+	 * @return the changed area in pixels, or null if no sample changed
+	 */
+	private Rectangle reclassify() {
+		PaletteLookup palette = settings.palette;
+		int width = grid.width;
+		int height = grid.height;
+		
+		int[] changed = new int[64];
+		int changedCount = 0;
+		for (int y = 0; y < height; y ++) {
+			boolean rowChanged = false;
+			for (int x = 0, i = y * width; x < width; x ++, i ++) {
+				int color = palette.closestColor(sampled.colors[i]);
+				if (color != grid.colors[i]) {
+					grid.colors[i] = color;
+					rowChanged = true;
+					if (changedCount == changed.length) {
+						changed = Arrays.copyOf(changed, changedCount * 2);
+					}
+					changed[changedCount ++] = i;
+				}
+			}
+			if (rowChanged) {
+				grid.updateColorEdges(y, y + 1);
+			}
+		}
+		return replace(changed, changedCount);
+	}
+	
+	/**
+	 * Takes away the bubbles covering the given samples after their circle color changed, and places bubbles again where they were taken away.
+	 * @param changed the indices of the changed samples
+	 * @return the changed area in pixels, or null if no sample changed
+	 */
+	private Rectangle replace(int[] changed, int changedCount) {
+		changedSamples = changedCount;
+		if (changedCount == 0) {
+			return null;
+		}
+		int width = grid.width;
+		long[] freed = new long[grid.rowWords * grid.height];
+		Area area = new Area();
+		for (int c = 0; c < changedCount; c ++) {
+			int i = changed[c];
+			int x = i % width;
+			int y = i / width;
+			SampleGrid.setBits(freed, y * grid.rowWords, x, x + 1);
+			area.add(x, y, 1);
+			if (owners[i] >= 0) {
+				removeBubble(owners[i], freed, area);
+			}
+		}
+		
+		place(freed, area);
+		compact();
+		int d = settings.bubbleMinDiameter;
+		return new Rectangle(area.minX * d, area.minY * d, (area.maxX - area.minX + 1) * d, (area.maxY - area.minY + 1) * d);
+	}
+	
+	/**
+	 * Takes away all bubbles and places them all again.
+	 */
+	private void placeAll() {
+		grid.reset(grid.width, grid.height);
+		Arrays.fill(owners, -1);
+		bubbleCount = 0;
+		removedCount = 0;
+		
+		long[] freed = new long[grid.rowWords * grid.height];
+		for (int y = 0; y < grid.height; y ++) {
+			SampleGrid.setBits(freed, y * grid.rowWords, 0, grid.width);
+		}
+		Area area = new Area();
+		if (grid.width > 0 && grid.height > 0) {
+			area.add(0, 0, 1);
+			area.add(grid.width - 1, grid.height - 1, 1);
+		}
+		place(freed, area);
+	}
+	
+	/**
+	 * Takes away a bubble, uncovering its samples and marking them as freed.
+	 */
+	private void removeBubble(int bubble, long[] freed, Area area) {
+		int x = bubbleX[bubble];
+		int y = bubbleY[bubble];
+		int size = bubbleSize[bubble];
+		if (size == 1) {
+			SampleGrid.clearBits(grid.covered, y * grid.rowWords, x, x + 1);
+			SampleGrid.setBits(freed, y * grid.rowWords, x, x + 1);
+			owners[x + y * grid.width] = -1;
+		} else {
+			DiskMask mask = DiskMask.of(size);
+			grid.uncover(x, y, mask);
+			for (int yy = 0; yy < size; yy ++) {
+				int rowStart = (y + yy) * grid.width;
+				SampleGrid.setBits(freed, (y + yy) * grid.rowWords, x + mask.spanStart[yy], x + mask.spanEnd[yy]);
+				for (int xx = x + mask.spanStart[yy]; xx < x + mask.spanEnd[yy]; xx ++) {
+					owners[rowStart + xx] = -1;
+				}
+			}
+		}
+		area.add(x, y, size);
+		bubbleSize[bubble] = 0;
+		removedCount ++;
+	}
+	
+	/**
+	 * Places bubbles, largest first, wherever a bubble's square would hold at least one freed sample.
+	 * Candidates are tried in the same order as a single-threaded Circleizer tries them.
+	 */
+	private void place(long[] freed, Area area) {
+		if (area.maxX < 0) {
+			return;
+		}
+		int d = settings.bubbleMinDiameter;
+		int exponentiation = settings.bubbleSizeExponentiation;
+		
+		// the amount of freed samples above and left of every sample of the freed area, to tell whether a square holds any in constant time
+		int areaWidth = area.maxX - area.minX + 1;
+		int areaHeight = area.maxY - area.minY + 1;
+		int[] freedSums = new int[(areaWidth + 1) * (areaHeight + 1)];
+		for (int y = 0; y < areaHeight; y ++) {
+			int rowBase = (area.minY + y) * grid.rowWords;
+			int rowSum = 0;
+			for (int x = 0; x < areaWidth; x ++) {
+				int gx = area.minX + x;
+				if ((freed[rowBase + (gx >>> 6)] & (1L << gx)) != 0) {
+					rowSum ++;
+				}
+				freedSums[(x + 1) + (y + 1) * (areaWidth + 1)] = freedSums[(x + 1) + y * (areaWidth + 1)] + rowSum;
+			}
+		}
+		
+		int largestBubbleRelativeDimension = Circleizer.largestBubbleSize(image.getWidth(), image.getHeight(), d, exponentiation);
+		
+		Area placedArea = new Area();
+		for (int size = largestBubbleRelativeDimension; size >= 1; size /= exponentiation) {
+			DiskMask mask = DiskMask.of(size);
+			int minX = Math.max(0, area.minX - size + 1);
+			int minY = Math.max(0, area.minY - size + 1);
+			int maxX = Math.min(area.maxX, grid.width - size);
+			int maxY = Math.min(area.maxY, grid.height - size);
+			for (int y = minY; y <= maxY; y ++) {
+				for (int x = minX; x <= maxX; x ++) {
+					int x0 = Math.max(x, area.minX) - area.minX;
+					int y0 = Math.max(y, area.minY) - area.minY;
+					int x1 = Math.min(x + size - 1, area.maxX) - area.minX + 1;
+					int y1 = Math.min(y + size - 1, area.maxY) - area.minY + 1;
+					int freedInSquare = freedSums[x1 + y1 * (areaWidth + 1)] - freedSums[x0 + y1 * (areaWidth + 1)]
+							- freedSums[x1 + y0 * (areaWidth + 1)] + freedSums[x0 + y0 * (areaWidth + 1)];
+					if (freedInSquare == 0 || !Circleizer.tryBubble(grid, x, y, mask)) {
+						continue;
+					}
+					addBubble(x, y, size, mask);
+					placedArea.add(x, y, size);
+				}
+			}
+		}
+		area.add(placedArea);
+	}
+	
+	private void addBubble(int x, int y, int size, DiskMask mask) {
+		if (bubbleCount == bubbleX.length) {
+			bubbleX = Arrays.copyOf(bubbleX, bubbleCount * 2);
+			bubbleY = Arrays.copyOf(bubbleY, bubbleCount * 2);
+			bubbleSize = Arrays.copyOf(bubbleSize, bubbleCount * 2);
+			bubbleColor = Arrays.copyOf(bubbleColor, bubbleCount * 2);
+		}
+		int bubble = bubbleCount ++;
+		bubbleX[bubble] = x;
+		bubbleY[bubble] = y;
+		bubbleSize[bubble] = size;
+		bubbleColor[bubble] = grid.colors[x + y * grid.width];
+		
+		if (size == 1) {
+			SampleGrid.setBits(grid.covered, y * grid.rowWords, x, x + 1);
+			owners[x + y * grid.width] = bubble;
+			return;
+		}
+		for (int yy = 0; yy < size; yy ++) {
+			int rowStart = (y + yy) * grid.width;
+			for (int xx = x + mask.spanStart[yy]; xx < x + mask.spanEnd[yy]; xx ++) {
+				owners[rowStart + xx] = bubble;
+			}
+		}
+	}
+	
+	/**
+	 * Drops taken away bubbles from the arrays once they make up more than half of them.
+	 */
+	private void compact() {
+		if (removedCount * 2 <= bubbleCount) {
+			return;
+		}
+		int[] moved = new int[bubbleCount];
+		int kept = 0;
+		for (int i = 0; i < bubbleCount; i ++) {
+			if (bubbleSize[i] == 0) {
+				moved[i] = -1;
+				continue;
+			}
+			bubbleX[kept] = bubbleX[i];
+			bubbleY[kept] = bubbleY[i];
+			bubbleSize[kept] = bubbleSize[i];
+			bubbleColor[kept] = bubbleColor[i];
+			moved[i] = kept ++;
+		}
+		for (int i = 0; i < owners.length; i ++) {
+			if (owners[i] >= 0) {
+				owners[i] = moved[owners[i]];
+			}
+		}
+		bubbleCount = kept;
+		removedCount = 0;
+	}
+	
+	/**
+	 * A bounding box of samples, empty until something is added.
+	 */
+	private static final class Area {
+		
+		int minX = Integer.MAX_VALUE;
+		int minY = Integer.MAX_VALUE;
+		int maxX = -1;
+		int maxY = -1;
+		
+		/**
+		 * Adds the square of the given size with its corner at x, y.
+		 */
+		void add(int x, int y, int size) {
+			minX = Math.min(minX, x);
+			minY = Math.min(minY, y);
+			maxX = Math.max(maxX, x + size - 1);
+			maxY = Math.max(maxY, y + size - 1);
+		}
+		
+		void add(Area area) {
+			if (area.maxX >= 0) {
+				add(area.minX, area.minY, 1);
+				add(area.maxX, area.maxY, 1);
+			}
+		}
+	}
+	
+}
@@ -1,10 +1,11 @@
 package qmpzaltb.circleizer;
 
 import java.awt.Color;
-import java.awt.Graphics2D;
-import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
-import java.util.LinkedList;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public class Circleizer {
 
@@ -16,236 +17,600 @@ public class Circleizer {
 	public static final int DEFAULT_BUBBLE_SIZE_EXPONENTIATION = 2;
 	
 	/**
-	 * The allowed Circle colors in RGB form
+	 * Sampling mode where every sample takes the color of the top-left pixel of its block.
 	 */
-	int[] colors;
+	public static final int SAMPLING_POINT = 0;
+	/**
+	 * Sampling mode where every sample takes the average color of all pixels of its block.
+	 */
+	public static final int SAMPLING_MEAN = 1;
+	
+	/**
+	 * Placement mode where bubble sizes are the powers of the bubble size exponentiation, and every size is tried at every sample, largest first.
+	 */
+	public static final int PLACEMENT_EXPONENTIAL = 0;
+	/**
+	 * Placement mode where bubbles can have any diameter, placed largest first where a distance transform shows they fit.
+	 * Packs bubbles more densely and follows shapes more naturally, but always runs on a single thread.
+	 */
+	public static final int PLACEMENT_DISTANCE = 1;
+	
+	/**
+	 * The smallest side length (in samples) of the tiles the sample grid is split into when circleizing in parallel.
+	 */
+	public static final int TILE_SIZE = 64;
+	
+	/**
+	 * The settings used by calls that aren't given their own. The setters replace them with a changed copy,
+	 * so calls that are already running keep the settings they started with.
+	 */
+	private volatile CircleizerSettings settings;
 	
 	/**
-	 * The background color in RGB form.
+	 * The sample grids and row buffers of calls, kept between calls.
 	 */
-	int backgroundColor;
+	private final ScratchPool<Scratch> scratches = new ScratchPool<Scratch>(Math.max(2, Runtime.getRuntime().availableProcessors()));
 	
-	int bubbleMinDiameter;
-	int bubbleSizeExponentiation;
+	private final BubbleRasterizer rasterizer = new BubbleRasterizer();
 	
+	private volatile Instrumentation instrumentation = Instrumentation.NONE;
 	
+	/**
+	 * What tryBubble found: the bubble was placed, turned down because its middle was already covered, or turned down otherwise.
+	 */
+	static final int PLACED = 0;
+	static final int REJECTED_EARLY = 1;
+	static final int REJECTED = 2;
+	
+	
+	/**
+	 * Creates a Circleizer with the default settings.
+	 * A Circleizer can circleize any amount of images at once; calls that need different settings can pass their own CircleizerSettings.
+	 */
 	public Circleizer() {
-		setCircleColors(JAVA_COLORS);
-		bubbleMinDiameter = DEFAULT_BUBBLE_MIN_DIAMETER;
-		bubbleSizeExponentiation = DEFAULT_BUBBLE_SIZE_EXPONENTIATION;
-		
+		settings = CircleizerSettings.DEFAULT;
+	}
+	
+	public Circleizer(CircleizerSettings settings) {
+		setSettings(settings);
 	}
 	
-	public void setCircleColors(Color... colors) {
-		this.colors = new int[colors.length];
-		for (int i = 0; i < colors.length; i ++) {
-			this.colors[i] = colors[i].getRGB();
+	public CircleizerSettings getSettings() {
+		return settings;
+	}
+	
+	public void setSettings(CircleizerSettings settings) {
+		if (settings == null) {
+			throw new IllegalArgumentException("settings must not be null");
 		}
+		this.settings = settings;
 	}
 	
-	public void setCircleColors(int... colors) {
-		this.colors = new int[colors.length];
-		for (int i = 0; i < colors.length; i ++) {
-			this.colors[i] = colors[i];
+	public synchronized void setCircleColors(Color... colors) {
+		settings = settings.withCircleColors(colors);
+	}
+	
+	public synchronized void setCircleColors(int... colors) {
+		settings = settings.withCircleColors(colors);
+	}
+	
+	/**
+	 * Sets how the color of every sample of the grid is taken from its block of pixels.
+	 * SAMPLING_MEAN averages the whole block, which follows the image more faithfully than SAMPLING_POINT but reads every pixel.
+	 * @param samplingMode SAMPLING_POINT or SAMPLING_MEAN
+	 */
+	public synchronized void setSamplingMode(int samplingMode) {
+		settings = settings.withSamplingMode(samplingMode);
+	}
+	
+	/**
+	 * Sets which bubble sizes are placed, and how.
+	 * PLACEMENT_DISTANCE places bubbles of every diameter instead of only the powers of the bubble size exponentiation.
+	 * @param placementMode PLACEMENT_EXPONENTIAL or PLACEMENT_DISTANCE
+	 */
+	public synchronized void setPlacementMode(int placementMode) {
+		settings = settings.withPlacementMode(placementMode);
+	}
+	
+	/**
+	 * @return the placement mode named exponential or distance on a command line or in a request
+	 */
+	static int placementMode(String name) {
+		if (name.equals("exponential")) {
+			return PLACEMENT_EXPONENTIAL;
+		} else if (name.equals("distance")) {
+			return PLACEMENT_DISTANCE;
+		}
+		throw new IllegalArgumentException("Unknown placement " + name + ", use exponential or distance");
+	}
+	
+	/**
+	 * Sets the amount of threads used to place bubbles.
+	 * With more than one thread, the sample grid is split into tiles that are circleized in parallel.
+	 * The tiled layout is slightly different from the single-threaded one, but it is the same for any amount of threads.
+	 * @param parallelism the amount of threads, a positive non-zero value
+	 */
+	public synchronized void setParallelism(int parallelism) {
+		settings = settings.withParallelism(parallelism);
+	}
+	
+	/**
+	 * Sets what sampling, every size pass of placing bubbles and drawing report to.
+	 */
+	public void setInstrumentation(Instrumentation instrumentation) {
+		if (instrumentation == null) {
+			throw new IllegalArgumentException("instrumentation must not be null, use Instrumentation.NONE");
 		}
+		this.instrumentation = instrumentation;
+		rasterizer.setInstrumentation(instrumentation);
+	}
+	
+	public Instrumentation getInstrumentation() {
+		return instrumentation;
 	}
 	
 	public BufferedImage circleize(BufferedImage image) {
+		return circleize(ImagePixels.of(image), settings);
+	}
+	
+	public BufferedImage circleize(ImagePixels image) {
+		return circleize(image, settings);
+	}
+	
+	public BufferedImage circleize(BufferedImage image, CircleizerSettings settings) {
+		return circleize(ImagePixels.of(image), settings);
+	}
+	
+	/**
+	 * Circleizes an image with the given settings instead of the ones of this Circleizer.
+	 */
+	public BufferedImage circleize(ImagePixels image, CircleizerSettings settings) {
+		Scratch scratch = borrowScratch();
+		try {
+			BubbleBuffer bubbles = scratch.bubbles;
+			bubbles.clear();
+			circleize(image, settings, bubbles, scratch);
+			return rasterizer.render(bubbles, settings.parallelism);
+		} catch (IOException e) {
+			throw new IllegalStateException("Buffering bubbles doesn't do any I/O", e);
+		} finally {
+			scratches.giveBack(scratch);
+		}
+	}
+	
+	/**
+	 * Circleizes an image without drawing it.
+	 * @param image the image to circleize
+	 * @param bubbles a buffer to clear and fill, or null to create a new one
+	 * @return the buffer holding the placed bubbles, largest first
+	 */
+	public BubbleBuffer placeBubbles(BufferedImage image, BubbleBuffer bubbles) {
+		return placeBubbles(ImagePixels.of(image), settings, bubbles);
+	}
+	
+	public BubbleBuffer placeBubbles(ImagePixels image, BubbleBuffer bubbles) {
+		return placeBubbles(image, settings, bubbles);
+	}
+	
+	public BubbleBuffer placeBubbles(ImagePixels image, CircleizerSettings settings, BubbleBuffer bubbles) {
+		if (bubbles == null) {
+			bubbles = new BubbleBuffer();
+		}
+		try {
+			circleize(image, settings, bubbles);
+		} catch (IOException e) {
+			throw new IllegalStateException("Buffering bubbles doesn't do any I/O", e);
+		}
+		return bubbles;
+	}
+	
+	/**
+	 * Circleizes an image without drawing it, handing every bubble to the given sink as soon as it is placed.
+	 * @param image the image to circleize
+	 * @param sink receives the size of the image and its bubbles, largest first
+	 * @throws IOException if the sink fails
+	 */
+	public void circleize(BufferedImage image, BubbleSink sink) throws IOException {
+		circleize(ImagePixels.of(image), settings, sink);
+	}
+	
+	/**
+	 * Circleizes the pixels of an image, handing every bubble to the given sink as soon as it is placed.
+	 * @see #circleize(BufferedImage, BubbleSink)
+	 */
+	public void circleize(ImagePixels image, BubbleSink sink) throws IOException {
+		circleize(image, settings, sink);
+	}
+	
+	/**
+	 * Circleizes the pixels of an image with the given settings instead of the ones of this Circleizer.
+	 * @see #circleize(BufferedImage, BubbleSink)
+	 */
+	public void circleize(ImagePixels image, CircleizerSettings settings, BubbleSink sink) throws IOException {
+		Scratch scratch = borrowScratch();
+		try {
+			circleize(image, settings, sink, scratch);
+		} finally {
+			scratches.giveBack(scratch);
+		}
+	}
+	
+	private void circleize(ImagePixels image, CircleizerSettings settings, BubbleSink sink, Scratch scratch) throws IOException {
 		
 		int width = image.getWidth();
 		int height = image.getHeight();
-		
-		int[] pixels = image.getRGB(0, 0, width, height, new int[width * height], 0, width);
-		
-		final class Bubble {
-			
-			public final int x;
-			public final int y;
-			public final int size;
-			public final int rgb;
-			
-			public Bubble(int x, int y, int size, int rgb){
-				this.x = x;
-				this.y = y;
-				this.size = size;
-				this.rgb = rgb;
-			}
-			
-		}
-		
-		LinkedList<Bubble> bubbles = new LinkedList<Bubble>();
+		int bubbleMinDiameter = settings.bubbleMinDiameter;
+		int bubbleSizeExponentiation = settings.bubbleSizeExponentiation;
 		
 		//Calculating the dimensions of the grid on which circles are created.
 		//Its essentially a downscaled version of the original image.
 		int sampleArrayWidth = width / bubbleMinDiameter;
 		int sampleArrayHeight = height / bubbleMinDiameter;
-		int sampleCount = sampleArrayWidth * sampleArrayHeight;
-		int[] sampleColors = new int[sampleCount];
-		boolean[] coveredSamples = new boolean[sampleCount];
+		SampleGrid grid = scratch.grid(sampleArrayWidth, sampleArrayHeight);
+		PhaseTimer timer = PhaseTimer.start(instrumentation);
 		
 		//Calculating the closest color to every point on that grid
-		for (int x = 0; x < sampleArrayWidth; x ++) {
-			for (int y = 0; y < sampleArrayHeight; y ++) {
-				int pixel = pixels[x * bubbleMinDiameter + y * bubbleMinDiameter * width];
-				sampleColors[x + y * sampleArrayWidth] = closestCircleColor(pixel);
-				
-			}
-		}
+		sample(image, grid, settings, scratch);
+		grid.updateColorEdges();
+		timer.phase(Instrumentation.PHASE_SAMPLE);
+		
+		int largestBubbleRelativeDimension = largestBubbleSize(width, height, bubbleMinDiameter, bubbleSizeExponentiation);
+		
 		
-		int largestPossibleCompressionSize = bubbleMinDiameter;
-		int largestBubbleRelativeDimension = 1;
+		sink.begin(width, height, settings.backgroundColor);
+		timer.restart();
 		
-		while (largestPossibleCompressionSize < width && largestPossibleCompressionSize < height) {
-			largestBubbleRelativeDimension *= bubbleSizeExponentiation;
-			largestPossibleCompressionSize *= bubbleSizeExponentiation;
+		if (settings.placementMode == PLACEMENT_DISTANCE) {
+			DistancePlacement.place(grid, bubbleMinDiameter, Math.min(sampleArrayWidth, sampleArrayHeight), sink, timer);
+			sink.end();
+			return;
 		}
-		largestPossibleCompressionSize /= bubbleSizeExponentiation;
-		largestBubbleRelativeDimension /= bubbleSizeExponentiation;
 		
+		grid.buildIndex();
 		
 		for (int size = largestBubbleRelativeDimension; size >= 1; size /= bubbleSizeExponentiation) { //Circle sizes are exponentiated from the smallest circle //faster than the other one
 //		for (int size = largestBubbleRelativeDimension; size >= 1; size --) { //Circle sizes are in between the size of the smallest and biggest circle
-//			int sizeSquared = size * size;
-			float radiusSquared = (size / 2.0f) * (size / 2.0f);
+			DiskMask mask = DiskMask.of(size);
 			
-			for (int x = 0; x < sampleArrayWidth; x ++ ) {
-				for (int y = 0; y < sampleArrayHeight; y ++ ) {
-					
-					int searchZoneMinX = x;
-					int searchZoneMaxX = x + size;
-					int searchZoneMinY = y;
-					int searchZoneMaxY = y + size;
-					
-					int arbitraryMidX = x + size / 2;
-					int arbitraryMidY = y + size / 2;
-					
-					float actualMidX = x + size / 2.0f;
-					float actualMidY = y + size / 2.0f;
-					
-					if (searchZoneMaxX > sampleArrayWidth || searchZoneMaxY > sampleArrayHeight) {
-						continue;
-					}
-					
-					boolean covered = coveredSamples[arbitraryMidX + arbitraryMidY * sampleArrayWidth];
-					if (covered) {
+			// the index can't skip anything for this size or the smaller ones after it, so it no longer needs to follow the bubbles
+			if (grid.index != null && grid.index.skipLevel(mask) == 0) {
+				grid.dropIndex();
+			}
+			
+			if (settings.parallelism > 1) {
+				placeBubblesTiled(grid, mask, bubbleMinDiameter, WorkerPools.get(settings.parallelism), sink, timer);
+				continue;
+			}
+			
+			UniformityIndex index = grid.index;
+			int skipLevel = index == null ? 0 : index.skipLevel(mask);
+			long placed = 0;
+			long rejectedEarly = 0;
+			// the grid is walked row by row, which follows the layout of the sample arrays and bitplanes
+			for (int y = 0; y < sampleArrayHeight; y ++ ) {
+				for (int x = 0; x < sampleArrayWidth; x ++ ) {
+					int skipped = skipLevel == 0 ? 0 : index.skipRight(x, y, mask, skipLevel);
+					if (skipped > 0) {
+						x += skipped - 1;
 						continue;
 					}
-					
-					int thisColor = sampleColors[x + y * sampleArrayWidth];
-					
-					boolean canBubblify = true;
-					
-					zoneCircleSearch : for (int xx = searchZoneMinX; xx < searchZoneMaxX; xx ++) {
-						for (int yy = searchZoneMinY; yy < searchZoneMaxY; yy ++) {
-							
-							float dx0 = actualMidX - xx;
-							float dx1 = actualMidX - (xx + 1);
-							float dy0 = actualMidY - yy;
-							float dy1 = actualMidY - (yy + 1);
-							
-							float dist0 = dx0 * dx0 + dy0 * dy0;
-							float dist1 = dx0 * dx0 + dy1 * dy1;
-							float dist2 = dx1 * dx1 + dy1 * dy1;
-							float dist3 = dx1 * dx1 + dy0 * dy0;
-							
-							if (dist0 < radiusSquared || dist1 < radiusSquared || dist2 < radiusSquared || dist3 < radiusSquared) {
-								if (coveredSamples[xx + yy * sampleArrayWidth] || sampleColors[xx + yy * sampleArrayWidth] != thisColor) {
-									canBubblify = false;
-									break zoneCircleSearch;
-								}
-							}
-							
-						}
-					}
-					
-					if (canBubblify) {
-						for (int xx = searchZoneMinX; xx < searchZoneMaxX; xx ++) {
-							for (int yy = searchZoneMinY; yy < searchZoneMaxY; yy ++) {
-								
-								float dx0 = actualMidX - xx;
-								float dx1 = actualMidX - (xx + 1);
-								float dy0 = actualMidY - yy;
-								float dy1 = actualMidY - (yy + 1);
-								
-								float dist0 = dx0 * dx0 + dy0 * dy0;
-								float dist1 = dx0 * dx0 + dy1 * dy1;
-								float dist2 = dx1 * dx1 + dy1 * dy1;
-								float dist3 = dx1 * dx1 + dy0 * dy0;
-								
-//								if (size > 10) {
-//									System.out.println("dist0="+dist0);
-//									System.out.println("dist1="+dist1);
-//									System.out.println("dist2="+dist2);
-//									System.out.println("dist3="+dist3);
-//									System.out.println("ss="+sizeSquared);
-//								}
-								
-								if (dist0 < radiusSquared || dist1 < radiusSquared || dist2 < radiusSquared || dist3 < radiusSquared) {
-									coveredSamples[xx + yy * sampleArrayWidth] = true;
-								}
-								
-							}
-						}
-						
-						bubbles.add(new Bubble(x,y,size,thisColor));
-						
+					int attempt = attemptBubble(grid, x, y, mask);
+					if (attempt == PLACED) {
+						sink.bubble(x * bubbleMinDiameter, y * bubbleMinDiameter, size * bubbleMinDiameter, grid.colors[x + y * sampleArrayWidth]);
+						placed ++;
+					} else if (attempt == REJECTED_EARLY) {
+						rejectedEarly ++;
 					}
-					
-					
-
 				}
 			}
+			timer.placementPass(size, candidates(grid, size), rejectedEarly, placed);
 		}
 		
-		BufferedImage circleizedImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-		Graphics2D g = (Graphics2D) circleizedImage.getGraphics();
-		g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-		g.setColor(new Color(240,240,240));
-		g.fillRect(0, 0, width, height);
-		for (Bubble b : bubbles) {
-			g.setColor(new Color(b.rgb));
-			g.fillOval(b.x * bubbleMinDiameter, b.y * bubbleMinDiameter, b.size * bubbleMinDiameter, b.size * bubbleMinDiameter);
+		sink.end();
+		
+	}
+	
+	/**
+	 * Circleizes an image, handing the bubbles placed so far to a listener after every size pass.
+	 * The largest bubbles are placed first, so early snapshots already show the shape of the result.
+	 * @param intervalMillis the least amount of milliseconds between snapshots; passes that take longer than this also get snapshots while they run.
+	 *   0 takes a snapshot after every pass and none in between
+	 * @param listener receives the snapshots on the calling thread, the last one once all bubbles are placed
+	 * @return the buffer holding all bubbles, largest first
+	 */
+	public BubbleBuffer circleizeProgressively(ImagePixels image, long intervalMillis, SnapshotListener listener) {
+		return circleizeProgressively(image, settings, intervalMillis, listener);
+	}
+	
+	public BubbleBuffer circleizeProgressively(ImagePixels image, CircleizerSettings settings, long intervalMillis, SnapshotListener listener) {
+		BubbleBuffer bubbles = new BubbleBuffer();
+		try {
+			circleize(image, settings, new ProgressiveSink(bubbles, Math.max(0, intervalMillis) * 1000000L, listener));
+		} catch (IOException e) {
+			throw new IllegalStateException("Buffering bubbles doesn't do any I/O", e);
 		}
-		g.dispose();
+		return bubbles;
+	}
+	
+	/**
+	 * Quickly finds a rough layout of bubbles for an image: the image is downscaled until it has at most maxPixels pixels,
+	 * circleized with the same settings, and the layout is scaled back up to the size of the image.
+	 * The smallest bubbles of the preview are as many times larger as the image was downscaled.
+	 * @param maxPixels the most pixels to circleize; about 250000 takes well under 100 ms
+	 * @return a buffer holding the bubbles of the preview, largest first, in pixel coordinates of the image
+	 */
+	public BubbleBuffer preview(ImagePixels image, int maxPixels) {
+		return preview(image, settings, maxPixels);
+	}
+	
+	public BubbleBuffer preview(ImagePixels image, CircleizerSettings settings, int maxPixels) {
+		long pixels = (long) image.getWidth() * image.getHeight();
+		int factor = 1;
+		if (maxPixels > 0 && pixels > maxPixels) {
+			factor = (int) Math.ceil(Math.sqrt((double) pixels / maxPixels));
+			factor = Math.min(factor, Math.min(image.getWidth(), image.getHeight()));
+		}
+		BubbleBuffer bubbles = placeBubbles(image.downscale(factor), settings, null);
+		bubbles.scale(factor, image.getWidth(), image.getHeight());
+		return bubbles;
+	}
+	
+	/**
+	 * @return the diameter, in samples, of the largest bubbles placed on an image of the given size: the largest power of the exponentiation
+	 *   whose bubbles, exponentiation times larger, would not fit in the image. Counted in longs, so huge exponentiations can't overflow.
+	 */
+	static int largestBubbleSize(int width, int height, int bubbleMinDiameter, int exponentiation) {
+		long compressionSize = bubbleMinDiameter;
+		long relativeDimension = 1;
+		while (compressionSize < width && compressionSize < height) {
+			relativeDimension *= exponentiation;
+			compressionSize *= exponentiation;
+		}
+		return (int) (relativeDimension / exponentiation);
+	}
+	
+	/**
+	 * Places a bubble at the given point of the sample grid if the samples it would cover are all uncovered and of the same color.
+	 * Only samples within the bubble's bounding square are read or written.
+	 * @return whether the bubble was placed
+	 */
+	static boolean tryBubble(SampleGrid grid, int x, int y, DiskMask mask) {
+		return attemptBubble(grid, x, y, mask) == PLACED;
+	}
+	
+	/**
+	 * Places a bubble like tryBubble does, telling why it wasn't placed.
+	 * @return PLACED, REJECTED_EARLY if the middle of the bubble was already covered, or REJECTED
+	 */
+	static int attemptBubble(SampleGrid grid, int x, int y, DiskMask mask) {
+		int size = mask.size;
+		
+		if (x + size > grid.width || y + size > grid.height) {
+			return REJECTED;
+		}
+		
+		boolean covered = grid.isCovered(x + size / 2, y + size / 2);
+		if (covered) {
+			return REJECTED_EARLY;
+		}
+		
+		int thisColor = grid.colors[x + y * grid.width];
 		
-		return circleizedImage;
+		if (!grid.canPlace(x, y, mask, thisColor)) {
+			return REJECTED;
+		}
+		
+		grid.cover(x, y, mask);
+		return PLACED;
+	}
+	
+	/**
+	 * @return the amount of places a bubble of the given size fits at on the grid
+	 */
+	private static long candidates(SampleGrid grid, int size) {
+		return (long) Math.max(0, grid.width - size + 1) * Math.max(0, grid.height - size + 1);
+	}
+	
+	/**
+	 * Places the bubbles of one size pass by splitting the sample grid into square tiles and circleizing them in parallel.
+	 * A bubble only touches samples within size of its corner, so a tile that is at least size wide only reaches into its right and lower neighbours.
+	 * The tiles are therefore handled in four phases, like the colors of a checkerboard, and no two tiles of the same phase share any samples.
+	 * Bubbles are collected per tile and handed to the sink in tile order after every phase, so the result doesn't depend on the amount of threads.
+	 */
+	private void placeBubblesTiled(SampleGrid grid, DiskMask mask, int bubbleMinDiameter, ForkJoinPool pool, BubbleSink sink, PhaseTimer timer) throws IOException {
 		
+		int size = mask.size;
+		int tileSize = Math.max(TILE_SIZE, (size + TILE_SIZE - 1) / TILE_SIZE * TILE_SIZE);
+		int tilesX = (grid.width + tileSize - 1) / tileSize;
+		int tilesY = (grid.height + tileSize - 1) / tileSize;
+		long placed = 0;
+		long rejectedEarly = 0;
 		
+		for (int phase = 0; phase < 4; phase ++) {
+			
+			final ArrayList<TileTask> tasks = new ArrayList<TileTask>();
+			for (int ty = phase / 2; ty < tilesY; ty += 2) {
+				for (int tx = phase % 2; tx < tilesX; tx += 2) {
+					tasks.add(new TileTask(grid, mask, bubbleMinDiameter, tx * tileSize, ty * tileSize, tileSize));
+				}
+			}
+			if (tasks.isEmpty()) {
+				continue;
+			}
+			
+			pool.invoke(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+				@Override
+				protected void compute() {
+					invokeAll(tasks);
+				}
+			});
+			
+			for (TileTask task : tasks) {
+				BubbleBuffer bubbles = task.placed;
+				for (int i = 0; i < bubbles.count; i ++) {
+					sink.bubble(bubbles.x[i], bubbles.y[i], bubbles.diameter[i], bubbles.rgb[i]);
+				}
+				placed += bubbles.count;
+				rejectedEarly += task.rejectedEarly;
+			}
+		}
+		timer.placementPass(size, candidates(grid, size), rejectedEarly, placed);
 	}
 	
 	/**
-	 * Returns a relative distance between two rgb int values.
-	 * @param rgb1 the first rgb int value
-	 * @param rgb2 the second rgb int value
-	 * @return the Euclidean distance between the colors' dimensions squared
+	 * Circleizes a single tile of the sample grid for one size pass.
+	 * Tiles are walked row by row, which follows the layout of the sample arrays.
+	 * The blocks of the uniformity index a tile looks at lie within the samples only it touches in its phase,
+	 * so other tiles never change them while it runs.
 	 */
-	private int fastDistance(int rgb1, int rgb2) {
-		int r1 = (rgb1 >> 16) & 0xFF;
-		int g1 = (rgb1 >> 8) & 0xFF;
-		int b1 = (rgb1) & 0xFF;
+	private static final class TileTask extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		final SampleGrid grid;
+		final DiskMask mask;
+		final int bubbleMinDiameter;
+		final int minX;
+		final int minY;
+		final int tileSize;
 		
-		int r2 = (rgb2 >> 16) & 0xFF;
-		int g2 = (rgb2 >> 8) & 0xFF;
-		int b2 = (rgb2) & 0xFF;
+		final BubbleBuffer placed = new BubbleBuffer(16);
+		long rejectedEarly;
 		
-		int dr = r2 - r1;
-		int dg = g2 - g1;
-		int db = b2 - b1;
+		TileTask(SampleGrid grid, DiskMask mask, int bubbleMinDiameter, int minX, int minY, int tileSize) {
+			this.grid = grid;
+			this.mask = mask;
+			this.bubbleMinDiameter = bubbleMinDiameter;
+			this.minX = minX;
+			this.minY = minY;
+			this.tileSize = tileSize;
+		}
 		
-		return (dr * dr + dg * dg + db * db);
+		@Override
+		protected void compute() {
+			int maxX = Math.min(minX + tileSize, grid.width - mask.size + 1);
+			int maxY = Math.min(minY + tileSize, grid.height - mask.size + 1);
+			UniformityIndex index = grid.index;
+			int skipLevel = index == null ? 0 : index.skipLevel(mask);
+			for (int y = minY; y < maxY; y ++) {
+				for (int x = minX; x < maxX; x ++) {
+					int skipped = skipLevel == 0 ? 0 : index.skipRight(x, y, mask, skipLevel);
+					if (skipped > 0) {
+						x += skipped - 1;
+						continue;
+					}
+					int attempt = attemptBubble(grid, x, y, mask);
+					if (attempt == PLACED) {
+						placed.add(x * bubbleMinDiameter, y * bubbleMinDiameter, mask.size * bubbleMinDiameter, grid.colors[x + y * grid.width]);
+					} else if (attempt == REJECTED_EARLY) {
+						rejectedEarly ++;
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Samples an image into a grid with buffers of its own, for circleizers that place bubbles on other grids.
+	 * @param classify whether to set every sample to its closest circle color, or keep the sampled color itself
+	 * @see #sample(ImagePixels, SampleGrid, CircleizerSettings, Scratch)
+	 */
+	static void sample(ImagePixels image, SampleGrid grid, CircleizerSettings settings, boolean classify) {
+		sample(image, grid, classify ? settings.palette : null, settings, new Scratch());
+	}
+	
+	/**
+	 * Sets every sample of the grid to the circle color closest to its block of pixels, going through the pixels row by row.
+	 */
+	private static void sample(ImagePixels image, SampleGrid grid, CircleizerSettings settings, Scratch scratch) {
+		sample(image, grid, settings.palette, settings, scratch);
 	}
 	
-	private int closestCircleColor(int rgb) {
-		int closestColor = -1;
-		int closestDistance = Integer.MAX_VALUE;
-		for (int i = 0; i < colors.length; i ++) {
-			int distance = fastDistance(colors[i], rgb);
-			if (distance < closestDistance) {
-				closestDistance = distance;
-				closestColor = colors[i];
+	/**
+	 * @param palette the circle colors to set the samples to, or null to keep the sampled colors
+	 */
+	private static void sample(ImagePixels image, SampleGrid grid, PaletteLookup palette, CircleizerSettings settings, Scratch scratch) {
+		int d = settings.bubbleMinDiameter;
+		
+		if (settings.samplingMode == SAMPLING_POINT) {
+			int[] row = scratch.row(0, grid.width);
+			for (int y = 0; y < grid.height; y ++) {
+				image.getRow(y * d, 0, d, grid.width, row, 0);
+				for (int x = 0; x < grid.width; x ++) {
+					grid.colors[x + y * grid.width] = palette == null ? row[x] & 0xFFFFFF : palette.closestColor(row[x]);
+				}
+			}
+			return;
+		}
+		
+		int[] pixels = scratch.row(0, grid.width * d);
+		int[] sumR = scratch.row(1, grid.width);
+		int[] sumG = scratch.row(2, grid.width);
+		int[] sumB = scratch.row(3, grid.width);
+		int blockSize = d * d;
+		for (int y = 0; y < grid.height; y ++) {
+			for (int x = 0; x < grid.width; x ++) {
+				sumR[x] = 0;
+				sumG[x] = 0;
+				sumB[x] = 0;
+			}
+			for (int row = y * d; row < (y + 1) * d; row ++) {
+				image.getRow(row, 0, 1, pixels.length, pixels, 0);
+				int i = 0;
+				for (int x = 0; x < grid.width; x ++) {
+					int r = 0;
+					int g = 0;
+					int b = 0;
+					for (int end = i + d; i < end; i ++) {
+						int pixel = pixels[i];
+						r += (pixel >> 16) & 0xFF;
+						g += (pixel >> 8) & 0xFF;
+						b += pixel & 0xFF;
+					}
+					sumR[x] += r;
+					sumG[x] += g;
+					sumB[x] += b;
+				}
+			}
+			for (int x = 0; x < grid.width; x ++) {
+				int mean = ((sumR[x] / blockSize) << 16) | ((sumG[x] / blockSize) << 8) | (sumB[x] / blockSize);
+				grid.colors[x + y * grid.width] = palette == null ? mean : palette.closestColor(mean);
+			}
+		}
+	}
+	
+	private Scratch borrowScratch() {
+		Scratch scratch = scratches.borrow();
+		return scratch != null ? scratch : new Scratch();
+	}
+	
+	/**
+	 * What a single call needs besides its settings: the sample grid, the rows pixels are read into, and the bubbles before they are drawn.
+	 * They are kept at the size of the largest image they were used for.
+	 */
+	private static final class Scratch {
+		
+		SampleGrid grid;
+		final int[][] rows = new int[4][];
+		final BubbleBuffer bubbles = new BubbleBuffer();
+		
+		SampleGrid grid(int width, int height) {
+			if (grid == null || !grid.reset(width, height)) {
+				grid = new SampleGrid(width, height);
+			}
+			return grid;
+		}
+		
+		/**
+		 * @return the row buffer with the given index, at least length ints long
+		 */
+		int[] row(int index, int length) {
+			if (rows[index] == null || rows[index].length < length) {
+				rows[index] = new int[length];
 			}
+			return rows[index];
 		}
-		return closestColor;
 	}
 	
 }
@@ -0,0 +1,57 @@
+package qmpzaltb.circleizer;
+
+import java.io.File;
+import java.util.HashSet;
+
+/**
+ * Which files can be circleized, and where their circleized images go.
+ * 
+ * @author qmpzaltb
+ *
+ */
+public class CircleizerFiles {
+	
+	/**
+	 * Output files handed out by reserveCircleizedFile that may not have been written yet.
+	 */
+	private static final HashSet<File> reserved = new HashSet<File>();
+	
+	/**
+	 * @return whether a file has the extension of an image that can be circleized
+	 */
+	public static boolean isImageFile(File f) {
+		String filename = f.getName().toLowerCase();
+		return filename.endsWith(".jpg") || filename.endsWith(".png") || filename.endsWith(".bmp") || filename.endsWith(".jpeg");
+	}
+	
+	/**
+	 * Finds a file to write the circleized image of the given file to: the same name with "_circleized" before a ".png" extension,
+	 * and a number after "_circleized" if that file already exists.
+	 * Files returned by this method count as existing until they're released, so concurrent callers never get the same file.
+	 */
+	public static File reserveCircleizedFile(File f) {
+		String path = f.getAbsolutePath();
+		int extension = path.lastIndexOf('.');
+		String filename = (extension > path.lastIndexOf(File.separatorChar) ? path.substring(0, extension) : path) + "_circleized";
+		synchronized (reserved) {
+			int attempt = 1;
+			File writeTo = new File(filename + ".png");
+			while (writeTo.exists() || reserved.contains(writeTo)) {
+				writeTo = new File(filename + attempt + ".png");
+				attempt ++;
+			}
+			reserved.add(writeTo);
+			return writeTo;
+		}
+	}
+	
+	/**
+	 * Releases a file returned by reserveCircleizedFile, once it has been written or won't be.
+	 */
+	public static void releaseCircleizedFile(File writeTo) {
+		synchronized (reserved) {
+			reserved.remove(writeTo);
+		}
+	}
+	
+}
@@ -45,30 +45,29 @@ public class CircleizerGUI {
 		cf.setColorAmount(16);
 		
 		for (File f : imageFiles) {
-			BufferedImage image;
+			//only the pixels the circleizer samples are decoded, and the colors are found in and circleized from them, without copying them
+			ImagePixels pixels;
 			try {
-				image = ImageIO.read(f);
+				pixels = ImageDecoder.read(f, c.getSettings());
 			} catch (IOException e) {
+				pixels = null;
+			}
+			if (pixels == null) {
 				errors.add("Failed to get image from " + f.getAbsolutePath());
 				continue;
 			}
 			
-			int[] colors = cf.findColors(image);
-			c.setCircleColors(colors);
-			BufferedImage circleized = c.circleize(image);
-			String filename = f.getAbsolutePath().substring(0, f.getAbsolutePath().lastIndexOf('.')) + "_circleized";
-			int attempt = 1;
-			File writeTo = new File(filename + ".png");
-			while (writeTo.exists()) {
-				writeTo = new File(filename + attempt + ".png");
-				attempt ++;
-			}
+			int[] colors = cf.findColors(pixels);
+			BufferedImage circleized = c.circleize(pixels, c.getSettings().withCircleColors(colors));
+			File writeTo = CircleizerFiles.reserveCircleizedFile(f);
 			
 			try {
 				ImageIO.write(circleized, "png", writeTo);
 			} catch (IOException e) {
 				errors.add("Failed to write bubbled image from " + f.getAbsolutePath() + " to " + writeTo.getAbsolutePath());
 				continue;
+			} finally {
+				CircleizerFiles.releaseCircleizedFile(writeTo);
 			}
 			
 			successes.add("Circleized image from " + f.getAbsolutePath() + " to " + writeTo.getAbsolutePath());
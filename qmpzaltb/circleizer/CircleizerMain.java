@@ -1,11 +1,28 @@
 package qmpzaltb.circleizer;
 
+import java.io.IOException;
+import java.util.Arrays;
+
 public class CircleizerMain {
 
 	public static void main(String[] args) {
 		
 		if (args.length == 0) {
 			CircleizerGUI.start();
+		} else if (args[0].equals("-serve")) {
+			System.setProperty("java.awt.headless", "true");
+			try {
+				CircleizerServer.main(Arrays.copyOfRange(args, 1, args.length));
+			} catch (IOException e) {
+				System.err.println("Failed to start server: " + e.getMessage());
+				System.exit(1);
+			}
+		} else {
+			System.setProperty("java.awt.headless", "true");
+			int failures = BatchCircleizer.run(args, System.out, System.err);
+			if (failures != 0) {
+				System.exit(failures < 0 ? 2 : 1);
+			}
 		}
 		
 		
@@ -0,0 +1,512 @@
+package qmpzaltb.circleizer;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Circleizes images sent over HTTP.
+ * <p>
+ * POST the bytes of an image to /circleize. The query can set colors, resolution, diameter, exponent and placement like the batch mode does,
+ * up to MAX_COLORS, MAX_RESOLUTION, MAX_DIAMETER and MAX_EXPONENT, and format: png (the default), svg, or bin for the BinaryBubbleWriter format.
+ * <p>
+ * Results are kept in a cache keyed by a hash of the image bytes and the settings, up to a total amount of bytes,
+ * dropping the least recently used results first. Identical requests that arrive while the first one is still being circleized
+ * wait for its result instead of circleizing the image again. The X-Circleizer-Cache response header tells which of these happened.
+ * <p>
+ * Requests are handled on virtual threads where the runtime has them, and on a growing pool of threads otherwise.
+ * All requests share one Circleizer and one ColorFinder.
+ * <p>
+ * GET /metrics returns how long the phases of all requests took and what placing their bubbles did, in the Prometheus text format,
+ * followed by the counters of the result and palette caches.
+ * 
+ * @author qmpzaltb
+ *
+ */
+public class CircleizerServer {
+	
+	public static final int DEFAULT_PORT = 8080;
+	public static final long DEFAULT_CACHE_SIZE = 64L * 1024 * 1024;
+	public static final int DEFAULT_MAX_REQUEST_SIZE = 32 * 1024 * 1024;
+	
+	/**
+	 * The largest colors, resolution, diameter and exponent a request may ask for, so that no request can make finding its colors
+	 * or placing its bubbles take unbounded time or memory. A resolution of 128 keeps the color cube of a request at 2M cells.
+	 */
+	public static final int MAX_COLORS = 256;
+	public static final int MAX_RESOLUTION = 128;
+	public static final int MAX_DIAMETER = 1024;
+	public static final int MAX_EXPONENT = 1024;
+	
+	private final HttpServer server;
+	private final ExecutorService executor;
+	
+	private final Circleizer circleizer = new Circleizer();
+	private final ColorFinder colorFinder = new ColorFinder();
+	private final PaletteCache paletteCache = new PaletteCache();
+	private final HistogramInstrumentation metrics = new HistogramInstrumentation();
+	
+	private final ResultCache cache = new ResultCache(DEFAULT_CACHE_SIZE);
+	private final ConcurrentHashMap<String, CompletableFuture<Result>> inFlight = new ConcurrentHashMap<String, CompletableFuture<Result>>();
+	
+	/**
+	 * How many requests were answered from the cache, circleized, or waited for an identical request.
+	 */
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	
+	private volatile int maxRequestSize = DEFAULT_MAX_REQUEST_SIZE;
+	
+	public CircleizerServer(int port) throws IOException {
+		// the same image is often asked for with other bubble settings, which can reuse its colors
+		colorFinder.setPaletteCache(paletteCache);
+		colorFinder.setInstrumentation(metrics);
+		circleizer.setInstrumentation(metrics);
+		server = HttpServer.create(new InetSocketAddress(port), 0);
+		executor = newRequestExecutor();
+		server.setExecutor(executor);
+		server.createContext("/circleize", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					handleCircleize(exchange);
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		server.createContext("/metrics", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					handleMetrics(exchange);
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Sets how many bytes of results are kept at most. Results larger than that are never kept.
+	 */
+	public void setCacheSize(long cacheSize) {
+		cache.setMaxBytes(cacheSize);
+	}
+	
+	/**
+	 * Sets the largest image, in bytes, that is accepted.
+	 */
+	public void setMaxRequestSize(int maxRequestSize) {
+		this.maxRequestSize = maxRequestSize;
+	}
+	
+	public InetSocketAddress getAddress() {
+		return server.getAddress();
+	}
+	
+	public void start() {
+		server.start();
+	}
+	
+	/**
+	 * Stops accepting requests, waits up to the given amount of seconds for the ones being handled, and stops.
+	 */
+	public void stop(int delay) {
+		server.stop(delay);
+		executor.shutdown();
+	}
+	
+	/**
+	 * Starts a server on the given port, or the default one, and keeps running until the process is stopped.
+	 */
+	public static void main(String[] args) throws IOException {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+		CircleizerServer server = new CircleizerServer(port);
+		server.start();
+		System.out.println("Circleizing at http://localhost:" + server.getAddress().getPort() + "/circleize");
+	}
+	
+	/**
+	 * @return an executor starting a virtual thread per task if the runtime has virtual threads, or else a pool of platform threads that grows as needed
+	 */
+	private static ExecutorService newRequestExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool();
+		}
+	}
+	
+	private void handleCircleize(HttpExchange exchange) throws IOException {
+		if (!exchange.getRequestMethod().equals("POST")) {
+			exchange.getResponseHeaders().set("Allow", "POST");
+			sendError(exchange, 405, "POST the bytes of an image");
+			return;
+		}
+		
+		Request request;
+		try {
+			request = new Request(exchange.getRequestURI().getRawQuery());
+		} catch (IllegalArgumentException e) {
+			sendError(exchange, 400, e.getMessage());
+			return;
+		}
+		
+		byte[] image = readBody(exchange.getRequestBody(), maxRequestSize);
+		if (image == null) {
+			sendError(exchange, 413, "Images can be at most " + maxRequestSize + " bytes");
+			return;
+		}
+		
+		String key = request.key(image);
+		String outcome = "hit";
+		Result result = cache.get(key);
+		if (result != null) {
+			hits.incrementAndGet();
+		} else {
+			CompletableFuture<Result> future = new CompletableFuture<Result>();
+			CompletableFuture<Result> running = inFlight.putIfAbsent(key, future);
+			if (running == null) {
+				try {
+					// an identical request may have finished since the lookup; it put its result in the cache before it left inFlight
+					result = cache.get(key);
+					if (result != null) {
+						hits.incrementAndGet();
+					} else {
+						outcome = "miss";
+						misses.incrementAndGet();
+						result = request.circleize(image);
+						cache.put(key, result);
+					}
+					future.complete(result);
+				} catch (RuntimeException e) {
+					future.completeExceptionally(e);
+				} catch (Error e) {
+					// the requests waiting for this one must not wait forever, even if this thread can't go on
+					future.completeExceptionally(e);
+					throw e;
+				} finally {
+					inFlight.remove(key);
+				}
+			} else {
+				outcome = "coalesced";
+				coalesced.incrementAndGet();
+				future = running;
+			}
+			try {
+				result = future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				sendError(exchange, 503, "Interrupted");
+				return;
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof UnreadableImageException) {
+					sendError(exchange, 415, cause.getMessage());
+				} else {
+					sendError(exchange, 500, "Failed to circleize: " + cause);
+				}
+				return;
+			}
+		}
+		
+		exchange.getResponseHeaders().set("Content-Type", result.contentType);
+		exchange.getResponseHeaders().set("X-Circleizer-Cache", outcome);
+		exchange.sendResponseHeaders(200, result.body.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(result.body);
+		out.close();
+	}
+	
+	private void handleMetrics(HttpExchange exchange) throws IOException {
+		if (!exchange.getRequestMethod().equals("GET")) {
+			exchange.getResponseHeaders().set("Allow", "GET");
+			sendError(exchange, 405, "GET the metrics");
+			return;
+		}
+		
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		Writer writer = new OutputStreamWriter(body, StandardCharsets.UTF_8);
+		metrics.writeTo(writer);
+		writer.write("# TYPE circleizer_requests_total counter\n");
+		writer.write("circleizer_requests_total{cache=\"hit\"} " + hits.get() + "\n");
+		writer.write("circleizer_requests_total{cache=\"miss\"} " + misses.get() + "\n");
+		writer.write("circleizer_requests_total{cache=\"coalesced\"} " + coalesced.get() + "\n");
+		writer.write("# TYPE circleizer_result_cache_bytes gauge\n");
+		writer.write("circleizer_result_cache_bytes " + cache.getBytes() + "\n");
+		writer.write("# TYPE circleizer_palette_cache_hits_total counter\n");
+		writer.write("circleizer_palette_cache_hits_total " + paletteCache.getHits() + "\n");
+		writer.write("# TYPE circleizer_palette_cache_misses_total counter\n");
+		writer.write("circleizer_palette_cache_misses_total " + paletteCache.getMisses() + "\n");
+		writer.write("# TYPE circleizer_palette_cache_bytes gauge\n");
+		writer.write("circleizer_palette_cache_bytes " + paletteCache.getBytes() + "\n");
+		writer.flush();
+		
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+		exchange.sendResponseHeaders(200, body.size());
+		OutputStream out = exchange.getResponseBody();
+		body.writeTo(out);
+		out.close();
+	}
+	
+	/**
+	 * @return the whole body, or null if it is longer than maxBytes
+	 */
+	private static byte[] readBody(InputStream in, int maxBytes) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte[] buffer = new byte[64 * 1024];
+		for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+			if (body.size() + read > maxBytes) {
+				return null;
+			}
+			body.write(buffer, 0, read);
+		}
+		return body.toByteArray();
+	}
+	
+	private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+		byte[] body = (message + "\n").getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(status, body.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(body);
+		out.close();
+	}
+	
+	/**
+	 * The settings and format of a request, parsed from its query.
+	 */
+	private final class Request {
+		
+		final PaletteSettings paletteSettings;
+		final CircleizerSettings circleizerSettings;
+		final String format;
+		
+		Request(String query) {
+			Map<String, String> parameters = new HashMap<String, String>();
+			if (query != null) {
+				for (String pair : query.split("&")) {
+					if (pair.isEmpty()) {
+						continue;
+					}
+					int equals = pair.indexOf('=');
+					String name = URLDecoder.decode(equals < 0 ? pair : pair.substring(0, equals), StandardCharsets.UTF_8);
+					String value = URLDecoder.decode(equals < 0 ? "" : pair.substring(equals + 1), StandardCharsets.UTF_8);
+					parameters.put(name, value);
+				}
+			}
+			
+			format = parameters.containsKey("format") ? parameters.remove("format") : "png";
+			if (!format.equals("png") && !format.equals("svg") && !format.equals("bin")) {
+				throw new IllegalArgumentException("Unknown format " + format + ", use png, svg or bin");
+			}
+			
+			// the palette and bubble settings are checked here so bad values are rejected before the image is read
+			PaletteSettings palette = PaletteSettings.DEFAULT.withResolution(128).withColorAmount(16);
+			CircleizerSettings circleizer = CircleizerSettings.DEFAULT;
+			if (parameters.containsKey("placement")) {
+				circleizer = circleizer.withPlacementMode(Circleizer.placementMode(parameters.remove("placement")));
+			}
+			for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+				String name = parameter.getKey();
+				int value;
+				try {
+					value = Integer.parseInt(parameter.getValue());
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException(name + " must be a number");
+				}
+				if (name.equals("colors")) {
+					palette = palette.withColorAmount(checkRange(name, value, 1, MAX_COLORS));
+				} else if (name.equals("resolution")) {
+					palette = palette.withResolution(checkRange(name, value, 1, MAX_RESOLUTION));
+				} else if (name.equals("diameter")) {
+					circleizer = circleizer.withBubbleMinDiameter(checkRange(name, value, 1, MAX_DIAMETER));
+				} else if (name.equals("exponent")) {
+					circleizer = circleizer.withBubbleSizeExponentiation(checkRange(name, value, 2, MAX_EXPONENT));
+				} else {
+					throw new IllegalArgumentException("Unknown parameter " + name);
+				}
+			}
+			paletteSettings = palette;
+			circleizerSettings = circleizer;
+		}
+		
+		/**
+		 * @return the value of a parameter, if it is from min to max (inclusive)
+		 */
+		int checkRange(String name, int value, int min, int max) {
+			if (value < min || value > max) {
+				throw new IllegalArgumentException(name + " must be from " + min + " to " + max + ": " + value);
+			}
+			return value;
+		}
+		
+		/**
+		 * @return the cache key of this request for the given image: a hash of the image bytes followed by the settings
+		 */
+		String key(byte[] image) {
+			MessageDigest digest;
+			try {
+				digest = MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException("Every Java runtime has SHA-256", e);
+			}
+			StringBuilder key = new StringBuilder();
+			for (byte b : digest.digest(image)) {
+				key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			}
+			key.append('/').append(paletteSettings.resolutionR).append('/').append(paletteSettings.colorAmount);
+			key.append('/').append(circleizerSettings.bubbleMinDiameter).append('/').append(circleizerSettings.bubbleSizeExponentiation);
+			key.append('/').append(circleizerSettings.placementMode);
+			key.append('/').append(format);
+			return key.toString();
+		}
+		
+		Result circleize(byte[] bytes) {
+			PhaseTimer timer = PhaseTimer.start(metrics);
+			ImagePixels pixels;
+			try {
+				pixels = ImageDecoder.read(new ByteArrayInputStream(bytes), circleizerSettings);
+			} catch (IOException e) {
+				pixels = null;
+			}
+			if (pixels == null) {
+				throw new UnreadableImageException();
+			}
+			
+			// the colors are found in the same pixels whatever the bubble settings are, so that requests with other ones reuse them
+			ImagePixels paletteSource;
+			try {
+				paletteSource = ImageDecoder.readPaletteSource(new ByteArrayInputStream(bytes), pixels);
+			} catch (IOException e) {
+				throw new UnreadableImageException();
+			}
+			timer.phase(Instrumentation.PHASE_DECODE);
+			int[] colors = colorFinder.findColors(paletteSource, paletteSettings);
+			CircleizerSettings settings = circleizerSettings.withCircleColors(colors);
+			
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			try {
+				if (format.equals("png")) {
+					BufferedImage circleized = circleizer.circleize(pixels, settings);
+					timer.restart();
+					ImageIO.write(circleized, "png", out);
+					timer.phase(Instrumentation.PHASE_ENCODE);
+					return new Result(out.toByteArray(), "image/png");
+				}
+				if (format.equals("svg")) {
+					Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+					circleizer.circleize(pixels, settings, new SvgBubbleWriter(writer));
+					writer.flush();
+					return new Result(out.toByteArray(), "image/svg+xml");
+				}
+				circleizer.circleize(pixels, settings, new BinaryBubbleWriter(out));
+				return new Result(out.toByteArray(), "application/octet-stream");
+			} catch (IOException e) {
+				throw new IllegalStateException("Writing to memory doesn't fail", e);
+			}
+		}
+	}
+	
+	/**
+	 * Thrown when the bytes of a request aren't an image ImageIO can read.
+	 */
+	private static final class UnreadableImageException extends RuntimeException {
+		
+		private static final long serialVersionUID = 1L;
+		
+		UnreadableImageException() {
+			super("Failed to get image from the request");
+		}
+	}
+	
+	/**
+	 * A response body with its content type.
+	 */
+	private static final class Result {
+		
+		final byte[] body;
+		final String contentType;
+		
+		Result(byte[] body, String contentType) {
+			this.body = body;
+			this.contentType = contentType;
+		}
+	}
+	
+	/**
+	 * Results by key, in order of use, up to a total amount of bytes.
+	 */
+	private static final class ResultCache {
+		
+		private final LinkedHashMap<String, Result> results = new LinkedHashMap<String, Result>(16, 0.75f, true);
+		private long bytes;
+		private long maxBytes;
+		
+		ResultCache(long maxBytes) {
+			this.maxBytes = maxBytes;
+		}
+		
+		synchronized Result get(String key) {
+			return results.get(key);
+		}
+		
+		synchronized void put(String key, Result result) {
+			if (result.body.length > maxBytes) {
+				return;
+			}
+			Result replaced = results.put(key, result);
+			if (replaced != null) {
+				bytes -= replaced.body.length;
+			}
+			bytes += result.body.length;
+			evict();
+		}
+		
+		synchronized void setMaxBytes(long maxBytes) {
+			this.maxBytes = Math.max(0, maxBytes);
+			evict();
+		}
+		
+		synchronized long getBytes() {
+			return bytes;
+		}
+		
+		private void evict() {
+			Iterator<Result> leastRecent = results.values().iterator();
+			while (bytes > maxBytes && leastRecent.hasNext()) {
+				bytes -= leastRecent.next().body.length;
+				leastRecent.remove();
+			}
+		}
+	}
+	
+}
@@ -0,0 +1,183 @@
+package qmpzaltb.circleizer;
+
+import java.awt.Color;
+
+/**
+ * The settings of a single circleization: the circle colors, the bubble sizes, sampling and threads.
+ * Settings never change once created; every withX method returns a copy with one setting changed,
+ * so the same settings can be handed to any amount of concurrent calls.
+ * 
+ * @author qmpzaltb
+ *
+ */
+public final class CircleizerSettings {
+	
+	/**
+	 * The settings of a new Circleizer: the Java colors, the default bubble sizes, point sampling, exponential placement and a single thread.
+	 */
+	public static final CircleizerSettings DEFAULT = new CircleizerSettings(rgbOf(Circleizer.JAVA_COLORS), 0xF0F0F0,
+			Circleizer.DEFAULT_BUBBLE_MIN_DIAMETER, Circleizer.DEFAULT_BUBBLE_SIZE_EXPONENTIATION, Circleizer.SAMPLING_POINT, Circleizer.PLACEMENT_EXPONENTIAL, 1);
+	
+	/**
+	 * The allowed Circle colors in RGB form
+	 */
+	final int[] colors;
+	
+	/**
+	 * Finds the closest of the allowed Circle colors
+	 */
+	final PaletteLookup palette;
+	
+	/**
+	 * The background color in RGB form.
+	 */
+	final int backgroundColor;
+	
+	final int bubbleMinDiameter;
+	final int bubbleSizeExponentiation;
+	
+	/**
+	 * How the color of a sample is taken from its block of bubbleMinDiameter x bubbleMinDiameter pixels.
+	 */
+	final int samplingMode;
+	
+	/**
+	 * Which bubble sizes are placed, and how.
+	 */
+	final int placementMode;
+	
+	/**
+	 * The amount of threads used to place and draw bubbles. 1 places them on the calling thread.
+	 */
+	final int parallelism;
+	
+	private CircleizerSettings(int[] colors, int backgroundColor, int bubbleMinDiameter, int bubbleSizeExponentiation, int samplingMode, int placementMode, int parallelism) {
+		this.colors = colors;
+		this.palette = PaletteLookup.forColors(colors);
+		this.backgroundColor = backgroundColor;
+		this.bubbleMinDiameter = bubbleMinDiameter;
+		this.bubbleSizeExponentiation = bubbleSizeExponentiation;
+		this.samplingMode = samplingMode;
+		this.placementMode = placementMode;
+		this.parallelism = parallelism;
+	}
+	
+	private CircleizerSettings(CircleizerSettings settings, int backgroundColor, int bubbleMinDiameter, int bubbleSizeExponentiation, int samplingMode, int placementMode, int parallelism) {
+		this.colors = settings.colors;
+		this.palette = settings.palette;
+		this.backgroundColor = backgroundColor;
+		this.bubbleMinDiameter = bubbleMinDiameter;
+		this.bubbleSizeExponentiation = bubbleSizeExponentiation;
+		this.samplingMode = samplingMode;
+		this.placementMode = placementMode;
+		this.parallelism = parallelism;
+	}
+	
+	public CircleizerSettings withCircleColors(Color... colors) {
+		return withCircleColors(rgbOf(colors));
+	}
+	
+	public CircleizerSettings withCircleColors(int... colors) {
+		if (colors.length == 0) {
+			throw new IllegalArgumentException("At least one circle color is needed");
+		}
+		return new CircleizerSettings(colors.clone(), backgroundColor, bubbleMinDiameter, bubbleSizeExponentiation, samplingMode, placementMode, parallelism);
+	}
+	
+	public CircleizerSettings withBackgroundColor(int backgroundColor) {
+		return new CircleizerSettings(this, backgroundColor, bubbleMinDiameter, bubbleSizeExponentiation, samplingMode, placementMode, parallelism);
+	}
+	
+	/**
+	 * @param bubbleMinDiameter the diameter in pixels of the smallest bubbles, and the size of the blocks the image is sampled in, a positive non-zero value
+	 */
+	public CircleizerSettings withBubbleMinDiameter(int bubbleMinDiameter) {
+		if (bubbleMinDiameter < 1) {
+			throw new IllegalArgumentException("bubbleMinDiameter must be positive: " + bubbleMinDiameter);
+		}
+		return new CircleizerSettings(this, backgroundColor, bubbleMinDiameter, bubbleSizeExponentiation, samplingMode, placementMode, parallelism);
+	}
+	
+	/**
+	 * @param bubbleSizeExponentiation how many times larger every size of bubbles is than the next smaller one, at least 2
+	 */
+	public CircleizerSettings withBubbleSizeExponentiation(int bubbleSizeExponentiation) {
+		if (bubbleSizeExponentiation < 2) {
+			throw new IllegalArgumentException("bubbleSizeExponentiation must be at least 2: " + bubbleSizeExponentiation);
+		}
+		return new CircleizerSettings(this, backgroundColor, bubbleMinDiameter, bubbleSizeExponentiation, samplingMode, placementMode, parallelism);
+	}
+	
+	/**
+	 * @param samplingMode Circleizer.SAMPLING_POINT or Circleizer.SAMPLING_MEAN
+	 * @see Circleizer#setSamplingMode(int)
+	 */
+	public CircleizerSettings withSamplingMode(int samplingMode) {
+		if (samplingMode != Circleizer.SAMPLING_POINT && samplingMode != Circleizer.SAMPLING_MEAN) {
+			throw new IllegalArgumentException("Unknown sampling mode: " + samplingMode);
+		}
+		return new CircleizerSettings(this, backgroundColor, bubbleMinDiameter, bubbleSizeExponentiation, samplingMode, placementMode, parallelism);
+	}
+	
+	/**
+	 * @param placementMode Circleizer.PLACEMENT_EXPONENTIAL or Circleizer.PLACEMENT_DISTANCE
+	 * @see Circleizer#setPlacementMode(int)
+	 */
+	public CircleizerSettings withPlacementMode(int placementMode) {
+		if (placementMode != Circleizer.PLACEMENT_EXPONENTIAL && placementMode != Circleizer.PLACEMENT_DISTANCE) {
+			throw new IllegalArgumentException("Unknown placement mode: " + placementMode);
+		}
+		return new CircleizerSettings(this, backgroundColor, bubbleMinDiameter, bubbleSizeExponentiation, samplingMode, placementMode, parallelism);
+	}
+	
+	/**
+	 * @param parallelism the amount of threads, a positive non-zero value
+	 * @see Circleizer#setParallelism(int)
+	 */
+	public CircleizerSettings withParallelism(int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+		}
+		return new CircleizerSettings(this, backgroundColor, bubbleMinDiameter, bubbleSizeExponentiation, samplingMode, placementMode, parallelism);
+	}
+	
+	/**
+	 * @return a copy of the allowed circle colors in RGB form
+	 */
+	public int[] getCircleColors() {
+		return colors.clone();
+	}
+	
+	public int getBackgroundColor() {
+		return backgroundColor;
+	}
+	
+	public int getBubbleMinDiameter() {
+		return bubbleMinDiameter;
+	}
+	
+	public int getBubbleSizeExponentiation() {
+		return bubbleSizeExponentiation;
+	}
+	
+	public int getSamplingMode() {
+		return samplingMode;
+	}
+	
+	public int getPlacementMode() {
+		return placementMode;
+	}
+	
+	public int getParallelism() {
+		return parallelism;
+	}
+	
+	private static int[] rgbOf(Color[] colors) {
+		int[] rgb = new int[colors.length];
+		for (int i = 0; i < colors.length; i ++) {
+			rgb[i] = colors[i].getRGB();
+		}
+		return rgb;
+	}
+	
+}
@@ -13,47 +13,66 @@ import java.util.ArrayList;
  * @author qmpzaltb
  *
  */
-public class ColorFinder {
+public class ColorFinder implements PaletteExtractor {
 
-	int resolutionR;
-	int resolutionG;
-	int resolutionB;
+	/**
+	 * The settings used by calls that aren't given their own. The setters replace them with a changed copy,
+	 * so calls that are already running keep the settings they started with.
+	 */
+	private volatile PaletteSettings settings;
 	
-	int rDiv;
-	int gDiv;
-	int bDiv;
+	/**
+	 * Cubic tables of finished calls, kept so the next calls can count into them instead of allocating new ones.
+	 */
+	private final ScratchPool<ColorHistogram> histograms = new ScratchPool<ColorHistogram>(Math.max(2, Runtime.getRuntime().availableProcessors()));
 	
-	int colorAmount;
+	/**
+	 * Tables for the tasks of parallel counts, kept between counts. The first task of a count counts into the histogram itself.
+	 */
+	private final ScratchPool<int[]> countTables = new ScratchPool<int[]>(Math.max(2, Runtime.getRuntime().availableProcessors()));
 	
-
+	/**
+	 * Keeps the tables and colors of images this ColorFinder has seen, or null to count every image again.
+	 */
+	private volatile PaletteCache paletteCache;
 	
+	private volatile Instrumentation instrumentation = Instrumentation.NONE;
+	
+	/**
+	 * Creates a ColorFinder with the default settings.
+	 * A ColorFinder can find the colors of any amount of images at once; calls that need different settings can pass their own PaletteSettings.
+	 */
 	public ColorFinder() {
-		setResolution(32);
-		
-		colorAmount = 8;
+		settings = PaletteSettings.DEFAULT;
+	}
+	
+	public PaletteSettings getSettings() {
+		return settings;
+	}
+	
+	public void setSettings(PaletteSettings settings) {
+		if (settings == null) {
+			throw new IllegalArgumentException("settings must not be null");
+		}
+		this.settings = settings;
 	}
 	
-	public void setResolutionR(int resolution) {
-		resolutionR = resolution;
-		rDiv = 256 / resolution;
+	public synchronized void setResolutionR(int resolution) {
+		settings = settings.withResolutionR(resolution);
 	}
-	public void setResolutionG(int resolution) {
-		resolutionG = resolution;
-		gDiv = 256 / resolution;
+	public synchronized void setResolutionG(int resolution) {
+		settings = settings.withResolutionG(resolution);
 	}
-	public void setResolutionB(int resolution) {
-		resolutionB = resolution;
-		bDiv = 256 / resolution;
+	public synchronized void setResolutionB(int resolution) {
+		settings = settings.withResolutionB(resolution);
 	}
 	/**
 	 * Sets the resolution with which to find colors.
 	 * Larger resolutions will take more time, but will return more accurate colors.
 	 * @param resolution an integer value representing resolution, from 1-256 (inclusive)
 	 */
-	public void setResolution(int resolution) {
-		setResolutionR(resolution);
-		setResolutionG(resolution);
-		setResolutionB(resolution);
+	public synchronized void setResolution(int resolution) {
+		settings = settings.withResolution(resolution);
 	}
 	
 	/**
@@ -61,17 +80,160 @@ public class ColorFinder {
 	 * Powers of two are the least glitchy. Other positive non-zero numbers should work, but haven't been tested.
 	 * @param colorAmount the amount of colors to find, a positive, non-zero value that doesn't exceed resolution^3
 	 */
-	public void setColorAmount(int colorAmount) {
-		this.colorAmount = colorAmount;
+	public synchronized void setColorAmount(int colorAmount) {
+		settings = settings.withColorAmount(colorAmount);
+	}
+	
+	/**
+	 * Sets the amount of threads used to count the colors of an image.
+	 * Every thread counts a band of the image into its own table, so more threads also take more memory at high resolutions.
+	 * @param parallelism the amount of threads, a positive non-zero value
+	 */
+	public synchronized void setParallelism(int parallelism) {
+		settings = settings.withParallelism(parallelism);
+	}
+	
+	/**
+	 * Sets how many pixels to count at most. Larger images are split into square blocks and only one pixel of every block is counted.
+	 * Colors of big images are found much faster this way, and barely change.
+	 * @param pixelBudget the approximate amount of pixels to count, or 0 to count every pixel
+	 */
+	public synchronized void setPixelBudget(int pixelBudget) {
+		settings = settings.withPixelBudget(pixelBudget);
+	}
+	
+	/**
+	 * Sets a cache to keep the counted tables and found colors of images in.
+	 * Finding the colors of an image that is still in the cache then only hashes its pixels;
+	 * finding another amount of colors only runs the extractor on the kept table.
+	 * @param paletteCache the cache, which may be shared with other ColorFinders, or null to count every image again
+	 */
+	public void setPaletteCache(PaletteCache paletteCache) {
+		this.paletteCache = paletteCache;
+	}
+	
+	public PaletteCache getPaletteCache() {
+		return paletteCache;
+	}
+	
+	/**
+	 * Sets what counting the colors of an image and finding colors in the counted table report to.
+	 */
+	public void setInstrumentation(Instrumentation instrumentation) {
+		if (instrumentation == null) {
+			throw new IllegalArgumentException("instrumentation must not be null, use Instrumentation.NONE");
+		}
+		this.instrumentation = instrumentation;
+	}
+	
+	public Instrumentation getInstrumentation() {
+		return instrumentation;
 	}
 	
 	/**
 	 * Finds distinct colors for the given BufferedImage with the settings defined in this ColorFinder.
 	 * @return an int[] of a size defined in this ColorFinder with colors in RGB format.
 	 */
+	@Override
 	public int[] findColors(BufferedImage image) {
+		return findColors(ImagePixels.of(image), settings);
+	}
+	
+	@Override
+	public int[] findColors(ImagePixels image) {
+		return findColors(image, settings);
+	}
+	
+	@Override
+	public int[] findColors(ImagePixels image, PaletteSettings settings) {
+		// of an image decoded with subsampling, only the decoded pixels are counted
+		image = image.decodedPixels();
+		PaletteCache cache = paletteCache;
+		if (cache != null) {
+			return cache.entryFor(this, image, settings).colors(this, settings.colorAmount);
+		}
+		ColorHistogram histogram = countColors(image, settings);
+		try {
+			return split(histogram, settings.colorAmount);
+		} finally {
+			histograms.giveBack(histogram);
+		}
+	}
+	
+	@Override
+	public PaletteResult extractPalette(BufferedImage image) {
+		return extractPalette(ImagePixels.of(image), settings);
+	}
+	
+	@Override
+	public PaletteResult extractPalette(ImagePixels image) {
+		return extractPalette(image, settings);
+	}
+	
+	@Override
+	public PaletteResult extractPalette(ImagePixels image, PaletteSettings settings) {
+		long start = System.nanoTime();
+		image = image.decodedPixels();
+		PaletteCache cache = paletteCache;
+		if (cache != null) {
+			PaletteCache.Entry entry = cache.entryFor(this, image, settings);
+			int[] colors = entry.colors(this, settings.colorAmount);
+			long nanos = System.nanoTime() - start;
+			return new PaletteResult(colors, nanos, entry.histogram.meanSquaredError(colors));
+		}
+		ColorHistogram histogram = countColors(image, settings);
+		try {
+			int[] colors = split(histogram, settings.colorAmount);
+			long nanos = System.nanoTime() - start;
+			return new PaletteResult(colors, nanos, histogram.meanSquaredError(colors));
+		} finally {
+			histograms.giveBack(histogram);
+		}
+	}
+	
+	/**
+	 * Counts the colors of an image into a cubic table with the resolution of the given settings.
+	 * The table is taken from the ones kept by this ColorFinder if there is one of that resolution.
+	 */
+	ColorHistogram countColors(ImagePixels image, PaletteSettings settings) {
+		//a cubic-table where each cell represents the amount of pixel colors that fell within that point
+		ColorHistogram histogram = histograms.borrow();
+		if (histogram != null && histogram.hasResolution(settings.resolutionR, settings.resolutionG, settings.resolutionB)) {
+			histogram.reset();
+		} else {
+			histogram = new ColorHistogram(settings.resolutionR, settings.resolutionG, settings.resolutionB);
+		}
 		
-		System.out.println("#debug: Finding colors...");
+		PhaseTimer timer = PhaseTimer.start(instrumentation);
+		int parallelism = settings.parallelism;
+		histogram.count(image, parallelism > 1 ? WorkerPools.get(parallelism) : null, parallelism, settings.pixelBudget, countTables);
+		timer.phase(Instrumentation.PHASE_HISTOGRAM);
+		return histogram;
+	}
+	
+	/**
+	 * @return what tells the colors this ColorFinder finds in a table apart from those of other ColorFinders with the same color amount
+	 */
+	String paletteKey() {
+		return getClass().getName();
+	}
+	
+	/**
+	 * Finds distinct colors in a counted cubic table, reporting the time it takes to the instrumentation.
+	 */
+	final int[] split(ColorHistogram histogram, int colorAmount) {
+		PhaseTimer timer = PhaseTimer.start(instrumentation);
+		int[] colors = findColors(histogram, colorAmount);
+		timer.phase(Instrumentation.PHASE_SPLIT);
+		return colors;
+	}
+	
+	/**
+	 * Finds distinct colors in a counted cubic table.
+	 * This is the orthogonal-splitplane method; other palette extractors replace it.
+	 * @param colorAmount the amount of colors to find
+	 */
+	int[] findColors(ColorHistogram histogram, int colorAmount) {
 		
 		/**
 		 * A three-dimensional region.
@@ -108,38 +270,20 @@ public class ColorFinder {
 			
 			/**
 			 * Divides the region as well as it can into the desired amount of divisions
-			 * @param cube an array representing the cubic table of populations
+			 * @param histogram the cubic table of populations
 			 * @param desiredDivisions the amount of divisions to divide the region into
 			 */
-			public void divide(int[] cube, int desiredDivisions) {
+			public void divide(ColorHistogram histogram, int desiredDivisions) {
 				
 				if (desiredDivisions == 1) {
 					return;
 				}
 				
-				//planar slices of the regions to avoid recalculating more populations than necessary
-				int [] rPlanePopulations = new int[rMax - rMin]; // r is the normal to these planes
-				int [] gPlanePopulations = new int[gMax - gMin]; // g is the normal
-				int [] bPlanePopulations = new int[bMax - bMin]; // b ...
-				
-				int totalPopulation = 0;
-				
 				int bestDivisionType = 0;
 				int bestDivisionLocation = -1;
 				float bestDivisionDifference = Float.MAX_VALUE;
 				
-				//calculating the populations of planar slices
-				for (int r = rMin; r < rMax; r++) {
-					for (int g = gMin; g < gMax; g ++) {
-						for (int b = bMin; b < bMax; b ++) {
-							int index = indexOf(r, g, b);
-							rPlanePopulations[r - rMin] += cube[index];
-							gPlanePopulations[g - gMin] += cube[index];
-							bPlanePopulations[b - bMin] += cube[index];
-							totalPopulation += cube[index];
-						}
-					}
-				}
+				int totalPopulation = population(histogram, rMin, rMax, gMin, gMax, bMin, bMax);
 				
 				// divisions desired for the subdivisions
 				// e.g., 7 divisions creates a desired ratio of 4/3 = 1.33 
@@ -150,11 +294,10 @@ public class ColorFinder {
 				
 				// POTENTIAL SADNESS: algorithm seeks to make the 0(r/g/b) side larger than the other side if divisions are odd
 				// looking for best divisions along the r-normalled planes
-				int proPopulation = 0;
-				int antiPopulation = totalPopulation;
-				for (int i = 0; i < rPlanePopulations.length - 1; i ++){
-					proPopulation += rPlanePopulations[i];
-					antiPopulation -= rPlanePopulations[i];
+				// the population on the near side of every plane is a single lookup in the summed-volume table
+				for (int i = 0; i < rMax - rMin - 1; i ++){
+					int proPopulation = population(histogram, rMin, rMin + i + 1, gMin, gMax, bMin, bMax);
+					int antiPopulation = totalPopulation - proPopulation;
 					float populationRatio = ((float) proPopulation) / ((float) antiPopulation);
 					float ratioDifference = Math.abs(populationRatio - desiredRatio);
 					if (ratioDifference < bestDivisionDifference) {
@@ -165,11 +308,9 @@ public class ColorFinder {
 				}
 				
 				///... the g-normalled planes
-				proPopulation = 0;
-				antiPopulation = totalPopulation;
-				for (int i = 0; i < gPlanePopulations.length - 1; i ++){
-					proPopulation += gPlanePopulations[i];
-					antiPopulation -= gPlanePopulations[i];
+				for (int i = 0; i < gMax - gMin - 1; i ++){
+					int proPopulation = population(histogram, rMin, rMax, gMin, gMin + i + 1, bMin, bMax);
+					int antiPopulation = totalPopulation - proPopulation;
 					float populationRatio = ((float) proPopulation) / ((float) antiPopulation);
 					float ratioDifference = Math.abs(populationRatio - desiredRatio);
 					if (ratioDifference < bestDivisionDifference) {
@@ -180,11 +321,9 @@ public class ColorFinder {
 				}
 				
 				//... the b-normalled planes
-				proPopulation = 0;
-				antiPopulation = totalPopulation;
-				for (int i = 0; i < bPlanePopulations.length - 1; i ++){
-					proPopulation += bPlanePopulations[i];
-					antiPopulation -= bPlanePopulations[i];
+				for (int i = 0; i < bMax - bMin - 1; i ++){
+					int proPopulation = population(histogram, rMin, rMax, gMin, gMax, bMin, bMin + i + 1);
+					int antiPopulation = totalPopulation - proPopulation;
 					float populationRatio = ((float) proPopulation) / ((float) antiPopulation);
 					float ratioDifference = Math.abs(populationRatio - desiredRatio);
 					if (ratioDifference < bestDivisionDifference) {
@@ -214,8 +353,8 @@ public class ColorFinder {
 				}
 				}
 				
-				subregions[0].divide(cube, desiredDivisions0);
-				subregions[1].divide(cube, desiredDivisions1);
+				subregions[0].divide(histogram, desiredDivisions0);
+				subregions[1].divide(histogram, desiredDivisions1);
 				
 			}
 			
@@ -234,32 +373,10 @@ public class ColorFinder {
 			}
 		}
 		
-		int width = image.getWidth();
-		int height = image.getHeight();
-		
-		int[] pixels = image.getRGB(0, 0, width, height, new int[width * height], 0, width);
-		
 		int[] returnColors = new int[colorAmount];
 		
-		//a one-dimensional representation of a cubic-table
-		//each array cell represents the amount of pixel colors that fell within that point in the cubic table
-		int[] colorCube = new int[resolutionR * resolutionG * resolutionB];
-		System.out.println("#debug: Created color cube of size " + colorCube.length);
-		
-		//populating the color cube from the pixel array
-		for (int i = 0; i < pixels.length; i ++) {
-			int r = (pixels[i] >> 16) & 0xFF;
-			int g = (pixels[i] >> 8) & 0xFF;
-			int b = (pixels[i]) & 0xFF;
-			colorCube[indexOf(r / rDiv, g / gDiv, b / bDiv)] += 1;
-		}
-		
-		for (int i = 0; i < colorCube.length; i ++) {
-			colorCube[i] += 1; //workaround to handling zero population in the region code
-		}
-		
-		Region cubeRegion = new Region(0, resolutionR, 0, resolutionG, 0, resolutionB);
-		cubeRegion.divide(colorCube, colorAmount);
+		Region cubeRegion = new Region(0, histogram.resolutionR, 0, histogram.resolutionG, 0, histogram.resolutionB);
+		cubeRegion.divide(histogram, colorAmount);
 		
 		ArrayList<Region> lowestRegions = new ArrayList<Region>();
 		cubeRegion.getLowestRegions(lowestRegions);
@@ -267,25 +384,28 @@ public class ColorFinder {
 		// The colors are the centers of the lowest regions.
 		// I mean, you could go through all the pixels in the region and get the true center of pixels in that region...
 		// but who has the time for that?
+		int rDiv = histogram.rDiv;
+		int gDiv = histogram.gDiv;
+		int bDiv = histogram.bDiv;
 		for (int i = 0; i < returnColors.length; i ++) {
 			Region region = lowestRegions.get(i);
 			int rMid = ((region.rMax * rDiv) + (region.rMin * rDiv)) / 2 - 1;
 			int gMid = ((region.gMax * gDiv) + (region.gMin * gDiv)) / 2 - 1;
 			int bMid = ((region.bMax * bDiv) + (region.bMin * bDiv)) / 2 - 1;
 			int rgb = (rMid << 16) | (gMid << 8) | bMid;
-			System.out.println("#debug: Region: " + region.toString());
-			System.out.println("#debug: RGB color: " +Integer.toString(rgb, 16));
 			returnColors[i] = rgb;
 		}
 		
-		System.out.println("#debug: Found colors!");
-		
 		return returnColors;
 		
 	}
 	
-	private int indexOf(int r, int g, int b) {
-		return r + g * rDiv + b * rDiv * bDiv;
+	/**
+	 * Counts the population of a box of the cubic table.
+	 * Every cell counts as one more than the pixels that fell within it, as a workaround to handling zero population in the region code.
+	 */
+	private int population(ColorHistogram histogram, int rMin, int rMax, int gMin, int gMax, int bMin, int bMax) {
+		return histogram.count(rMin, rMax, gMin, gMax, bMin, bMax) + (rMax - rMin) * (gMax - gMin) * (bMax - bMin);
 	}
 	
 }
@@ -0,0 +1,302 @@
+package qmpzaltb.circleizer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A cubic table of how many pixels of an image fell within every point of a downscaled RGB cube, stored as its summed-volume table.
+ * Any box of the cube can be counted with eight lookups.
+ * 
+ * @author qmpzaltb
+ *
+ */
+final class ColorHistogram {
+	
+	/**
+	 * The amount of rows a histogram task reads at once.
+	 */
+	private static final int STRIP_HEIGHT = 16;
+	
+	final int resolutionR;
+	final int resolutionG;
+	final int resolutionB;
+	
+	final int rDiv;
+	final int gDiv;
+	final int bDiv;
+	
+	/**
+	 * The summed-volume table, with an extra plane of zeroes before each dimension.
+	 */
+	final int[] volume;
+	
+	/**
+	 * The amount of pixels that were counted, weighted like the table.
+	 */
+	int pixelCount;
+	
+	ColorHistogram(int resolutionR, int resolutionG, int resolutionB) {
+		this.resolutionR = resolutionR;
+		this.resolutionG = resolutionG;
+		this.resolutionB = resolutionB;
+		rDiv = 256 / resolutionR;
+		gDiv = 256 / resolutionG;
+		bDiv = 256 / resolutionB;
+		volume = new int[(resolutionR + 1) * (resolutionG + 1) * (resolutionB + 1)];
+	}
+	
+	/**
+	 * @return whether this table has the given resolution, so it can be reset and counted again
+	 */
+	boolean hasResolution(int resolutionR, int resolutionG, int resolutionB) {
+		return this.resolutionR == resolutionR && this.resolutionG == resolutionG && this.resolutionB == resolutionB;
+	}
+	
+	/**
+	 * Empties the table so another image can be counted into it.
+	 */
+	void reset() {
+		for (int i = 0; i < volume.length; i ++) {
+			volume[i] = 0;
+		}
+		pixelCount = 0;
+	}
+	
+	/**
+	 * Counts the pixels of an image and sums up the table.
+	 * The image is read in strips of rows, split over the given amount of tasks that each count into their own table before they are merged.
+	 * There are at most as many tasks as the pool has threads, and the tables of all but the first are taken from the given scratch tables.
+	 * @param pool the pool to run the tasks in, or null to count on the calling thread
+	 * @param tasks the amount of tasks to split the image into
+	 * @param scratchTables where the tables of the tasks are borrowed from and given back to, or null to allocate them
+	 * @param pixelBudget if positive and smaller than the image, only about this many pixels are counted:
+	 *   one from every square block of the image, from a row and column within the block that differ from block to block.
+	 *   Every counted pixel then counts as many times as its block has pixels, so the table still adds up to about the size of the image.
+	 */
+	void count(final ImagePixels image, ForkJoinPool pool, int tasks, int pixelBudget, ScratchPool<int[]> scratchTables) {
+		final int width = image.getWidth();
+		final int height = image.getHeight();
+		
+		int step = 1;
+		if (pixelBudget > 0 && (long) width * height > pixelBudget) {
+			step = (int) Math.ceil(Math.sqrt((double) width * height / pixelBudget));
+		}
+		final int sampleStep = step;
+		final int blockRows = (height + step - 1) / step;
+		
+		tasks = Math.max(1, Math.min(tasks, blockRows));
+		if (pool != null) {
+			// more tasks than threads would only take up more tables
+			tasks = Math.min(tasks, pool.getParallelism());
+		}
+		if (pool == null || tasks == 1) {
+			countRows(image, 0, blockRows, sampleStep, volume);
+		} else {
+			final ArrayList<RecursiveAction> actions = new ArrayList<RecursiveAction>();
+			final ArrayList<int[]> tables = new ArrayList<int[]>();
+			for (int task = 0; task < tasks; task ++) {
+				final int minBlockRow = blockRows * task / tasks;
+				final int maxBlockRow = blockRows * (task + 1) / tasks;
+				final int[] table = task == 0 ? volume : borrowTable(scratchTables);
+				tables.add(table);
+				actions.add(new RecursiveAction() {
+					private static final long serialVersionUID = 1L;
+					@Override
+					protected void compute() {
+						countRows(image, minBlockRow, maxBlockRow, sampleStep, table);
+					}
+				});
+			}
+			pool.invoke(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+				@Override
+				protected void compute() {
+					invokeAll(actions);
+				}
+			});
+			for (int task = 1; task < tasks; task ++) {
+				int[] table = tables.get(task);
+				for (int i = 0; i < volume.length; i ++) {
+					volume[i] += table[i];
+				}
+				if (scratchTables != null) {
+					scratchTables.giveBack(table);
+				}
+			}
+		}
+		
+		sum();
+		pixelCount = volume[indexOf(resolutionR, resolutionG, resolutionB)];
+	}
+	
+	/**
+	 * @return an empty table the size of this one, borrowed from the scratch tables if they have one of that size
+	 */
+	private int[] borrowTable(ScratchPool<int[]> scratchTables) {
+		int[] table = scratchTables == null ? null : scratchTables.borrow();
+		if (table == null || table.length != volume.length) {
+			return new int[volume.length];
+		}
+		Arrays.fill(table, 0);
+		return table;
+	}
+	
+	/**
+	 * Counts the pixels of the given rows of blocks into a table. Blocks are step pixels high and wide.
+	 */
+	private void countRows(ImagePixels image, int minBlockRow, int maxBlockRow, int step, int[] table) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		
+		if (step == 1) {
+			int[] strip = new int[width * STRIP_HEIGHT];
+			for (int y = minBlockRow; y < maxBlockRow; y += STRIP_HEIGHT) {
+				int rows = Math.min(STRIP_HEIGHT, maxBlockRow - y);
+				image.getRows(y, rows, strip);
+				for (int i = 0, end = rows * width; i < end; i ++) {
+					table[bucketOf(strip[i])] += 1;
+				}
+			}
+			return;
+		}
+		
+		int weight = step * step;
+		int[] row = new int[width];
+		for (int blockRow = minBlockRow; blockRow < maxBlockRow; blockRow ++) {
+			int y = Math.min(height - 1, blockRow * step + jitter(blockRow, -1, step));
+			image.getRow(y, 0, 1, width, row, 0);
+			for (int blockColumn = 0; blockColumn * step < width; blockColumn ++) {
+				int x = Math.min(width - 1, blockColumn * step + jitter(blockRow, blockColumn, step));
+				table[bucketOf(row[x])] += weight;
+			}
+		}
+	}
+	
+	/**
+	 * @return a pseudo-random offset from 0 to step (exclusive) that is the same every time for the same block
+	 */
+	private static int jitter(int blockRow, int blockColumn, int step) {
+		int hash = blockRow * 0x9E3779B1 + blockColumn * 0x85EBCA77;
+		hash ^= hash >>> 15;
+		hash *= 0x2C1B3C6D;
+		hash ^= hash >>> 13;
+		return (hash >>> 1) % step;
+	}
+	
+	/**
+	 * @return the index of the cell of the table that an RGB color is counted in
+	 */
+	private int bucketOf(int rgb) {
+		int r = (rgb >> 16) & 0xFF;
+		int g = (rgb >> 8) & 0xFF;
+		int b = rgb & 0xFF;
+		return indexOf(Math.min(r / rDiv, resolutionR - 1) + 1, Math.min(g / gDiv, resolutionG - 1) + 1, Math.min(b / bDiv, resolutionB - 1) + 1);
+	}
+	
+	/**
+	 * @return the index of a point in the table
+	 */
+	int indexOf(int r, int g, int b) {
+		return r + (g + b * (resolutionG + 1)) * (resolutionR + 1);
+	}
+	
+	/**
+	 * Turns the counted table into its summed-volume table in place.
+	 * Afterwards, every cell holds the total population of the cells at or before it in all three dimensions.
+	 */
+	private void sum() {
+		int rStride = 1;
+		int gStride = resolutionR + 1;
+		int bStride = (resolutionR + 1) * (resolutionG + 1);
+		for (int b = 0; b <= resolutionB; b ++) {
+			for (int g = 0; g <= resolutionG; g ++) {
+				for (int r = 1; r <= resolutionR; r ++) {
+					volume[indexOf(r, g, b)] += volume[indexOf(r, g, b) - rStride];
+				}
+			}
+		}
+		for (int b = 0; b <= resolutionB; b ++) {
+			for (int g = 1; g <= resolutionG; g ++) {
+				for (int r = 0; r <= resolutionR; r ++) {
+					volume[indexOf(r, g, b)] += volume[indexOf(r, g, b) - gStride];
+				}
+			}
+		}
+		for (int b = 1; b <= resolutionB; b ++) {
+			for (int g = 0; g <= resolutionG; g ++) {
+				for (int r = 0; r <= resolutionR; r ++) {
+					volume[indexOf(r, g, b)] += volume[indexOf(r, g, b) - bStride];
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Counts the pixels within a box of the cube.
+	 * The minimums are inclusive and the maximums are exclusive, in cube coordinates from 0 to the resolution.
+	 */
+	int count(int rMin, int rMax, int gMin, int gMax, int bMin, int bMax) {
+		return volume[indexOf(rMax, gMax, bMax)]
+				- volume[indexOf(rMin, gMax, bMax)]
+				- volume[indexOf(rMax, gMin, bMax)]
+				- volume[indexOf(rMax, gMax, bMin)]
+				+ volume[indexOf(rMin, gMin, bMax)]
+				+ volume[indexOf(rMin, gMax, bMin)]
+				+ volume[indexOf(rMax, gMin, bMin)]
+				- volume[indexOf(rMin, gMin, bMin)];
+	}
+	
+	/**
+	 * Counts the pixels within a single cell of the cube, in cube coordinates from 0 to the resolution (exclusive).
+	 */
+	int cellCount(int r, int g, int b) {
+		return count(r, r + 1, g, g + 1, b, b + 1);
+	}
+	
+	/**
+	 * @return the red value in the middle of a cell with the given red cube coordinate
+	 */
+	int centerR(int r) {
+		return r * rDiv + rDiv / 2;
+	}
+	
+	int centerG(int g) {
+		return g * gDiv + gDiv / 2;
+	}
+	
+	int centerB(int b) {
+		return b * bDiv + bDiv / 2;
+	}
+	
+	/**
+	 * @return the average squared RGB distance from the counted pixels, at the centers of their cells, to the closest of the given colors
+	 */
+	double meanSquaredError(int[] colors) {
+		if (pixelCount == 0 || colors.length == 0) {
+			return 0;
+		}
+		double error = 0;
+		for (int b = 0; b < resolutionB; b ++) {
+			for (int g = 0; g < resolutionG; g ++) {
+				for (int r = 0; r < resolutionR; r ++) {
+					int population = cellCount(r, g, b);
+					if (population == 0) {
+						continue;
+					}
+					int closestDistance = Integer.MAX_VALUE;
+					for (int i = 0; i < colors.length; i ++) {
+						int dr = centerR(r) - ((colors[i] >> 16) & 0xFF);
+						int dg = centerG(g) - ((colors[i] >> 8) & 0xFF);
+						int db = centerB(b) - (colors[i] & 0xFF);
+						closestDistance = Math.min(closestDistance, dr * dr + dg * dg + db * db);
+					}
+					error += (double) closestDistance * population;
+				}
+			}
+		}
+		return error / pixelCount;
+	}
+	
+}
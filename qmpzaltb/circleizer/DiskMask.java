@@ -0,0 +1,117 @@
+package qmpzaltb.circleizer;
+
+/**
+ * The samples covered by a bubble, stored as one horizontal span per row of the bubble's bounding square.
+ * A sample is covered if any of its corners lies within the circle inscribed in the bounding square.
+ * 
+ * @author qmpzaltb
+ *
+ */
+final class DiskMask {
+	
+	/**
+	 * Masks indexed by size, created as needed and shared by all threads.
+	 */
+	private static volatile DiskMask[] masks = new DiskMask[0];
+	
+	/**
+	 * The side length of the bounding square, in samples.
+	 */
+	final int size;
+	
+	/**
+	 * The first covered column of every row, relative to the left of the bounding square.
+	 */
+	final int[] spanStart;
+	
+	/**
+	 * The column after the last covered column of every row. Rows without covered samples have spanEnd == spanStart.
+	 */
+	final int[] spanEnd;
+	
+	/**
+	 * The side length of the largest square of covered samples centered in the bounding square, and its first row and column.
+	 * Every bubble covers at least this square.
+	 */
+	final int innerSize;
+	final int innerStart;
+	
+	/**
+	 * @return the shared mask of the given size
+	 */
+	static DiskMask of(int size) {
+		DiskMask[] current = masks;
+		if (size < current.length && current[size] != null) {
+			return current[size];
+		}
+		synchronized (DiskMask.class) {
+			current = masks;
+			if (size >= current.length) {
+				DiskMask[] grown = new DiskMask[Math.max(size + 1, current.length * 2)];
+				System.arraycopy(current, 0, grown, 0, current.length);
+				current = grown;
+			}
+			if (current[size] == null) {
+				current[size] = new DiskMask(size);
+			}
+			masks = current;
+			return current[size];
+		}
+	}
+	
+	DiskMask(int size) {
+		this.size = size;
+		spanStart = new int[size];
+		spanEnd = new int[size];
+		
+		float radiusSquared = (size / 2.0f) * (size / 2.0f);
+		float mid = size / 2.0f;
+		
+		for (int yy = 0; yy < size; yy ++) {
+			int start = size;
+			int end = 0;
+			for (int xx = 0; xx < size; xx ++) {
+				
+				float dx0 = mid - xx;
+				float dx1 = mid - (xx + 1);
+				float dy0 = mid - yy;
+				float dy1 = mid - (yy + 1);
+				
+				float dist0 = dx0 * dx0 + dy0 * dy0;
+				float dist1 = dx0 * dx0 + dy1 * dy1;
+				float dist2 = dx1 * dx1 + dy1 * dy1;
+				float dist3 = dx1 * dx1 + dy0 * dy0;
+				
+				if (dist0 < radiusSquared || dist1 < radiusSquared || dist2 < radiusSquared || dist3 < radiusSquared) {
+					start = Math.min(start, xx);
+					end = xx + 1;
+				}
+			}
+			if (end == 0) {
+				start = 0;
+			}
+			spanStart[yy] = start;
+			spanEnd[yy] = end;
+		}
+		
+		int inner = size;
+		while (inner > 0 && !coversSquare((size - inner) / 2, inner)) {
+			inner --;
+		}
+		innerSize = inner;
+		innerStart = (size - inner) / 2;
+	}
+	
+	/**
+	 * @return whether every sample of the square with the given first row and column and side length is covered
+	 */
+	private boolean coversSquare(int start, int side) {
+		for (int yy = start; yy < start + side; yy ++) {
+			if (spanStart[yy] > start || spanEnd[yy] < start + side) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+}
@@ -0,0 +1,302 @@
+package qmpzaltb.circleizer;
+
+import java.io.IOException;
+
+/**
+ * Places bubbles of every diameter, not only the powers of the bubble size exponentiation, largest first.
+ * <p>
+ * Every sample on a color edge, where a neighbour has another color, and every covered sample is a feature.
+ * An exact Euclidean distance transform gives every sample its squared distance to the nearest feature,
+ * which bounds the largest bubble centered on it: a bubble can't reach past the edge of its color.
+ * Every sample goes into a max-heap keyed by that bound. The top of the heap is checked lazily:
+ * if the distance of the sample shrank since it was pushed, it is pushed again with its new bound,
+ * and if a bubble of its key doesn't fit, it is pushed again one size smaller. Otherwise the bubble is placed.
+ * Keys only ever shrink, so bubbles are placed largest first, as a BubbleSink expects.
+ * <p>
+ * Placing a bubble makes its samples features. Only samples close enough to the bubble for that to matter are updated,
+ * with their distance to the disk of the bubble, so the transform stays a close upper bound that placing checks anyway.
+ * The transform and filling the heap take O(N log N) for N samples. A sample whose bubble doesn't fit is pushed again only one size smaller,
+ * since whether a bubble fits isn't known for a size without testing it, so in the worst case, on large flat areas that neighbouring bubbles
+ * partly cover, a sample is tested at every size from its bound D down to 2, each test checking O(D) spans: about O(N D^2 log N) altogether.
+ * Samples no bubble of 2 or more fits on get a bubble of 1 at the end, like the last pass of the other placement.
+ *
+ * @author qmpzaltb
+ *
+ */
+final class DistancePlacement {
+	
+	private final SampleGrid grid;
+	private final int bubbleMinDiameter;
+	private final int maxSize;
+	
+	/**
+	 * The squared distance of every sample to the nearest feature, in samples.
+	 */
+	private final float[] distances;
+	
+	/**
+	 * A binary max-heap of keys holding the size bound in the upper half and the sample in the lower half,
+	 * so equal sizes are taken in row order.
+	 */
+	private long[] heap;
+	private int heapSize;
+	
+	private DistancePlacement(SampleGrid grid, int bubbleMinDiameter, int maxSize) {
+		this.grid = grid;
+		this.bubbleMinDiameter = bubbleMinDiameter;
+		this.maxSize = maxSize;
+		distances = new float[grid.width * grid.height];
+		heap = new long[Math.max(16, grid.width * grid.height / 4)];
+	}
+	
+	/**
+	 * Places bubbles of all sizes up to maxSize on a sampled grid with up-to-date color edges, handing them to the sink largest first.
+	 * @param maxSize the largest diameter in samples
+	 */
+	static void place(SampleGrid grid, int bubbleMinDiameter, int maxSize, BubbleSink sink, PhaseTimer timer) throws IOException {
+		new DistancePlacement(grid, bubbleMinDiameter, maxSize).place(sink, timer);
+	}
+	
+	private void place(BubbleSink sink, PhaseTimer timer) throws IOException {
+		int width = grid.width;
+		int height = grid.height;
+		if (width == 0 || height == 0) {
+			return;
+		}
+		transform();
+		for (int i = 0; i < width * height; i ++) {
+			int bound = bound(distances[i]);
+			if (bound >= 2) {
+				push(bound, i);
+			}
+		}
+		
+		// counted for the instrumentation per size, and reported whenever the size goes down
+		int passSize = 0;
+		long candidates = 0;
+		long rejectedEarly = 0;
+		long placed = 0;
+		
+		while (heapSize > 0) {
+			long top = pop();
+			int size = (int) (top >>> 32);
+			int sample = width * height - 1 - (int) top;
+			if (size != passSize) {
+				if (passSize != 0) {
+					timer.placementPass(passSize, candidates, rejectedEarly, placed);
+				}
+				passSize = size;
+				candidates = 0;
+				rejectedEarly = 0;
+				placed = 0;
+			}
+			candidates ++;
+			
+			int cx = sample % width;
+			int cy = sample / width;
+			if (grid.isCovered(cx, cy)) {
+				rejectedEarly ++;
+				continue;
+			}
+			int bound = bound(distances[sample]);
+			if (bound < size) {
+				if (bound >= 2) {
+					push(bound, sample);
+				}
+				continue;
+			}
+			
+			int x = cx - (size - 1) / 2;
+			int y = cy - (size - 1) / 2;
+			DiskMask mask = DiskMask.of(size);
+			int color = grid.colors[sample];
+			if (x < 0 || y < 0 || !grid.canPlace(x, y, mask, color)) {
+				if (size > 2) {
+					push(size - 1, sample);
+				}
+				continue;
+			}
+			grid.cover(x, y, mask);
+			sink.bubble(x * bubbleMinDiameter, y * bubbleMinDiameter, size * bubbleMinDiameter, color);
+			placed ++;
+			update(x, y, size);
+		}
+		if (passSize != 0) {
+			timer.placementPass(passSize, candidates, rejectedEarly, placed);
+		}
+		
+		placed = 0;
+		rejectedEarly = 0;
+		for (int y = 0; y < height; y ++) {
+			for (int x = 0; x < width; x ++) {
+				if (grid.isCovered(x, y)) {
+					rejectedEarly ++;
+				} else {
+					sink.bubble(x * bubbleMinDiameter, y * bubbleMinDiameter, bubbleMinDiameter, grid.colors[x + y * width]);
+					placed ++;
+				}
+			}
+		}
+		timer.placementPass(1, (long) width * height, rejectedEarly, placed);
+	}
+	
+	/**
+	 * @return the largest diameter a bubble centered on a sample with the given squared distance to the nearest feature could have.
+	 *   The samples on the edge of a bubble can be features themselves, and bubbles of even diameter are centered half a sample off,
+	 *   so the bound is a little more than twice the distance.
+	 */
+	private int bound(float distance) {
+		return Math.min(maxSize, (int) (2 * Math.sqrt(distance)) + 2);
+	}
+	
+	/**
+	 * Computes the exact squared Euclidean distance of every sample to the nearest feature, or to the outside of the grid,
+	 * a column at a time and then a row at a time (Felzenszwalb and Huttenlocher).
+	 */
+	private void transform() {
+		int width = grid.width;
+		int height = grid.height;
+		int[] colors = grid.colors;
+		int n = Math.max(width, height) + 2;
+		double[] f = new double[n];
+		double[] d = new double[n];
+		int[] v = new int[n];
+		double[] z = new double[n + 1];
+		
+		// the outside of the grid counts as features one sample beyond every edge
+		for (int x = 0; x < width; x ++) {
+			f[0] = 0;
+			for (int y = 0; y < height; y ++) {
+				int i = x + y * width;
+				int color = colors[i];
+				boolean feature = grid.isCovered(x, y)
+						|| (x > 0 && colors[i - 1] != color) || (x + 1 < width && colors[i + 1] != color)
+						|| (y > 0 && colors[i - width] != color) || (y + 1 < height && colors[i + width] != color);
+				f[y + 1] = feature ? 0 : Double.MAX_VALUE;
+			}
+			f[height + 1] = 0;
+			transform(f, height + 2, d, v, z);
+			for (int y = 0; y < height; y ++) {
+				distances[x + y * width] = (float) d[y + 1];
+			}
+		}
+		for (int y = 0; y < height; y ++) {
+			f[0] = 0;
+			for (int x = 0; x < width; x ++) {
+				f[x + 1] = distances[x + y * width];
+			}
+			f[width + 1] = 0;
+			transform(f, width + 2, d, v, z);
+			for (int x = 0; x < width; x ++) {
+				distances[x + y * width] = (float) d[x + 1];
+			}
+		}
+	}
+	
+	/**
+	 * The one-dimensional squared distance transform of f: the lower envelope of the parabolas rooted at every f[q].
+	 */
+	private static void transform(double[] f, int n, double[] d, int[] v, double[] z) {
+		int k = 0;
+		v[0] = 0;
+		z[0] = Double.NEGATIVE_INFINITY;
+		z[1] = Double.POSITIVE_INFINITY;
+		for (int q = 1; q < n; q ++) {
+			if (f[q] == Double.MAX_VALUE) {
+				continue;
+			}
+			double s = intersection(f, q, v[k]);
+			while (s <= z[k]) {
+				k --;
+				s = intersection(f, q, v[k]);
+			}
+			k ++;
+			v[k] = q;
+			z[k] = s;
+			z[k + 1] = Double.POSITIVE_INFINITY;
+		}
+		k = 0;
+		for (int q = 0; q < n; q ++) {
+			while (z[k + 1] < q) {
+				k ++;
+			}
+			double dq = q - v[k];
+			d[q] = dq * dq + f[v[k]];
+		}
+	}
+	
+	/**
+	 * @return where the parabolas rooted at q and p intersect
+	 */
+	private static double intersection(double[] f, int q, int p) {
+		return ((f[q] + (double) q * q) - (f[p] + (double) p * p)) / (2.0 * q - 2.0 * p);
+	}
+	
+	/**
+	 * Lowers the distances of the samples around a bubble that was just placed to their distance to its disk.
+	 * Samples further away than the bubble is wide keep their distance: it can't get below what a bubble of this size needs.
+	 */
+	private void update(int x, int y, int size) {
+		int width = grid.width;
+		int margin = size / 2 + 2;
+		float radius = size / 2f;
+		float centerX = x + radius;
+		float centerY = y + radius;
+		int minX = Math.max(0, x - margin);
+		int minY = Math.max(0, y - margin);
+		int maxX = Math.min(width - 1, x + size + margin);
+		int maxY = Math.min(grid.height - 1, y + size + margin);
+		for (int yy = minY; yy <= maxY; yy ++) {
+			float dy = yy + 0.5f - centerY;
+			for (int xx = minX; xx <= maxX; xx ++) {
+				float dx = xx + 0.5f - centerX;
+				float distance = (float) Math.sqrt(dx * dx + dy * dy) - radius;
+				float squared = distance <= 0 ? 0 : distance * distance;
+				int i = xx + yy * width;
+				if (squared < distances[i]) {
+					distances[i] = squared;
+				}
+			}
+		}
+	}
+	
+	private void push(int size, int sample) {
+		if (heapSize == heap.length) {
+			long[] grown = new long[heapSize * 2];
+			System.arraycopy(heap, 0, grown, 0, heapSize);
+			heap = grown;
+		}
+		long key = ((long) size << 32) | (grid.width * grid.height - 1 - sample);
+		int i = heapSize ++;
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (heap[parent] >= key) {
+				break;
+			}
+			heap[i] = heap[parent];
+			i = parent;
+		}
+		heap[i] = key;
+	}
+	
+	private long pop() {
+		long top = heap[0];
+		long last = heap[-- heapSize];
+		int i = 0;
+		int half = heapSize >>> 1;
+		while (i < half) {
+			int child = 2 * i + 1;
+			if (child + 1 < heapSize && heap[child + 1] > heap[child]) {
+				child ++;
+			}
+			if (last >= heap[child]) {
+				break;
+			}
+			heap[i] = heap[child];
+			i = child;
+		}
+		heap[i] = last;
+		return top;
+	}
+	
+}
@@ -0,0 +1,196 @@
+package qmpzaltb.circleizer;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts how long phases take into histograms, and adds up what placing bubbles of every size did,
+ * so they can be exported in the Prometheus text format.
+ * <p>
+ * Durations are counted into buckets whose upper bounds double from one microsecond on; the last bucket holds everything longer than about a minute.
+ * Recording a duration takes a few atomic additions and never blocks.
+ *
+ * @author qmpzaltb
+ *
+ */
+public class HistogramInstrumentation implements Instrumentation {
+	
+	/**
+	 * The amount of buckets of every histogram, including the last one with no upper bound.
+	 */
+	public static final int BUCKETS = 28;
+	
+	private final Histogram[] phases = new Histogram[PHASE_NAMES.length];
+	
+	/**
+	 * The placement passes by bubble size.
+	 */
+	private final ConcurrentHashMap<Integer, Pass> passes = new ConcurrentHashMap<Integer, Pass>();
+	
+	public HistogramInstrumentation() {
+		for (int i = 0; i < phases.length; i ++) {
+			phases[i] = new Histogram();
+		}
+	}
+	
+	@Override
+	public boolean isEnabled() {
+		return true;
+	}
+	
+	@Override
+	public void phase(int phase, long nanos, long allocatedBytes) {
+		phases[phase].record(nanos, allocatedBytes);
+	}
+	
+	@Override
+	public void placementPass(int size, long nanos, long allocatedBytes, long candidates, long rejectedEarly, long placed) {
+		Pass pass = passes.get(size);
+		if (pass == null) {
+			pass = new Pass();
+			Pass existing = passes.putIfAbsent(size, pass);
+			if (existing != null) {
+				pass = existing;
+			}
+		}
+		pass.record(nanos, allocatedBytes);
+		pass.candidates.addAndGet(candidates);
+		pass.rejectedEarly.addAndGet(rejectedEarly);
+		pass.placed.addAndGet(placed);
+	}
+	
+	/**
+	 * @return how many times the given phase ran
+	 */
+	public long getCount(int phase) {
+		return phases[phase].count.get();
+	}
+	
+	/**
+	 * @return how many nanoseconds the given phase took altogether
+	 */
+	public long getNanos(int phase) {
+		return phases[phase].nanos.get();
+	}
+	
+	/**
+	 * @return how many bubbles of the given size were placed altogether
+	 */
+	public long getPlaced(int size) {
+		Pass pass = passes.get(size);
+		return pass == null ? 0 : pass.placed.get();
+	}
+	
+	/**
+	 * Writes all histograms and counters in the Prometheus text format.
+	 * Every phase is written, even if it never ran; placement passes are written for every bubble size that was placed, largest first.
+	 */
+	public void writeTo(Writer out) throws IOException {
+		out.write("# HELP circleizer_phase_seconds How long the phases of finding colors and circleizing took.\n");
+		out.write("# TYPE circleizer_phase_seconds histogram\n");
+		for (int i = 0; i < phases.length; i ++) {
+			phases[i].writeTo(out, "circleizer_phase_seconds", "phase=\"" + PHASE_NAMES[i] + "\"");
+		}
+		out.write("# HELP circleizer_phase_allocated_bytes_total About how many bytes the phases allocated.\n");
+		out.write("# TYPE circleizer_phase_allocated_bytes_total counter\n");
+		for (int i = 0; i < phases.length; i ++) {
+			out.write("circleizer_phase_allocated_bytes_total{phase=\"" + PHASE_NAMES[i] + "\"} " + phases[i].allocatedBytes.get() + "\n");
+		}
+		
+		TreeMap<Integer, Pass> sorted = new TreeMap<Integer, Pass>(passes);
+		out.write("# HELP circleizer_pass_seconds How long placing the bubbles of one size took.\n");
+		out.write("# TYPE circleizer_pass_seconds histogram\n");
+		for (Map.Entry<Integer, Pass> pass : sorted.descendingMap().entrySet()) {
+			pass.getValue().writeTo(out, "circleizer_pass_seconds", "size=\"" + pass.getKey() + "\"");
+		}
+		writePassCounter(out, sorted, "circleizer_pass_allocated_bytes_total", "About how many bytes placing the bubbles of one size allocated.", 0);
+		writePassCounter(out, sorted, "circleizer_pass_candidates_total", "The places bubbles of one size were tried at.", 1);
+		writePassCounter(out, sorted, "circleizer_pass_rejected_early_total", "The places turned down because the middle of the bubble was already covered.", 2);
+		writePassCounter(out, sorted, "circleizer_pass_placed_total", "The bubbles of one size that were placed.", 3);
+	}
+	
+	private static void writePassCounter(Writer out, TreeMap<Integer, Pass> passes, String name, String help, int counter) throws IOException {
+		out.write("# HELP " + name + " " + help + "\n");
+		out.write("# TYPE " + name + " counter\n");
+		for (Map.Entry<Integer, Pass> entry : passes.descendingMap().entrySet()) {
+			Pass pass = entry.getValue();
+			long value;
+			switch (counter) {
+			case 0:
+				value = pass.allocatedBytes.get();
+				break;
+			case 1:
+				value = pass.candidates.get();
+				break;
+			case 2:
+				value = pass.rejectedEarly.get();
+				break;
+			default:
+				value = pass.placed.get();
+				break;
+			}
+			out.write(name + "{size=\"" + entry.getKey() + "\"} " + value + "\n");
+		}
+	}
+	
+	/**
+	 * @return the bucket of a duration: the first one whose upper bound of 2^bucket microseconds isn't below it
+	 */
+	static int bucketOf(long nanos) {
+		long micros = (nanos + 999) / 1000;
+		if (micros <= 1) {
+			return 0;
+		}
+		return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros - 1));
+	}
+	
+	/**
+	 * The durations and allocations of one phase.
+	 */
+	private static class Histogram {
+		
+		final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		final AtomicLong count = new AtomicLong();
+		final AtomicLong nanos = new AtomicLong();
+		final AtomicLong allocatedBytes = new AtomicLong();
+		
+		void record(long nanos, long allocatedBytes) {
+			buckets.incrementAndGet(bucketOf(nanos));
+			this.nanos.addAndGet(nanos);
+			this.allocatedBytes.addAndGet(allocatedBytes);
+			count.incrementAndGet();
+		}
+		
+		/**
+		 * Writes the cumulative buckets, sum and count. Buckets are read one at a time while others may still record,
+		 * so they are made cumulative as they are read and the count is never below the last of them.
+		 */
+		void writeTo(Writer out, String name, String labels) throws IOException {
+			long cumulative = 0;
+			for (int i = 0; i < BUCKETS; i ++) {
+				cumulative += buckets.get(i);
+				String bound = i == BUCKETS - 1 ? "+Inf" : String.format(Locale.ROOT, "%.6f", (1L << i) / 1e6);
+				out.write(name + "_bucket{" + labels + ",le=\"" + bound + "\"} " + cumulative + "\n");
+			}
+			out.write(name + "_sum{" + labels + "} " + String.format(Locale.ROOT, "%.9f", nanos.get() / 1e9) + "\n");
+			out.write(name + "_count{" + labels + "} " + cumulative + "\n");
+		}
+	}
+	
+	/**
+	 * The durations, allocations and counters of placing bubbles of one size.
+	 */
+	private static final class Pass extends Histogram {
+		
+		final AtomicLong candidates = new AtomicLong();
+		final AtomicLong rejectedEarly = new AtomicLong();
+		final AtomicLong placed = new AtomicLong();
+	}
+	
+}
@@ -0,0 +1,163 @@
+package qmpzaltb.circleizer;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Reads images only as finely as circleizing them needs.
+ * <p>
+ * Point sampling reads a single pixel of every bubble minimum diameter by bubble minimum diameter block, and finding colors
+ * is just as good with a subset of the pixels. So for point sampling, only every n-th pixel of every n-th row is decoded,
+ * with n the bubble minimum diameter, and the pixels right of and below the last whole block, which no sample reads, aren't decoded at all.
+ * This takes about n * n times less memory, and decoders that can skip pixels, such as the one for JPEG, take less time as well.
+ * The resulting ImagePixels still have the size of the whole image, and circleizing them places the same bubbles as circleizing the whole image
+ * with the same circle colors. Mean sampling reads every pixel, so for it every pixel is decoded.
+ * <p>
+ * Colors found in such pixels depend on the bubble minimum diameter. Where the colors of an image must be the same
+ * whatever it is circleized with, such as when they are shared through a PaletteCache, they are found in a palette source instead:
+ * the image decoded with a subsampling that only depends on its size (see paletteSubsamplingFor).
+ *
+ * @author qmpzaltb
+ *
+ */
+public final class ImageDecoder {
+	
+	private ImageDecoder() {
+	}
+	
+	/**
+	 * @return the subsampling that images circleized with the given settings can be decoded with
+	 */
+	public static int subsamplingFor(CircleizerSettings settings) {
+		return settings.samplingMode == Circleizer.SAMPLING_POINT ? settings.bubbleMinDiameter : 1;
+	}
+	
+	/**
+	 * The most pixels a palette source has.
+	 */
+	public static final int PALETTE_SOURCE_PIXELS = 512 * 512;
+	
+	/**
+	 * @return the subsampling the palette source of an image of the given size is decoded with,
+	 * so that it has at most about PALETTE_SOURCE_PIXELS pixels
+	 */
+	public static int paletteSubsamplingFor(int width, int height) {
+		long pixels = (long) width * height;
+		if (pixels <= PALETTE_SOURCE_PIXELS) {
+			return 1;
+		}
+		// clamped like read clamps it, so that pixels read with this subsampling can be told to be a palette source
+		int s = (int) Math.ceil(Math.sqrt((double) pixels / PALETTE_SOURCE_PIXELS));
+		return Math.max(1, Math.min(s, Math.min(width, height)));
+	}
+	
+	/**
+	 * Reads the palette source of an image from a stream that holds it, unless the pixels of the image that were already read are one.
+	 * The stream is not closed.
+	 * @param pixels the pixels of the image, read with any subsampling
+	 * @return the pixels of the image decoded with the subsampling of paletteSubsamplingFor
+	 */
+	public static ImagePixels readPaletteSource(InputStream input, ImagePixels pixels) throws IOException {
+		int subsampling = paletteSubsamplingFor(pixels.getWidth(), pixels.getHeight());
+		if (pixels.getSubsampling() == subsampling) {
+			return pixels;
+		}
+		ImageInputStream in = ImageIO.createImageInputStream(input);
+		if (in == null) {
+			throw new IOException("Failed to create an image stream");
+		}
+		try {
+			ImagePixels source = read(in, subsampling);
+			if (source == null) {
+				throw new IOException("Failed to read the image again");
+			}
+			return source;
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Reads an image file as finely as circleizing it with the given settings needs.
+	 * @return the pixels of the image, or null if no installed reader can read the file, like ImageIO.read
+	 */
+	public static ImagePixels read(File file, CircleizerSettings settings) throws IOException {
+		return read(file, subsamplingFor(settings));
+	}
+	
+	/**
+	 * Reads an image file, decoding only every subsampling-th pixel of every subsampling-th row.
+	 * @return the pixels of the image, or null if no installed reader can read the file, like ImageIO.read
+	 */
+	public static ImagePixels read(File file, int subsampling) throws IOException {
+		if (!file.canRead()) {
+			throw new IOException("Can't read " + file.getAbsolutePath());
+		}
+		ImageInputStream in = ImageIO.createImageInputStream(file);
+		if (in == null) {
+			throw new IOException("Failed to get image from " + file.getAbsolutePath());
+		}
+		try {
+			return read(in, subsampling);
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Reads an image from a stream as finely as circleizing it with the given settings needs. The stream is not closed.
+	 * @return the pixels of the image, or null if no installed reader can read the stream, like ImageIO.read
+	 */
+	public static ImagePixels read(InputStream input, CircleizerSettings settings) throws IOException {
+		ImageInputStream in = ImageIO.createImageInputStream(input);
+		if (in == null) {
+			throw new IOException("Failed to create an image stream");
+		}
+		try {
+			return read(in, subsamplingFor(settings));
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Reads the first image of a stream, decoding only every subsampling-th pixel of every subsampling-th row. The stream is not closed.
+	 * @return the pixels of the image, or null if no installed reader can read the stream, like ImageIO.read
+	 */
+	public static ImagePixels read(ImageInputStream in, int subsampling) throws IOException {
+		if (subsampling < 1) {
+			throw new IllegalArgumentException("subsampling must be at least 1, not " + subsampling);
+		}
+		Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+		if (!readers.hasNext()) {
+			return null;
+		}
+		ImageReader reader = readers.next();
+		try {
+			reader.setInput(in, true, true);
+			int width = reader.getWidth(0);
+			int height = reader.getHeight(0);
+			int s = Math.min(subsampling, Math.min(width, height));
+			if (s <= 1) {
+				return ImagePixels.of(reader.read(0, reader.getDefaultReadParam()));
+			}
+			
+			// pixels right of and below the last whole block are never sampled
+			ImageReadParam param = reader.getDefaultReadParam();
+			param.setSourceRegion(new Rectangle(0, 0, width / s * s, height / s * s));
+			param.setSourceSubsampling(s, s, 0, 0);
+			return ImagePixels.subsampled(reader.read(0, param), width, height, s);
+		} finally {
+			reader.dispose();
+		}
+	}
+	
+}
@@ -21,8 +21,7 @@ public class ImageFileChooser extends JFileChooser{
 
 		@Override
 		public boolean accept(File f) {
-			String filename = f.getName().toLowerCase();
-			boolean acceptance = filename.endsWith(".jpg") || filename.endsWith(".png") || filename.endsWith(".bmp") || filename.endsWith(".jpeg") || f.isDirectory();
+			boolean acceptance = CircleizerFiles.isImageFile(f) || f.isDirectory();
 			return acceptance;
 		}
 
@@ -0,0 +1,327 @@
+package qmpzaltb.circleizer;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+
+/**
+ * Reads the pixels of a BufferedImage as ARGB ints, a row at a time.
+ * The common image types (TYPE_INT_RGB, TYPE_INT_ARGB, TYPE_3BYTE_BGR and TYPE_4BYTE_ABGR) are read straight from their rasters,
+ * without copying or converting the image. Other types are converted once, the first time they're read, and the converted pixels are kept.
+ * <p>
+ * The same ImagePixels can be handed to a ColorFinder and a Circleizer, so an image is only ever converted once.
+ * <p>
+ * An image can also be decoded with subsampling (see ImageDecoder), keeping only every n-th pixel of every n-th row.
+ * Its ImagePixels still have the size of the whole image, and read every other pixel as the nearest decoded pixel above and left of it,
+ * so reading every n-th pixel of every n-th row, as point sampling with a bubble minimum diameter of n does, reads exactly the decoded pixels.
+ * A ColorFinder only counts the decoded pixels.
+ * 
+ * @author qmpzaltb
+ *
+ */
+public final class ImagePixels {
+	
+	private static final int INT_RGB = 0;
+	private static final int INT_ARGB = 1;
+	private static final int BYTE_COMPONENTS = 2;
+	private static final int CONVERTED = 3;
+	private static final int SUBSAMPLED = 4;
+	
+	/**
+	 * The most pixels per row and column of a block that downscale() reads.
+	 */
+	private static final int DOWNSCALE_TAPS = 4;
+	
+	private final BufferedImage image;
+	private final int width;
+	private final int height;
+	private final int layout;
+	
+	private int[] intData;
+	private byte[] byteData;
+	
+	/**
+	 * For an image decoded with subsampling, the decoded pixels of every subsampling-th column of every subsampling-th row.
+	 * Null otherwise, with a subsampling of 1.
+	 */
+	private final ImagePixels decoded;
+	private final int subsampling;
+	
+	/**
+	 * The array index of the top-left pixel, and the distances between rows and between pixels within a row.
+	 */
+	private int offset;
+	private int scanlineStride;
+	private int pixelStride;
+	
+	/**
+	 * The byte offsets of the color components within a pixel. The alpha offset is -1 for opaque images.
+	 */
+	private int redOffset;
+	private int greenOffset;
+	private int blueOffset;
+	private int alphaOffset;
+	
+	private ImagePixels(BufferedImage image) {
+		this.image = image;
+		width = image.getWidth();
+		height = image.getHeight();
+		decoded = null;
+		subsampling = 1;
+		
+		Raster raster = image.getRaster();
+		SampleModel sampleModel = raster.getSampleModel();
+		int translateX = raster.getSampleModelTranslateX();
+		int translateY = raster.getSampleModelTranslateY();
+		
+		switch (image.getType()) {
+		case BufferedImage.TYPE_INT_RGB:
+		case BufferedImage.TYPE_INT_ARGB: {
+			DataBufferInt buffer = (DataBufferInt) raster.getDataBuffer();
+			SinglePixelPackedSampleModel packed = (SinglePixelPackedSampleModel) sampleModel;
+			intData = buffer.getData();
+			scanlineStride = packed.getScanlineStride();
+			offset = buffer.getOffset() - translateY * scanlineStride - translateX;
+			pixelStride = 1;
+			layout = image.getType() == BufferedImage.TYPE_INT_RGB ? INT_RGB : INT_ARGB;
+			break;
+		}
+		case BufferedImage.TYPE_3BYTE_BGR:
+		case BufferedImage.TYPE_4BYTE_ABGR: {
+			DataBufferByte buffer = (DataBufferByte) raster.getDataBuffer();
+			ComponentSampleModel components = (ComponentSampleModel) sampleModel;
+			int[] bandOffsets = components.getBandOffsets();
+			byteData = buffer.getData();
+			scanlineStride = components.getScanlineStride();
+			pixelStride = components.getPixelStride();
+			offset = buffer.getOffset() - translateY * scanlineStride - translateX * pixelStride;
+			redOffset = bandOffsets[0];
+			greenOffset = bandOffsets[1];
+			blueOffset = bandOffsets[2];
+			alphaOffset = bandOffsets.length == 4 ? bandOffsets[3] : -1;
+			layout = BYTE_COMPONENTS;
+			break;
+		}
+		default:
+			layout = CONVERTED;
+		}
+	}
+	
+	private ImagePixels(ImagePixels decoded, int width, int height, int subsampling) {
+		this.image = decoded.image;
+		this.width = width;
+		this.height = height;
+		this.decoded = decoded;
+		this.subsampling = subsampling;
+		layout = SUBSAMPLED;
+	}
+	
+	/**
+	 * Wraps an image for reading. The image shouldn't be changed while it's being read.
+	 */
+	public static ImagePixels of(BufferedImage image) {
+		return new ImagePixels(image);
+	}
+	
+	/**
+	 * Wraps the pixels of an image that was decoded with subsampling.
+	 * @param decoded the pixels of every subsampling-th column of every subsampling-th row, starting at the top left
+	 * @param width the width of the whole image
+	 * @param height the height of the whole image
+	 */
+	static ImagePixels subsampled(BufferedImage decoded, int width, int height, int subsampling) {
+		if (subsampling < 1 || decoded.getWidth() < 1 || decoded.getHeight() < 1) {
+			throw new IllegalArgumentException("Can't subsample a " + width + "x" + height + " image by " + subsampling + " into " + decoded.getWidth() + "x" + decoded.getHeight());
+		}
+		return new ImagePixels(new ImagePixels(decoded), width, height, subsampling);
+	}
+	
+	public int getWidth() {
+		return width;
+	}
+	
+	public int getHeight() {
+		return height;
+	}
+	
+	/**
+	 * @return the image that is read; for an image decoded with subsampling, the decoded pixels only
+	 */
+	public BufferedImage getImage() {
+		return image;
+	}
+	
+	/**
+	 * @return the distance between the decoded columns and rows of the image, 1 if every pixel was decoded
+	 */
+	public int getSubsampling() {
+		return subsampling;
+	}
+	
+	/**
+	 * @return the pixels that were actually decoded, which are all of them unless the image was decoded with subsampling
+	 */
+	ImagePixels decodedPixels() {
+		return decoded == null ? this : decoded;
+	}
+	
+	/**
+	 * @return the color of a pixel in ARGB form
+	 */
+	public int getRGB(int x, int y) {
+		switch (layout) {
+		case INT_RGB:
+			return 0xFF000000 | intData[offset + y * scanlineStride + x];
+		case INT_ARGB:
+			return intData[offset + y * scanlineStride + x];
+		case BYTE_COMPONENTS:
+			return argbAt(offset + y * scanlineStride + x * pixelStride);
+		case SUBSAMPLED:
+			return decoded.getRGB(Math.min(x / subsampling, decoded.width - 1), Math.min(y / subsampling, decoded.height - 1));
+		default:
+			return converted()[y * width + x];
+		}
+	}
+	
+	/**
+	 * Copies rows of pixels in ARGB form into an array, one row after the other.
+	 * @param y the first row to copy
+	 * @param rows the amount of rows to copy
+	 * @param dest the array to copy into, which must hold at least rows * width pixels
+	 */
+	public void getRows(int y, int rows, int[] dest) {
+		for (int row = 0; row < rows; row ++) {
+			getRow(y + row, 0, 1, width, dest, row * width);
+		}
+	}
+	
+	/**
+	 * Copies every step-th pixel of a row, in ARGB form, into an array.
+	 * @param y the row to copy from
+	 * @param x the first column to copy
+	 * @param step the distance between copied columns
+	 * @param count the amount of pixels to copy
+	 * @param dest the array to copy into
+	 * @param destOffset the index of dest to copy the first pixel to
+	 */
+	public void getRow(int y, int x, int step, int count, int[] dest, int destOffset) {
+		switch (layout) {
+		case INT_RGB: {
+			for (int i = offset + y * scanlineStride + x, end = destOffset + count; destOffset < end; i += step) {
+				dest[destOffset ++] = 0xFF000000 | intData[i];
+			}
+			break;
+		}
+		case INT_ARGB: {
+			if (step == 1) {
+				System.arraycopy(intData, offset + y * scanlineStride + x, dest, destOffset, count);
+				break;
+			}
+			for (int i = offset + y * scanlineStride + x, end = destOffset + count; destOffset < end; i += step) {
+				dest[destOffset ++] = intData[i];
+			}
+			break;
+		}
+		case BYTE_COMPONENTS: {
+			int distance = step * pixelStride;
+			for (int i = offset + y * scanlineStride + x * pixelStride, end = destOffset + count; destOffset < end; i += distance) {
+				dest[destOffset ++] = argbAt(i);
+			}
+			break;
+		}
+		case SUBSAMPLED: {
+			int row = Math.min(y / subsampling, decoded.height - 1);
+			if (x % subsampling == 0 && step % subsampling == 0 && x / subsampling + (count - 1) * (step / subsampling) < decoded.width) {
+				decoded.getRow(row, x / subsampling, step / subsampling, count, dest, destOffset);
+				break;
+			}
+			for (int i = 0; i < count; i ++) {
+				dest[destOffset + i] = decoded.getRGB(Math.min((x + i * step) / subsampling, decoded.width - 1), row);
+			}
+			break;
+		}
+		default: {
+			int[] pixels = converted();
+			for (int i = y * width + x, end = destOffset + count; destOffset < end; i += step) {
+				dest[destOffset ++] = pixels[i];
+			}
+		}
+		}
+	}
+	
+	/**
+	 * Averages every factor x factor block of pixels into a single pixel of a new TYPE_INT_RGB image.
+	 * Blocks larger than 4 x 4 are averaged from 4 x 4 evenly spread pixels, so the whole image is never read for a large factor.
+	 * Pixels to the right of and below the last whole block are left out.
+	 * @param factor how many times smaller the new image is, at most the width and height of this image
+	 */
+	public ImagePixels downscale(int factor) {
+		if (factor < 1 || factor > width || factor > height) {
+			throw new IllegalArgumentException("Can't downscale a " + width + "x" + height + " image by " + factor);
+		}
+		if (factor == 1) {
+			return this;
+		}
+		int scaledWidth = width / factor;
+		int scaledHeight = height / factor;
+		BufferedImage scaled = new BufferedImage(scaledWidth, scaledHeight, BufferedImage.TYPE_INT_RGB);
+		int[] scaledPixels = ((DataBufferInt) scaled.getRaster().getDataBuffer()).getData();
+		
+		int taps = Math.min(factor, DOWNSCALE_TAPS);
+		int[] row = new int[scaledWidth];
+		int[] sumR = new int[scaledWidth];
+		int[] sumG = new int[scaledWidth];
+		int[] sumB = new int[scaledWidth];
+		int samples = taps * taps;
+		for (int y = 0; y < scaledHeight; y ++) {
+			for (int x = 0; x < scaledWidth; x ++) {
+				sumR[x] = 0;
+				sumG[x] = 0;
+				sumB[x] = 0;
+			}
+			for (int tapY = 0; tapY < taps; tapY ++) {
+				int rowY = y * factor + tapOffset(tapY, taps, factor);
+				for (int tapX = 0; tapX < taps; tapX ++) {
+					getRow(rowY, tapOffset(tapX, taps, factor), factor, scaledWidth, row, 0);
+					for (int x = 0; x < scaledWidth; x ++) {
+						int pixel = row[x];
+						sumR[x] += (pixel >> 16) & 0xFF;
+						sumG[x] += (pixel >> 8) & 0xFF;
+						sumB[x] += pixel & 0xFF;
+					}
+				}
+			}
+			for (int x = 0; x < scaledWidth; x ++) {
+				scaledPixels[x + y * scaledWidth] = ((sumR[x] / samples) << 16) | ((sumG[x] / samples) << 8) | (sumB[x] / samples);
+			}
+		}
+		return new ImagePixels(scaled);
+	}
+	
+	/**
+	 * @return the offset within a block of factor pixels of the tap-th of taps evenly spread pixels
+	 */
+	private static int tapOffset(int tap, int taps, int factor) {
+		return (2 * tap + 1) * factor / (2 * taps);
+	}
+	
+	private int argbAt(int index) {
+		int alpha = alphaOffset < 0 ? 0xFF : byteData[index + alphaOffset] & 0xFF;
+		return (alpha << 24) | ((byteData[index + redOffset] & 0xFF) << 16) | ((byteData[index + greenOffset] & 0xFF) << 8) | (byteData[index + blueOffset] & 0xFF);
+	}
+	
+	/**
+	 * @return the pixels of an image of an uncommon type, converted to ARGB the first time they're needed
+	 */
+	private synchronized int[] converted() {
+		if (intData == null) {
+			intData = image.getRGB(0, 0, width, height, new int[width * height], 0, width);
+		}
+		return intData;
+	}
+	
+}
@@ -0,0 +1,90 @@
+package qmpzaltb.circleizer;
+
+/**
+ * Receives how long the phases of finding colors and circleizing take, and what placing bubbles did.
+ * Circleizer, ColorFinder, BubbleRasterizer, BatchCircleizer and CircleizerServer report to the instrumentation they are given with setInstrumentation.
+ * By default they are given NONE, which isn't enabled, so they don't read any clocks or counters for it.
+ * <p>
+ * Calls can come from many threads at once, so implementations have to be thread-safe, and should return quickly.
+ * Allocated bytes are those of the thread that ran the phase, as far as the JVM can tell; work a phase hands to other threads isn't counted,
+ * and they are 0 where the JVM can't tell at all.
+ *
+ * @author qmpzaltb
+ *
+ */
+public interface Instrumentation {
+	
+	/**
+	 * Reading an image file or request into pixels.
+	 */
+	public static final int PHASE_DECODE = 0;
+	/**
+	 * Counting the colors of an image into a cubic table.
+	 */
+	public static final int PHASE_HISTOGRAM = 1;
+	/**
+	 * Finding the circle colors in a counted table, by splitting it into regions or otherwise.
+	 */
+	public static final int PHASE_SPLIT = 2;
+	/**
+	 * Sampling an image into a grid and classifying every sample to its circle color.
+	 */
+	public static final int PHASE_SAMPLE = 3;
+	/**
+	 * Drawing placed bubbles.
+	 */
+	public static final int PHASE_RENDER = 4;
+	/**
+	 * Writing a circleized image.
+	 */
+	public static final int PHASE_ENCODE = 5;
+	
+	/**
+	 * The names of the phases, by their number.
+	 */
+	public static final String[] PHASE_NAMES = {"decode", "histogram", "split", "sample", "render", "encode"};
+	
+	/**
+	 * Reports nothing.
+	 */
+	public static final Instrumentation NONE = new Instrumentation() {
+		
+		@Override
+		public boolean isEnabled() {
+			return false;
+		}
+		
+		@Override
+		public void phase(int phase, long nanos, long allocatedBytes) {
+		}
+		
+		@Override
+		public void placementPass(int size, long nanos, long allocatedBytes, long candidates, long rejectedEarly, long placed) {
+		}
+	};
+	
+	/**
+	 * @return whether anything should be reported; if not, nothing is measured for this instrumentation
+	 */
+	boolean isEnabled();
+	
+	/**
+	 * Called after a phase.
+	 * @param phase one of the PHASE constants
+	 * @param nanos how long the phase took
+	 * @param allocatedBytes about how many bytes the phase allocated
+	 */
+	void phase(int phase, long nanos, long allocatedBytes);
+	
+	/**
+	 * Called after placing the bubbles of one size.
+	 * @param size the diameter of the bubbles in samples
+	 * @param nanos how long the pass took
+	 * @param allocatedBytes about how many bytes the pass allocated
+	 * @param candidates the amount of places a bubble could be tried at, including those skipped without trying, where the samples around them show it can't fit
+	 * @param rejectedEarly the amount of candidates turned down by a single look at the middle of the bubble, because it was already covered
+	 * @param placed the amount of bubbles placed
+	 */
+	void placementPass(int size, long nanos, long allocatedBytes, long candidates, long rejectedEarly, long placed);
+	
+}
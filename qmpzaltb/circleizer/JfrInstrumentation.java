@@ -0,0 +1,106 @@
+package qmpzaltb.circleizer;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Commits a Java Flight Recorder event for every phase and every placement pass, so they show up in recordings next to garbage collection and thread events.
+ * The events are qmpzaltb.circleizer.Phase and qmpzaltb.circleizer.PlacementPass, in the Circleizer category.
+ * They are committed when the phase has ended, so their own start time and duration are those of the commit;
+ * the duration of the phase is in their nanos field. While no recording has them enabled, nothing is measured.
+ *
+ * @author qmpzaltb
+ *
+ */
+public class JfrInstrumentation implements Instrumentation {
+	
+	private static final EventType PHASE_TYPE = EventType.getEventType(PhaseEvent.class);
+	private static final EventType PASS_TYPE = EventType.getEventType(PassEvent.class);
+	
+	@Name("qmpzaltb.circleizer.Phase")
+	@Label("Circleizer Phase")
+	@Category("Circleizer")
+	@Description("A phase of finding colors or circleizing")
+	static final class PhaseEvent extends Event {
+		
+		@Label("Phase")
+		String phase;
+		
+		@Label("Phase Duration")
+		@Timespan(Timespan.NANOSECONDS)
+		long nanos;
+		
+		@Label("Allocated")
+		@Description("About how many bytes the thread running the phase allocated")
+		@DataAmount(DataAmount.BYTES)
+		long allocatedBytes;
+	}
+	
+	@Name("qmpzaltb.circleizer.PlacementPass")
+	@Label("Circleizer Placement Pass")
+	@Category("Circleizer")
+	@Description("Placing the bubbles of one size")
+	static final class PassEvent extends Event {
+		
+		@Label("Bubble Size")
+		@Description("The diameter of the bubbles in samples")
+		int size;
+		
+		@Label("Pass Duration")
+		@Timespan(Timespan.NANOSECONDS)
+		long nanos;
+		
+		@Label("Allocated")
+		@DataAmount(DataAmount.BYTES)
+		long allocatedBytes;
+		
+		@Label("Candidates")
+		long candidates;
+		
+		@Label("Rejected Early")
+		@Description("Candidates turned down because the middle of the bubble was already covered")
+		long rejectedEarly;
+		
+		@Label("Placed")
+		long placed;
+	}
+	
+	@Override
+	public boolean isEnabled() {
+		return PHASE_TYPE.isEnabled() || PASS_TYPE.isEnabled();
+	}
+	
+	@Override
+	public void phase(int phase, long nanos, long allocatedBytes) {
+		PhaseEvent event = new PhaseEvent();
+		if (!event.isEnabled()) {
+			return;
+		}
+		event.phase = PHASE_NAMES[phase];
+		event.nanos = nanos;
+		event.allocatedBytes = allocatedBytes;
+		event.commit();
+	}
+	
+	@Override
+	public void placementPass(int size, long nanos, long allocatedBytes, long candidates, long rejectedEarly, long placed) {
+		PassEvent event = new PassEvent();
+		if (!event.isEnabled()) {
+			return;
+		}
+		event.size = size;
+		event.nanos = nanos;
+		event.allocatedBytes = allocatedBytes;
+		event.candidates = candidates;
+		event.rejectedEarly = rejectedEarly;
+		event.placed = placed;
+		event.commit();
+	}
+	
+}
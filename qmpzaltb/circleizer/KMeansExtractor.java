@@ -0,0 +1,147 @@
+package qmpzaltb.circleizer;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Finds distinct colors with mini-batch k-means, starting from the colors found by the orthogonal-splitplane method.
+ * Every iteration draws a batch of pixels from the color cube, in proportion to the cells' populations,
+ * and pulls the closest color of each one a little towards it. Colors that have been pulled more often move less.
+ * Uses the resolution, color amount and counting settings of ColorFinder.
+ * 
+ * @author qmpzaltb
+ *
+ */
+public class KMeansExtractor extends ColorFinder {
+	
+	public static final int DEFAULT_ITERATIONS = 32;
+	public static final int DEFAULT_BATCH_SIZE = 1024;
+	
+	volatile int iterations;
+	volatile int batchSize;
+	volatile long seed;
+	
+	public KMeansExtractor() {
+		iterations = DEFAULT_ITERATIONS;
+		batchSize = DEFAULT_BATCH_SIZE;
+		seed = 0x5EED;
+	}
+	
+	/**
+	 * Sets the amount of batches to draw. More iterations take more time, but fit the colors more closely.
+	 */
+	public void setIterations(int iterations) {
+		this.iterations = Math.max(0, iterations);
+	}
+	
+	/**
+	 * Sets the amount of pixels drawn per batch.
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = Math.max(1, batchSize);
+	}
+	
+	/**
+	 * Sets the seed of the random draws. The same seed, settings and image always give the same colors.
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+	
+	@Override
+	String paletteKey() {
+		return super.paletteKey() + "/" + iterations + "/" + batchSize + "/" + seed;
+	}
+	
+	@Override
+	int[] findColors(ColorHistogram histogram, int colorAmount) {
+		
+		// the settings can change while this runs, so they are read once
+		int iterations = this.iterations;
+		int batchSize = this.batchSize;
+		long seed = this.seed;
+		
+		int[] seeds = super.findColors(histogram, colorAmount);
+		if (histogram.pixelCount == 0 || iterations == 0) {
+			return seeds;
+		}
+		
+		// the populated cells, with the running total of their populations for drawing pixels
+		int cells = histogram.resolutionR * histogram.resolutionG * histogram.resolutionB;
+		int[] cellColors = new int[cells];
+		long[] cumulative = new long[cells];
+		int populated = 0;
+		long total = 0;
+		for (int b = 0; b < histogram.resolutionB; b ++) {
+			for (int g = 0; g < histogram.resolutionG; g ++) {
+				for (int r = 0; r < histogram.resolutionR; r ++) {
+					int population = histogram.cellCount(r, g, b);
+					if (population > 0) {
+						total += population;
+						cellColors[populated] = (histogram.centerR(r) << 16) | (histogram.centerG(g) << 8) | histogram.centerB(b);
+						cumulative[populated] = total;
+						populated ++;
+					}
+				}
+			}
+		}
+		
+		double[] reds = new double[seeds.length];
+		double[] greens = new double[seeds.length];
+		double[] blues = new double[seeds.length];
+		long[] pulls = new long[seeds.length];
+		for (int i = 0; i < seeds.length; i ++) {
+			reds[i] = (seeds[i] >> 16) & 0xFF;
+			greens[i] = (seeds[i] >> 8) & 0xFF;
+			blues[i] = seeds[i] & 0xFF;
+		}
+		
+		Random random = new Random(seed);
+		int[] batch = new int[batchSize];
+		int[] closest = new int[batchSize];
+		for (int iteration = 0; iteration < iterations; iteration ++) {
+			for (int i = 0; i < batchSize; i ++) {
+				long pick = (long) (random.nextDouble() * total);
+				int cell = Arrays.binarySearch(cumulative, 0, populated, pick + 1);
+				batch[i] = cellColors[cell < 0 ? -cell - 1 : cell];
+			}
+			for (int i = 0; i < batchSize; i ++) {
+				closest[i] = closest(batch[i], reds, greens, blues);
+			}
+			for (int i = 0; i < batchSize; i ++) {
+				int c = closest[i];
+				pulls[c] ++;
+				double rate = 1.0 / pulls[c];
+				reds[c] += rate * (((batch[i] >> 16) & 0xFF) - reds[c]);
+				greens[c] += rate * (((batch[i] >> 8) & 0xFF) - greens[c]);
+				blues[c] += rate * ((batch[i] & 0xFF) - blues[c]);
+			}
+		}
+		
+		int[] returnColors = new int[seeds.length];
+		for (int i = 0; i < returnColors.length; i ++) {
+			returnColors[i] = ((int) Math.round(reds[i]) << 16) | ((int) Math.round(greens[i]) << 8) | (int) Math.round(blues[i]);
+		}
+		return returnColors;
+	}
+	
+	private static int closest(int rgb, double[] reds, double[] greens, double[] blues) {
+		int r = (rgb >> 16) & 0xFF;
+		int g = (rgb >> 8) & 0xFF;
+		int b = rgb & 0xFF;
+		int closest = 0;
+		double closestDistance = Double.MAX_VALUE;
+		for (int i = 0; i < reds.length; i ++) {
+			double dr = reds[i] - r;
+			double dg = greens[i] - g;
+			double db = blues[i] - b;
+			double distance = dr * dr + dg * dg + db * db;
+			if (distance < closestDistance) {
+				closestDistance = distance;
+				closest = i;
+			}
+		}
+		return closest;
+	}
+	
+}
@@ -0,0 +1,167 @@
+package qmpzaltb.circleizer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A table of equally long rows kept in a memory-mapped file, so it can be far larger than the heap.
+ * The file is mapped in chunks of whole rows, since a single mapping can't be larger than 2 GB.
+ * The operating system pages rows in and out as they are used, so reading and writing the rows mostly in order keeps little of the file in memory.
+ * 
+ * @author qmpzaltb
+ *
+ */
+final class MappedRows implements Closeable {
+	
+	/**
+	 * The largest size of a single mapped chunk.
+	 */
+	private static final int MAX_CHUNK_BYTES = 1 << 30;
+	
+	final int rows;
+	final int rowBytes;
+	
+	private final File file;
+	private final RandomAccessFile access;
+	private final MappedByteBuffer[] chunks;
+	private final int rowsPerChunk;
+	
+	/**
+	 * Creates a file of rows filled with zeroes.
+	 * @param file the file to keep the rows in, which is overwritten and deleted when closed
+	 */
+	MappedRows(File file, int rows, int rowBytes) throws IOException {
+		this(file, rows, rowBytes, true);
+	}
+	
+	/**
+	 * Maps the rows already written to a file, as many whole rows as it holds.
+	 * @param file the file holding the rows, which is deleted when closed
+	 */
+	static MappedRows open(File file, int rowBytes) throws IOException {
+		long rows = file.length() / Math.max(1, rowBytes);
+		if (rows > Integer.MAX_VALUE) {
+			throw new IOException(file + " holds more than " + Integer.MAX_VALUE + " rows");
+		}
+		return new MappedRows(file, (int) rows, rowBytes, false);
+	}
+	
+	private MappedRows(File file, int rows, int rowBytes, boolean create) throws IOException {
+		if (rowBytes > MAX_CHUNK_BYTES) {
+			throw new IllegalArgumentException("Rows can be at most " + MAX_CHUNK_BYTES + " bytes long: " + rowBytes);
+		}
+		this.file = file;
+		this.rows = rows;
+		this.rowBytes = Math.max(1, rowBytes);
+		rowsPerChunk = MAX_CHUNK_BYTES / this.rowBytes;
+		
+		access = new RandomAccessFile(file, "rw");
+		try {
+			if (create) {
+				access.setLength(0);
+				access.setLength((long) rows * this.rowBytes);
+			}
+			FileChannel channel = access.getChannel();
+			chunks = new MappedByteBuffer[(rows + rowsPerChunk - 1) / rowsPerChunk];
+			for (int chunk = 0; chunk < chunks.length; chunk ++) {
+				long start = (long) chunk * rowsPerChunk * this.rowBytes;
+				long size = (long) Math.min(rowsPerChunk, rows - chunk * rowsPerChunk) * this.rowBytes;
+				chunks[chunk] = channel.map(FileChannel.MapMode.READ_WRITE, start, size);
+				chunks[chunk].order(ByteOrder.nativeOrder());
+			}
+		} catch (IOException e) {
+			access.close();
+			file.delete();
+			throw e;
+		}
+	}
+	
+	int getInt(int row, int index) {
+		return chunks[row / rowsPerChunk].getInt((row % rowsPerChunk) * rowBytes + (index << 2));
+	}
+	
+	void putInt(int row, int index, int value) {
+		chunks[row / rowsPerChunk].putInt((row % rowsPerChunk) * rowBytes + (index << 2), value);
+	}
+	
+	long getLong(int row, int index) {
+		return chunks[row / rowsPerChunk].getLong((row % rowsPerChunk) * rowBytes + (index << 3));
+	}
+	
+	void putLong(int row, int index, long value) {
+		chunks[row / rowsPerChunk].putLong((row % rowsPerChunk) * rowBytes + (index << 3), value);
+	}
+	
+	/**
+	 * @return a buffer positioned at the start of a row and limited to its end
+	 */
+	ByteBuffer row(int row) {
+		ByteBuffer chunk = chunks[row / rowsPerChunk].duplicate().order(ByteOrder.nativeOrder());
+		int start = (row % rowsPerChunk) * rowBytes;
+		chunk.limit(start + rowBytes).position(start);
+		return chunk;
+	}
+	
+	/**
+	 * Checks whether any bit from 'from' (inclusive) to 'to' (exclusive) is set in a row of longs, like SampleGrid.anyBits.
+	 */
+	boolean anyBits(int row, int from, int to) {
+		if (from >= to) {
+			return false;
+		}
+		int first = from >>> 6;
+		int last = (to - 1) >>> 6;
+		long firstMask = -1L << from;
+		long lastMask = -1L >>> -to;
+		if (first == last) {
+			return (getLong(row, first) & firstMask & lastMask) != 0;
+		}
+		if ((getLong(row, first) & firstMask) != 0) {
+			return true;
+		}
+		for (int w = first + 1; w < last; w ++) {
+			if (getLong(row, w) != 0) {
+				return true;
+			}
+		}
+		return (getLong(row, last) & lastMask) != 0;
+	}
+	
+	/**
+	 * Sets every bit from 'from' (inclusive) to 'to' (exclusive) in a row of longs, like SampleGrid.setBits.
+	 */
+	void setBits(int row, int from, int to) {
+		if (from >= to) {
+			return;
+		}
+		int first = from >>> 6;
+		int last = (to - 1) >>> 6;
+		long firstMask = -1L << from;
+		long lastMask = -1L >>> -to;
+		if (first == last) {
+			putLong(row, first, getLong(row, first) | (firstMask & lastMask));
+			return;
+		}
+		putLong(row, first, getLong(row, first) | firstMask);
+		for (int w = first + 1; w < last; w ++) {
+			putLong(row, w, -1L);
+		}
+		putLong(row, last, getLong(row, last) | lastMask);
+	}
+	
+	/**
+	 * Closes and deletes the file. The mappings themselves are released once they are garbage collected.
+	 */
+	@Override
+	public void close() throws IOException {
+		access.close();
+		file.delete();
+	}
+	
+}
@@ -0,0 +1,143 @@
+package qmpzaltb.circleizer;
+
+import java.util.ArrayList;
+
+/**
+ * Finds distinct colors with the median-cut method.
+ * The box of the color cube holding the most pixels is repeatedly cut in two along its longest side, at the median of its pixels.
+ * Every final box then gives the average color of the pixels within it.
+ * Uses the resolution, color amount and counting settings of ColorFinder.
+ * 
+ * @author qmpzaltb
+ *
+ */
+public class MedianCutExtractor extends ColorFinder {
+	
+	/**
+	 * Finds up to the color amount of colors; fewer if the counted pixels fall into fewer cells of the cube.
+	 */
+	@Override
+	int[] findColors(ColorHistogram histogram, int colorAmount) {
+		
+		// boxes are always shrunk to the cells that hold their pixels, so a box of more than one cell can be cut
+		ArrayList<int[]> boxes = new ArrayList<int[]>();
+		if (histogram.pixelCount == 0) {
+			return new int[0];
+		}
+		boxes.add(shrink(histogram, new int[] {0, histogram.resolutionR, 0, histogram.resolutionG, 0, histogram.resolutionB}));
+		
+		while (boxes.size() < colorAmount) {
+			
+			int bestBox = -1;
+			int bestPopulation = 0;
+			for (int i = 0; i < boxes.size(); i ++) {
+				int[] box = boxes.get(i);
+				int population = histogram.count(box[0], box[1], box[2], box[3], box[4], box[5]);
+				if (population > bestPopulation && cellsOf(box) > 1) {
+					bestBox = i;
+					bestPopulation = population;
+				}
+			}
+			if (bestBox == -1) {
+				break;
+			}
+			
+			int[] box = boxes.get(bestBox);
+			
+			// the longest side, measured in color values rather than cells
+			int axis = 0;
+			int longest = -1;
+			int[] divs = {histogram.rDiv, histogram.gDiv, histogram.bDiv};
+			for (int a = 0; a < 3; a ++) {
+				int length = (box[a * 2 + 1] - box[a * 2]) * divs[a];
+				if (box[a * 2 + 1] - box[a * 2] > 1 && length > longest) {
+					axis = a;
+					longest = length;
+				}
+			}
+			
+			// the first plane with at least half of the pixels on its near side, leaving at least one layer of cells on the far side
+			int[] near = box.clone();
+			int position = box[axis * 2] + 1;
+			for (; position < box[axis * 2 + 1] - 1; position ++) {
+				near[axis * 2 + 1] = position;
+				if ((long) histogram.count(near[0], near[1], near[2], near[3], near[4], near[5]) * 2 >= bestPopulation) {
+					break;
+				}
+			}
+			near[axis * 2 + 1] = position;
+			int[] far = box.clone();
+			far[axis * 2] = position;
+			
+			boxes.set(bestBox, shrink(histogram, near));
+			boxes.add(shrink(histogram, far));
+		}
+		
+		ArrayList<Integer> colors = new ArrayList<Integer>();
+		for (int[] box : boxes) {
+			colors.add(averageColor(histogram, box));
+		}
+		int[] returnColors = new int[colors.size()];
+		for (int i = 0; i < returnColors.length; i ++) {
+			returnColors[i] = colors.get(i);
+		}
+		return returnColors;
+	}
+	
+	private static int cellsOf(int[] box) {
+		return (box[1] - box[0]) * (box[3] - box[2]) * (box[5] - box[4]);
+	}
+	
+	/**
+	 * @return the smallest box within the given box that still holds all of its pixels
+	 */
+	private static int[] shrink(ColorHistogram histogram, int[] box) {
+		int[] cut = box.clone();
+		int population = histogram.count(cut[0], cut[1], cut[2], cut[3], cut[4], cut[5]);
+		for (int axis = 0; axis < 3; axis ++) {
+			int[] probe = cut.clone();
+			while (cut[axis * 2 + 1] - cut[axis * 2] > 1) {
+				probe[axis * 2] = cut[axis * 2] + 1;
+				if (histogram.count(probe[0], probe[1], probe[2], probe[3], probe[4], probe[5]) < population) {
+					break;
+				}
+				cut[axis * 2] ++;
+			}
+			probe = cut.clone();
+			while (cut[axis * 2 + 1] - cut[axis * 2] > 1) {
+				probe[axis * 2 + 1] = cut[axis * 2 + 1] - 1;
+				if (histogram.count(probe[0], probe[1], probe[2], probe[3], probe[4], probe[5]) < population) {
+					break;
+				}
+				cut[axis * 2 + 1] --;
+			}
+		}
+		return cut;
+	}
+	
+	/**
+	 * @return the population-weighted average of the cell centers within a box, in RGB form
+	 */
+	static int averageColor(ColorHistogram histogram, int[] box) {
+		long population = 0;
+		long r = 0;
+		long g = 0;
+		long b = 0;
+		for (int cb = box[4]; cb < box[5]; cb ++) {
+			for (int cg = box[2]; cg < box[3]; cg ++) {
+				for (int cr = box[0]; cr < box[1]; cr ++) {
+					int cellPopulation = histogram.cellCount(cr, cg, cb);
+					population += cellPopulation;
+					r += (long) cellPopulation * histogram.centerR(cr);
+					g += (long) cellPopulation * histogram.centerG(cg);
+					b += (long) cellPopulation * histogram.centerB(cb);
+				}
+			}
+		}
+		if (population == 0) {
+			return 0;
+		}
+		return (int) (r / population) << 16 | (int) (g / population) << 8 | (int) (b / population);
+	}
+	
+}
@@ -0,0 +1,395 @@
+package qmpzaltb.circleizer;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Circleizes images too large to hold in memory, such as gigapixel scans and posters.
+ * <p>
+ * The image is read from its file in horizontal bands and sampled into a sample grid kept in memory-mapped files,
+ * together with its coverage and color edge bitplanes. Bubbles are placed one size pass at a time in row order,
+ * so the grid is swept top to bottom and only the rows near the current one need to be paged in;
+ * a bubble reaches at most its own size below its row, which is the overlap between neighbouring bands of rows.
+ * The placed bubbles go to a memory-mapped file, and the result is drawn a band of rows at a time into a StripeWriter,
+ * drawing into every band the bubbles of every pass that reach into it.
+ * <p>
+ * Bubbles are placed in the same row order as a single-threaded Circleizer places them, so the layout is the same as its layout, for any band size.
+ * Only bubbles of the powers of the bubble size exponentiation are placed; the placement mode of the settings is ignored.
+ * How fast bands can be read depends on the image format: formats that are decoded from the top, such as PNG and JPEG,
+ * decode all rows above a band again for every band, so larger bands are faster for them.
+ * 
+ * @author qmpzaltb
+ *
+ */
+public class OutOfCoreCircleizer {
+	
+	/**
+	 * The default amount of bytes of pixels read or drawn at once.
+	 */
+	public static final long DEFAULT_BAND_BYTES = 64L * 1024 * 1024;
+	
+	/**
+	 * The most bytes of pixels read or drawn at once. A drawn band is one int[] of 4 bytes per pixel and is written as one mapped stripe
+	 * of 3 bytes per pixel, and neither an array nor a mapping can hold more than Integer.MAX_VALUE bytes.
+	 */
+	public static final long MAX_BAND_BYTES = Integer.MAX_VALUE;
+	
+	/**
+	 * The bytes a placed bubble takes in the bubble file: its position, diameter and color.
+	 */
+	private static final int BUBBLE_BYTES = 16;
+	
+	private final CircleizerSettings settings;
+	private final BubbleRasterizer rasterizer = new BubbleRasterizer();
+	
+	private long bandBytes;
+	private File tempDirectory;
+	
+	public OutOfCoreCircleizer(CircleizerSettings settings) {
+		this.settings = settings;
+		bandBytes = DEFAULT_BAND_BYTES;
+	}
+	
+	/**
+	 * Sets about how many bytes of pixels are read or drawn at once, from 1 MB to MAX_BAND_BYTES.
+	 * The mapped files are paged by the operating system and don't count.
+	 */
+	public void setBandBytes(long bandBytes) {
+		this.bandBytes = Math.max(1024 * 1024, Math.min(MAX_BAND_BYTES, bandBytes));
+	}
+	
+	/**
+	 * Sets where the mapped files are kept while circleizing, or null for the default temporary directory.
+	 * They take about 4 bytes per sample, plus 16 bytes per bubble.
+	 */
+	public void setTempDirectory(File tempDirectory) {
+		this.tempDirectory = tempDirectory;
+	}
+	
+	/**
+	 * Finds the colors of an image file without reading all of it into memory: only every n-th pixel of every n-th row is decoded,
+	 * with n chosen so that at most maxPixels pixels are kept.
+	 */
+	public static int[] findColors(File input, PaletteExtractor extractor, int maxPixels) throws IOException {
+		ImageInputStream in = ImageIO.createImageInputStream(input);
+		if (in == null) {
+			throw new IOException("Failed to get image from " + input.getAbsolutePath());
+		}
+		try {
+			ImageReader reader = readerOf(in, input);
+			try {
+				long pixels = (long) reader.getWidth(0) * reader.getHeight(0);
+				int step = 1;
+				if (maxPixels > 0 && pixels > maxPixels) {
+					step = (int) Math.ceil(Math.sqrt((double) pixels / maxPixels));
+				}
+				ImageReadParam param = reader.getDefaultReadParam();
+				param.setSourceSubsampling(step, step, 0, 0);
+				return extractor.findColors(ImagePixels.of(reader.read(0, param)));
+			} finally {
+				reader.dispose();
+			}
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Circleizes an image file into a binary PPM file.
+	 */
+	public void circleize(File input, File output) throws IOException {
+		PpmStripeWriter writer = new PpmStripeWriter(output);
+		try {
+			circleize(input, writer);
+		} finally {
+			writer.close();
+		}
+	}
+	
+	/**
+	 * Circleizes an image file, drawing the result into a StripeWriter from top to bottom.
+	 */
+	public void circleize(File input, StripeWriter output) throws IOException {
+		File bubbleFile = createTempFile("bubbles");
+		try {
+			BubbleFile bubbles = new BubbleFile(bubbleFile);
+			try {
+				circleize(input, bubbles);
+			} finally {
+				bubbles.close();
+			}
+			MappedRows placed = MappedRows.open(bubbleFile, BUBBLE_BYTES);
+			try {
+				render(bubbles, placed, output);
+			} finally {
+				placed.close();
+			}
+		} finally {
+			bubbleFile.delete();
+		}
+	}
+	
+	/**
+	 * Circleizes an image file without drawing it, handing every bubble to the given sink as soon as it is placed, largest first.
+	 */
+	public void circleize(File input, BubbleSink sink) throws IOException {
+		ImageInputStream in = ImageIO.createImageInputStream(input);
+		if (in == null) {
+			throw new IOException("Failed to get image from " + input.getAbsolutePath());
+		}
+		ImageReader reader = null;
+		ArrayList<MappedRows> planes = new ArrayList<MappedRows>();
+		try {
+			reader = readerOf(in, input);
+			int width = reader.getWidth(0);
+			int height = reader.getHeight(0);
+			int d = settings.bubbleMinDiameter;
+			int gridWidth = width / d;
+			int gridHeight = height / d;
+			if (gridWidth == 0 || gridHeight == 0) {
+				// an image narrower or lower than a bubble has no samples, like in Circleizer, and is left as the background
+				sink.begin(width, height, settings.backgroundColor);
+				sink.end();
+				return;
+			}
+			int rowWords = (gridWidth + 63) >>> 6;
+			
+			MappedRows colors = new MappedRows(createTempFile("colors"), gridHeight, gridWidth * 4);
+			planes.add(colors);
+			MappedRows colorEdges = new MappedRows(createTempFile("edges"), gridHeight, rowWords * 8);
+			planes.add(colorEdges);
+			MappedRows covered = new MappedRows(createTempFile("covered"), gridHeight, rowWords * 8);
+			planes.add(covered);
+			
+			sample(reader, gridWidth, gridHeight, colors, colorEdges);
+			
+			sink.begin(width, height, settings.backgroundColor);
+			place(gridWidth, gridHeight, colors, colorEdges, covered, sink);
+			sink.end();
+		} finally {
+			for (MappedRows plane : planes) {
+				plane.close();
+			}
+			if (reader != null) {
+				reader.dispose();
+			}
+			in.close();
+		}
+	}
+	
+	/**
+	 * Reads the image in bands of whole sample rows and sets the colors and color edges of every sample.
+	 */
+	private void sample(ImageReader reader, int gridWidth, int gridHeight, MappedRows colors, MappedRows colorEdges) throws IOException {
+		int d = settings.bubbleMinDiameter;
+		int bandRows = (int) Math.max(1, Math.min(gridHeight, bandBytes / (4L * gridWidth * d * d)));
+		SampleGrid band = new SampleGrid(gridWidth, bandRows);
+		ImageReadParam param = reader.getDefaultReadParam();
+		
+		for (int gridY = 0; gridY < gridHeight; gridY += bandRows) {
+			int rows = Math.min(bandRows, gridHeight - gridY);
+			param.setSourceRegion(new Rectangle(0, gridY * d, gridWidth * d, rows * d));
+			BufferedImage pixels = reader.read(0, param);
+			
+			band.reset(gridWidth, rows);
+			Circleizer.sample(ImagePixels.of(pixels), band, settings, true);
+			band.updateColorEdges();
+			
+			for (int row = 0; row < rows; row ++) {
+				colors.row(gridY + row).asIntBuffer().put(band.colors, row * gridWidth, gridWidth);
+				colorEdges.row(gridY + row).asLongBuffer().put(band.colorEdges, row * band.rowWords, band.rowWords);
+			}
+		}
+	}
+	
+	/**
+	 * Places the bubbles of every size pass, sweeping the grid from top to bottom once per pass.
+	 */
+	private void place(int gridWidth, int gridHeight, MappedRows colors, MappedRows colorEdges, MappedRows covered, BubbleSink sink) throws IOException {
+		int d = settings.bubbleMinDiameter;
+		int exponentiation = settings.bubbleSizeExponentiation;
+		
+		int largestBubbleRelativeDimension = Circleizer.largestBubbleSize(gridWidth * d, gridHeight * d, d, exponentiation);
+		
+		for (int size = largestBubbleRelativeDimension; size >= 1; size /= exponentiation) {
+			DiskMask mask = DiskMask.of(size);
+			for (int y = 0; y + size <= gridHeight; y ++) {
+				for (int x = 0; x + size <= gridWidth; x ++) {
+					if (tryBubble(colors, colorEdges, covered, x, y, mask)) {
+						sink.bubble(x * d, y * d, size * d, colors.getInt(y, x));
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Places a bubble on the mapped grid like Circleizer places it on a SampleGrid.
+	 * @return whether the bubble was placed
+	 */
+	private static boolean tryBubble(MappedRows colors, MappedRows colorEdges, MappedRows covered, int x, int y, DiskMask mask) {
+		int size = mask.size;
+		
+		int midX = x + size / 2;
+		if (covered.anyBits(y + size / 2, midX, midX + 1)) {
+			return false;
+		}
+		
+		int thisColor = colors.getInt(y, x);
+		for (int yy = 0; yy < size; yy ++) {
+			int start = x + mask.spanStart[yy];
+			int end = x + mask.spanEnd[yy];
+			if (start == end) {
+				continue;
+			}
+			if (colors.getInt(y + yy, start) != thisColor || colorEdges.anyBits(y + yy, start + 1, end)) {
+				return false;
+			}
+		}
+		for (int yy = 0; yy < size; yy ++) {
+			if (covered.anyBits(y + yy, x + mask.spanStart[yy], x + mask.spanEnd[yy])) {
+				return false;
+			}
+		}
+		for (int yy = 0; yy < size; yy ++) {
+			covered.setBits(y + yy, x + mask.spanStart[yy], x + mask.spanEnd[yy]);
+		}
+		return true;
+	}
+	
+	/**
+	 * Draws the placed bubbles a band of rows at a time.
+	 * Within a pass, bubbles are in row order, so the ones reaching into a band are found by a binary search for the first one that reaches below its top.
+	 */
+	private void render(BubbleFile bubbles, MappedRows placed, StripeWriter output) throws IOException {
+		int width = bubbles.width;
+		int height = bubbles.height;
+		int bandRows = (int) Math.max(1, Math.min(height, bandBytes / (4L * Math.max(1, width))));
+		int[] band = new int[bandRows * width];
+		int background = bubbles.backgroundColor & 0xFFFFFF;
+		
+		output.begin(width, height);
+		for (int bandY = 0; bandY < height; bandY += bandRows) {
+			int rows = Math.min(bandRows, height - bandY);
+			for (int i = 0, end = rows * width; i < end; i ++) {
+				band[i] = background;
+			}
+			for (int pass = 0; pass < bubbles.passStarts.size(); pass ++) {
+				int start = bubbles.passStarts.get(pass);
+				int end = pass + 1 < bubbles.passStarts.size() ? bubbles.passStarts.get(pass + 1) : placed.rows;
+				int diameter = placed.getInt(start, 2);
+				
+				// the first bubble whose bottom is below the top of the band
+				int low = start;
+				int high = end;
+				while (low < high) {
+					int mid = (low + high) >>> 1;
+					if (placed.getInt(mid, 1) + diameter <= bandY) {
+						low = mid + 1;
+					} else {
+						high = mid;
+					}
+				}
+				for (int i = low; i < end; i ++) {
+					int y = placed.getInt(i, 1);
+					if (y >= bandY + rows) {
+						break;
+					}
+					rasterizer.drawInto(band, width, bandY, rows, placed.getInt(i, 0), y, diameter, placed.getInt(i, 3));
+				}
+			}
+			output.stripe(bandY, rows, band);
+		}
+		output.end();
+	}
+	
+	private File createTempFile(String name) throws IOException {
+		File file = File.createTempFile("circleizer-" + name, ".bin", tempDirectory);
+		file.deleteOnExit();
+		return file;
+	}
+	
+	private static ImageReader readerOf(ImageInputStream in, File input) throws IOException {
+		Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+		if (!readers.hasNext()) {
+			throw new IOException("Failed to get image from " + input.getAbsolutePath());
+		}
+		ImageReader reader = readers.next();
+		reader.setInput(in);
+		return reader;
+	}
+	
+	/**
+	 * Writes placed bubbles to a file as rows of four native-order ints, and remembers where every size pass starts.
+	 */
+	private static final class BubbleFile implements BubbleSink {
+		
+		final FileOutputStream out;
+		final FileChannel channel;
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024).order(ByteOrder.nativeOrder());
+		
+		int width;
+		int height;
+		int backgroundColor;
+		
+		final ArrayList<Integer> passStarts = new ArrayList<Integer>();
+		int count;
+		int lastDiameter;
+		
+		BubbleFile(File file) throws IOException {
+			out = new FileOutputStream(file);
+			channel = out.getChannel();
+		}
+		
+		@Override
+		public void begin(int width, int height, int backgroundColor) {
+			this.width = width;
+			this.height = height;
+			this.backgroundColor = backgroundColor;
+		}
+		
+		@Override
+		public void bubble(int x, int y, int diameter, int rgb) throws IOException {
+			if (count == 0 || diameter != lastDiameter) {
+				passStarts.add(count);
+				lastDiameter = diameter;
+			}
+			if (buffer.remaining() < BUBBLE_BYTES) {
+				flush();
+			}
+			buffer.putInt(x).putInt(y).putInt(diameter).putInt(rgb);
+			count ++;
+		}
+		
+		@Override
+		public void end() throws IOException {
+			flush();
+		}
+		
+		void close() throws IOException {
+			out.close();
+		}
+		
+		private void flush() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			buffer.clear();
+		}
+	}
+	
+}
@@ -0,0 +1,238 @@
+package qmpzaltb.circleizer;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Keeps the counted cubic tables and found colors of images, so finding the colors of the same image again doesn't count it again.
+ * A ColorFinder uses a cache once it is given one with setPaletteCache. Several ColorFinders can share a cache.
+ * <p>
+ * Images are told apart by a hash of their size and all of their pixels, which takes a single quick pass over the image.
+ * A table is kept for every image, resolution and pixel budget, together with the colors found in it for every color amount and extractor,
+ * so finding a different amount of colors in the same image only runs the extractor again.
+ * Tables take 4 bytes per cell of the cube; the least recently used ones are dropped once the cache holds more than its maximum amount of bytes.
+ * 
+ * @author qmpzaltb
+ *
+ */
+public class PaletteCache {
+	
+	public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+	
+	/**
+	 * The amount of rows read at once while hashing an image.
+	 */
+	private static final int STRIP_HEIGHT = 16;
+	
+	private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+	private long bytes;
+	private long maxBytes;
+	
+	private long hits;
+	private long misses;
+	
+	public PaletteCache() {
+		this(DEFAULT_MAX_BYTES);
+	}
+	
+	public PaletteCache(long maxBytes) {
+		setMaxBytes(maxBytes);
+	}
+	
+	/**
+	 * Sets how many bytes the kept tables and colors may take up at most.
+	 */
+	public synchronized void setMaxBytes(long maxBytes) {
+		this.maxBytes = Math.max(0, maxBytes);
+		evict();
+	}
+	
+	public synchronized void clear() {
+		for (Entry entry : entries.values()) {
+			entry.dropped = true;
+		}
+		entries.clear();
+		bytes = 0;
+	}
+	
+	/**
+	 * @return how many times a kept table was found
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+	
+	/**
+	 * @return how many times an image had to be counted
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+	
+	/**
+	 * @return the amount of bytes the kept tables and colors take up
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+	
+	/**
+	 * Finds the kept table of an image with the given settings, counting the image with the given ColorFinder if there is none.
+	 */
+	Entry entryFor(ColorFinder finder, ImagePixels image, PaletteSettings settings) {
+		Key key = new Key(fingerprint(image), image.getWidth(), image.getHeight(), settings.resolutionR, settings.resolutionG, settings.resolutionB, settings.pixelBudget);
+		synchronized (this) {
+			Entry entry = entries.get(key);
+			if (entry != null) {
+				hits ++;
+				return entry;
+			}
+			misses ++;
+		}
+		
+		// counted outside the lock; if another thread counts the same image meanwhile, the last one wins
+		Entry entry = new Entry(finder.countColors(image, settings));
+		synchronized (this) {
+			Entry replaced = entries.put(key, entry);
+			if (replaced != null) {
+				replaced.dropped = true;
+				bytes -= replaced.bytes;
+			}
+			bytes += entry.bytes;
+			evict();
+		}
+		return entry;
+	}
+	
+	private void evict() {
+		Iterator<Entry> leastRecent = entries.values().iterator();
+		while (bytes > maxBytes && leastRecent.hasNext()) {
+			Entry entry = leastRecent.next();
+			entry.dropped = true;
+			bytes -= entry.bytes;
+			leastRecent.remove();
+		}
+	}
+	
+	/**
+	 * Hashes the size and every pixel of an image. Images with the same hash are taken to be the same image.
+	 * Pixels are hashed in four interleaved lanes that are mixed at the end, so the multiplications don't wait on each other.
+	 */
+	static long fingerprint(ImagePixels image) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		long h0 = width * 0x9E3779B97F4A7C15L + height;
+		long h1 = 1;
+		long h2 = 2;
+		long h3 = 3;
+		int[] strip = new int[width * Math.min(STRIP_HEIGHT, Math.max(1, height))];
+		for (int y = 0; y < height; y += STRIP_HEIGHT) {
+			int rows = Math.min(STRIP_HEIGHT, height - y);
+			image.getRows(y, rows, strip);
+			int end = rows * width;
+			int i = 0;
+			for (; i + 4 <= end; i += 4) {
+				h0 = (h0 + strip[i]) * 0xBF58476D1CE4E5B9L;
+				h1 = (h1 + strip[i + 1]) * 0xBF58476D1CE4E5B9L;
+				h2 = (h2 + strip[i + 2]) * 0xBF58476D1CE4E5B9L;
+				h3 = (h3 + strip[i + 3]) * 0xBF58476D1CE4E5B9L;
+				h0 ^= h0 >>> 29;
+				h1 ^= h1 >>> 29;
+				h2 ^= h2 >>> 29;
+				h3 ^= h3 >>> 29;
+			}
+			for (; i < end; i ++) {
+				h0 = (h0 + strip[i]) * 0xBF58476D1CE4E5B9L;
+				h0 ^= h0 >>> 29;
+			}
+		}
+		long hash = h0;
+		hash = (hash ^ h1) * 0x94D049BB133111EBL;
+		hash = (hash ^ (hash >>> 31) ^ h2) * 0x94D049BB133111EBL;
+		hash = (hash ^ (hash >>> 31) ^ h3) * 0x94D049BB133111EBL;
+		return hash ^ (hash >>> 31);
+	}
+	
+	/**
+	 * The kept table of one image, and the colors found in it so far.
+	 */
+	final class Entry {
+		
+		final ColorHistogram histogram;
+		private final HashMap<String, int[]> palettes = new HashMap<String, int[]>();
+		long bytes;
+		
+		/**
+		 * Whether the entry is no longer kept, so colors found for it don't count towards the bytes of the cache.
+		 */
+		boolean dropped;
+		
+		Entry(ColorHistogram histogram) {
+			this.histogram = histogram;
+			bytes = histogram.volume.length * 4L;
+		}
+		
+		/**
+		 * @return the colors the given ColorFinder finds in the table, found once per extractor and color amount
+		 */
+		int[] colors(ColorFinder finder, int colorAmount) {
+			String paletteKey = finder.paletteKey() + "/" + colorAmount;
+			synchronized (PaletteCache.this) {
+				int[] colors = palettes.get(paletteKey);
+				if (colors != null) {
+					return colors.clone();
+				}
+			}
+			int[] colors = finder.split(histogram, colorAmount);
+			synchronized (PaletteCache.this) {
+				if (palettes.put(paletteKey, colors) == null) {
+					long paletteBytes = colors.length * 4L + paletteKey.length() * 2L;
+					bytes += paletteBytes;
+					if (!dropped) {
+						PaletteCache.this.bytes += paletteBytes;
+						evict();
+					}
+				}
+			}
+			return colors.clone();
+		}
+	}
+	
+	private static final class Key {
+		
+		final long fingerprint;
+		final int width;
+		final int height;
+		final int resolutionR;
+		final int resolutionG;
+		final int resolutionB;
+		final int pixelBudget;
+		
+		Key(long fingerprint, int width, int height, int resolutionR, int resolutionG, int resolutionB, int pixelBudget) {
+			this.fingerprint = fingerprint;
+			this.width = width;
+			this.height = height;
+			this.resolutionR = resolutionR;
+			this.resolutionG = resolutionG;
+			this.resolutionB = resolutionB;
+			this.pixelBudget = pixelBudget;
+		}
+		
+		@Override
+		public int hashCode() {
+			return (int) (fingerprint ^ (fingerprint >>> 32)) + 31 * (resolutionR + 31 * (resolutionG + 31 * (resolutionB + 31 * pixelBudget)));
+		}
+		
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Key)) {
+				return false;
+			}
+			Key key = (Key) other;
+			return fingerprint == key.fingerprint && width == key.width && height == key.height
+					&& resolutionR == key.resolutionR && resolutionG == key.resolutionG && resolutionB == key.resolutionB && pixelBudget == key.pixelBudget;
+		}
+	}
+	
+}
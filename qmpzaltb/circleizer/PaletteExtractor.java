@@ -0,0 +1,46 @@
+package qmpzaltb.circleizer;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Finds a small set of colors that represents the colors of an image well.
+ * 
+ * @author qmpzaltb
+ *
+ */
+public interface PaletteExtractor {
+	
+	/**
+	 * Finds distinct colors for the given image.
+	 * @return the colors in RGB form
+	 */
+	int[] findColors(BufferedImage image);
+	
+	/**
+	 * Finds distinct colors for the given image, and reports how long that took and how well the colors fit the image.
+	 */
+	PaletteResult extractPalette(BufferedImage image);
+	
+	/**
+	 * Finds distinct colors for the given pixels.
+	 * @see #findColors(BufferedImage)
+	 */
+	int[] findColors(ImagePixels image);
+	
+	/**
+	 * @see #extractPalette(BufferedImage)
+	 */
+	PaletteResult extractPalette(ImagePixels image);
+	
+	/**
+	 * Finds distinct colors for the given pixels with the given settings instead of the ones of this extractor.
+	 * @see #findColors(BufferedImage)
+	 */
+	int[] findColors(ImagePixels image, PaletteSettings settings);
+	
+	/**
+	 * @see #extractPalette(BufferedImage)
+	 */
+	PaletteResult extractPalette(ImagePixels image, PaletteSettings settings);
+	
+}
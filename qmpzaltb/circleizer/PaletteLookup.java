@@ -0,0 +1,195 @@
+package qmpzaltb.circleizer;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Finds the closest circle color to an RGB color without comparing it against every circle color.
+ * The RGB cube is split into 32x32x32 cells, and every cell keeps the circle colors that are closest to at least one point within it.
+ * Most cells only keep one, so finding a closest color is usually a single lookup.
+ * Ties go to the color that comes first, just like a plain search through the colors.
+ * <p>
+ * Lookups are cached by their colors, so images circleized with the same colors share one.
+ * 
+ * @author qmpzaltb
+ *
+ */
+final class PaletteLookup {
+	
+	private static final int CELL_BITS = 5;
+	private static final int CELLS_PER_CHANNEL = 1 << CELL_BITS;
+	private static final int CELL_SIZE = 256 / CELLS_PER_CHANNEL;
+	
+	private static final int CACHE_SIZE = 16;
+	
+	private static final LinkedHashMap<Key, PaletteLookup> cache = new LinkedHashMap<Key, PaletteLookup>(CACHE_SIZE, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, PaletteLookup> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+	
+	private final int[] colors;
+	
+	/**
+	 * The candidates of cell i are candidates[cellStart[i]] up to candidates[cellStart[i + 1]], as indices into colors.
+	 */
+	private final int[] cellStart;
+	private final int[] candidates;
+	
+	/**
+	 * @return the lookup for the given colors, from the cache if it has been made before
+	 */
+	static PaletteLookup forColors(int[] colors) {
+		Key key = new Key(colors);
+		synchronized (cache) {
+			PaletteLookup lookup = cache.get(key);
+			if (lookup != null) {
+				return lookup;
+			}
+		}
+		PaletteLookup lookup = new PaletteLookup(key.colors);
+		synchronized (cache) {
+			cache.put(key, lookup);
+		}
+		return lookup;
+	}
+	
+	private PaletteLookup(int[] colors) {
+		this.colors = colors;
+		int cellCount = CELLS_PER_CHANNEL * CELLS_PER_CHANNEL * CELLS_PER_CHANNEL;
+		cellStart = new int[cellCount + 1];
+		
+		int[] found = new int[cellCount * Math.min(colors.length, 4) + 1];
+		int foundCount = 0;
+		int[] nearest = new int[colors.length];
+		
+		for (int cell = 0; cell < cellCount; cell ++) {
+			int rMin = (cell >> (2 * CELL_BITS)) * CELL_SIZE;
+			int gMin = ((cell >> CELL_BITS) & (CELLS_PER_CHANNEL - 1)) * CELL_SIZE;
+			int bMin = (cell & (CELLS_PER_CHANNEL - 1)) * CELL_SIZE;
+			
+			// no point of the cell is further than bound from the color that is furthest from it at worst,
+			// so a color that is further than bound from every point of the cell is never the closest
+			int bound = Integer.MAX_VALUE;
+			for (int i = 0; i < colors.length; i ++) {
+				int r = (colors[i] >> 16) & 0xFF;
+				int g = (colors[i] >> 8) & 0xFF;
+				int b = colors[i] & 0xFF;
+				nearest[i] = square(gap(r, rMin)) + square(gap(g, gMin)) + square(gap(b, bMin));
+				bound = Math.min(bound, square(span(r, rMin)) + square(span(g, gMin)) + square(span(b, bMin)));
+			}
+			
+			cellStart[cell] = foundCount;
+			for (int i = 0; i < colors.length; i ++) {
+				if (nearest[i] <= bound) {
+					if (foundCount == found.length) {
+						found = Arrays.copyOf(found, found.length * 2);
+					}
+					found[foundCount ++] = i;
+				}
+			}
+		}
+		cellStart[cellCount] = foundCount;
+		candidates = Arrays.copyOf(found, foundCount);
+	}
+	
+	/**
+	 * @return the closest of the colors to the given RGB color
+	 */
+	int closestColor(int rgb) {
+		int cell = (((rgb >> 16) & 0xFF) / CELL_SIZE << (2 * CELL_BITS)) | (((rgb >> 8) & 0xFF) / CELL_SIZE << CELL_BITS) | ((rgb & 0xFF) / CELL_SIZE);
+		int start = cellStart[cell];
+		int end = cellStart[cell + 1];
+		if (end - start == 1) {
+			return colors[candidates[start]];
+		}
+		int closestColor = -1;
+		int closestDistance = Integer.MAX_VALUE;
+		for (int i = start; i < end; i ++) {
+			int distance = fastDistance(colors[candidates[i]], rgb);
+			if (distance < closestDistance) {
+				closestDistance = distance;
+				closestColor = colors[candidates[i]];
+			}
+		}
+		return closestColor;
+	}
+	
+	int[] getColors() {
+		return colors;
+	}
+	
+	/**
+	 * @return the distance from a value to the nearest value of a cell
+	 */
+	private static int gap(int value, int cellMin) {
+		if (value < cellMin) {
+			return cellMin - value;
+		}
+		if (value > cellMin + CELL_SIZE - 1) {
+			return value - (cellMin + CELL_SIZE - 1);
+		}
+		return 0;
+	}
+	
+	/**
+	 * @return the distance from a value to the furthest value of a cell
+	 */
+	private static int span(int value, int cellMin) {
+		return Math.max(Math.abs(value - cellMin), Math.abs(value - (cellMin + CELL_SIZE - 1)));
+	}
+	
+	private static int square(int value) {
+		return value * value;
+	}
+	
+	/**
+	 * Returns a relative distance between two rgb int values.
+	 * @param rgb1 the first rgb int value
+	 * @param rgb2 the second rgb int value
+	 * @return the Euclidean distance between the colors' dimensions squared
+	 */
+	static int fastDistance(int rgb1, int rgb2) {
+		int r1 = (rgb1 >> 16) & 0xFF;
+		int g1 = (rgb1 >> 8) & 0xFF;
+		int b1 = (rgb1) & 0xFF;
+		
+		int r2 = (rgb2 >> 16) & 0xFF;
+		int g2 = (rgb2 >> 8) & 0xFF;
+		int b2 = (rgb2) & 0xFF;
+		
+		int dr = r2 - r1;
+		int dg = g2 - g1;
+		int db = b2 - b1;
+		
+		return (dr * dr + dg * dg + db * db);
+	}
+	
+	/**
+	 * A copy of a set of colors, compared by content.
+	 */
+	private static final class Key {
+		
+		final int[] colors;
+		final int hash;
+		
+		Key(int[] colors) {
+			this.colors = colors.clone();
+			hash = Arrays.hashCode(colors);
+		}
+		
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+		
+		@Override
+		public boolean equals(Object other) {
+			return other instanceof Key && Arrays.equals(colors, ((Key) other).colors);
+		}
+	}
+	
+}
@@ -0,0 +1,47 @@
+package qmpzaltb.circleizer;
+
+/**
+ * The colors found by a PaletteExtractor, along with what it took to find them.
+ * 
+ * @author qmpzaltb
+ *
+ */
+public class PaletteResult {
+	
+	private final int[] colors;
+	private final long nanos;
+	private final double meanSquaredError;
+	
+	public PaletteResult(int[] colors, long nanos, double meanSquaredError) {
+		this.colors = colors;
+		this.nanos = nanos;
+		this.meanSquaredError = meanSquaredError;
+	}
+	
+	/**
+	 * @return the found colors in RGB form
+	 */
+	public int[] getColors() {
+		return colors;
+	}
+	
+	/**
+	 * @return the time it took to find the colors, counting the image included, in nanoseconds
+	 */
+	public long getNanos() {
+		return nanos;
+	}
+	
+	/**
+	 * @return the average squared RGB distance from the counted pixels to their closest found color,
+	 *   with pixels at the center of the histogram cell they were counted in
+	 */
+	public double getMeanSquaredError() {
+		return meanSquaredError;
+	}
+	
+	public String toString() {
+		return colors.length + " colors in " + (nanos / 1000000.0) + " ms, mean squared error " + meanSquaredError;
+	}
+	
+}
@@ -0,0 +1,127 @@
+package qmpzaltb.circleizer;
+
+/**
+ * The settings of a single palette extraction: the resolution of the color cube, the amount of colors, and how the image is counted.
+ * Settings never change once created; every withX method returns a copy with one setting changed,
+ * so the same settings can be handed to any amount of concurrent calls.
+ * 
+ * @author qmpzaltb
+ *
+ */
+public final class PaletteSettings {
+	
+	/**
+	 * The settings of a new ColorFinder: a resolution of 32, 8 colors, a single thread and every pixel counted.
+	 */
+	public static final PaletteSettings DEFAULT = new PaletteSettings(32, 32, 32, 8, 1, 0);
+	
+	final int resolutionR;
+	final int resolutionG;
+	final int resolutionB;
+	
+	final int colorAmount;
+	
+	/**
+	 * The amount of threads used to count the colors of an image.
+	 */
+	final int parallelism;
+	
+	/**
+	 * The approximate amount of pixels to count, or 0 to count every pixel.
+	 */
+	final int pixelBudget;
+	
+	private PaletteSettings(int resolutionR, int resolutionG, int resolutionB, int colorAmount, int parallelism, int pixelBudget) {
+		this.resolutionR = resolutionR;
+		this.resolutionG = resolutionG;
+		this.resolutionB = resolutionB;
+		this.colorAmount = colorAmount;
+		this.parallelism = parallelism;
+		this.pixelBudget = pixelBudget;
+	}
+	
+	/**
+	 * @param resolution the resolution of every channel, from 1-256 (inclusive)
+	 * @see ColorFinder#setResolution(int)
+	 */
+	public PaletteSettings withResolution(int resolution) {
+		checkResolution(resolution);
+		return new PaletteSettings(resolution, resolution, resolution, colorAmount, parallelism, pixelBudget);
+	}
+	
+	public PaletteSettings withResolutionR(int resolution) {
+		checkResolution(resolution);
+		return new PaletteSettings(resolution, resolutionG, resolutionB, colorAmount, parallelism, pixelBudget);
+	}
+	
+	public PaletteSettings withResolutionG(int resolution) {
+		checkResolution(resolution);
+		return new PaletteSettings(resolutionR, resolution, resolutionB, colorAmount, parallelism, pixelBudget);
+	}
+	
+	public PaletteSettings withResolutionB(int resolution) {
+		checkResolution(resolution);
+		return new PaletteSettings(resolutionR, resolutionG, resolution, colorAmount, parallelism, pixelBudget);
+	}
+	
+	/**
+	 * @param colorAmount the amount of colors to find, a positive, non-zero value
+	 * @see ColorFinder#setColorAmount(int)
+	 */
+	public PaletteSettings withColorAmount(int colorAmount) {
+		if (colorAmount < 1) {
+			throw new IllegalArgumentException("colorAmount must be positive: " + colorAmount);
+		}
+		return new PaletteSettings(resolutionR, resolutionG, resolutionB, colorAmount, parallelism, pixelBudget);
+	}
+	
+	/**
+	 * @param parallelism the amount of threads, a positive non-zero value
+	 * @see ColorFinder#setParallelism(int)
+	 */
+	public PaletteSettings withParallelism(int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+		}
+		return new PaletteSettings(resolutionR, resolutionG, resolutionB, colorAmount, parallelism, pixelBudget);
+	}
+	
+	/**
+	 * @param pixelBudget the approximate amount of pixels to count, or 0 to count every pixel
+	 * @see ColorFinder#setPixelBudget(int)
+	 */
+	public PaletteSettings withPixelBudget(int pixelBudget) {
+		return new PaletteSettings(resolutionR, resolutionG, resolutionB, colorAmount, parallelism, Math.max(0, pixelBudget));
+	}
+	
+	public int getResolutionR() {
+		return resolutionR;
+	}
+	
+	public int getResolutionG() {
+		return resolutionG;
+	}
+	
+	public int getResolutionB() {
+		return resolutionB;
+	}
+	
+	public int getColorAmount() {
+		return colorAmount;
+	}
+	
+	public int getParallelism() {
+		return parallelism;
+	}
+	
+	public int getPixelBudget() {
+		return pixelBudget;
+	}
+	
+	private static void checkResolution(int resolution) {
+		if (resolution < 1 || resolution > 256) {
+			throw new IllegalArgumentException("resolution must be from 1 to 256: " + resolution);
+		}
+	}
+	
+}
@@ -0,0 +1,109 @@
+package qmpzaltb.circleizer;
+
+import java.lang.management.ManagementFactory;
+
+import com.sun.management.ThreadMXBean;
+
+/**
+ * Measures phases for an Instrumentation: the time since it was started or last reported, and the bytes the current thread allocated meanwhile.
+ * For an instrumentation that isn't enabled, the shared timer that doesn't measure anything is used, so uninstrumented calls cost nothing.
+ * A timer belongs to the thread that started it.
+ *
+ * @author qmpzaltb
+ *
+ */
+final class PhaseTimer {
+	
+	private static final PhaseTimer DISABLED = new PhaseTimer(Instrumentation.NONE);
+	
+	/**
+	 * Tells how many bytes a thread allocated, or null if this JVM can't.
+	 */
+	private static final ThreadMXBean THREADS = threads();
+	
+	private final Instrumentation instrumentation;
+	private long start;
+	private long allocated;
+	
+	private PhaseTimer(Instrumentation instrumentation) {
+		this.instrumentation = instrumentation;
+	}
+	
+	/**
+	 * @return a timer started now, reporting to the given instrumentation
+	 */
+	static PhaseTimer start(Instrumentation instrumentation) {
+		if (!instrumentation.isEnabled()) {
+			return DISABLED;
+		}
+		PhaseTimer timer = new PhaseTimer(instrumentation);
+		timer.restart();
+		return timer;
+	}
+	
+	boolean isEnabled() {
+		return this != DISABLED;
+	}
+	
+	/**
+	 * Starts measuring again from now.
+	 */
+	void restart() {
+		if (this == DISABLED) {
+			return;
+		}
+		start = System.nanoTime();
+		allocated = allocatedBytes();
+	}
+	
+	/**
+	 * Reports the phase that ran since the timer was last started, and starts it again.
+	 */
+	void phase(int phase) {
+		if (this == DISABLED) {
+			return;
+		}
+		long nanos = System.nanoTime() - start;
+		long bytes = allocatedBytes() - allocated;
+		instrumentation.phase(phase, nanos, bytes);
+		restart();
+	}
+	
+	/**
+	 * Reports the bubble placement pass that ran since the timer was last started, and starts it again.
+	 */
+	void placementPass(int size, long candidates, long rejectedEarly, long placed) {
+		if (this == DISABLED) {
+			return;
+		}
+		long nanos = System.nanoTime() - start;
+		long bytes = allocatedBytes() - allocated;
+		instrumentation.placementPass(size, nanos, bytes, candidates, rejectedEarly, placed);
+		restart();
+	}
+	
+	/**
+	 * @return how many bytes the current thread allocated so far, or 0 if the JVM can't tell
+	 */
+	static long allocatedBytes() {
+		return THREADS == null ? 0 : THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+	
+	private static ThreadMXBean threads() {
+		try {
+			if (ManagementFactory.getThreadMXBean() instanceof ThreadMXBean) {
+				ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+				if (threads.isThreadAllocatedMemorySupported()) {
+					threads.setThreadAllocatedMemoryEnabled(true);
+					return threads;
+				}
+			}
+		} catch (UnsupportedOperationException e) {
+			// no allocation counts on this JVM
+		} catch (LinkageError e) {
+			// no com.sun.management on this JVM
+		}
+		return null;
+	}
+	
+}
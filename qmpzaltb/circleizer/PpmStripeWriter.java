@@ -0,0 +1,77 @@
+package qmpzaltb.circleizer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes an image as a binary PPM (P6) file, one memory-mapped stripe at a time.
+ * PPM has no compression, so every stripe goes straight to its place in the file and images of any size can be written with little memory.
+ * Most image tools can convert the result to other formats.
+ * <p>
+ * Stripes are only written to the file's pages in memory, and the file is forced to the disk once, at the end.
+ * If writing is given up before the end, close() closes the file.
+ * 
+ * @author qmpzaltb
+ *
+ */
+public class PpmStripeWriter implements StripeWriter, Closeable {
+	
+	private final File file;
+	private RandomAccessFile access;
+	private long pixelsStart;
+	private int width;
+	
+	public PpmStripeWriter(File file) {
+		this.file = file;
+	}
+	
+	@Override
+	public void begin(int width, int height) throws IOException {
+		this.width = width;
+		byte[] header = ("P6\n" + width + " " + height + "\n255\n").getBytes(StandardCharsets.US_ASCII);
+		access = new RandomAccessFile(file, "rw");
+		access.setLength(0);
+		access.write(header);
+		pixelsStart = header.length;
+		access.setLength(pixelsStart + 3L * width * height);
+	}
+	
+	@Override
+	public void stripe(int y, int rows, int[] rgb) throws IOException {
+		long rowBytes = 3L * width;
+		MappedByteBuffer region = access.getChannel().map(FileChannel.MapMode.READ_WRITE, pixelsStart + y * rowBytes, rows * rowBytes);
+		byte[] row = new byte[(int) rowBytes];
+		for (int r = 0; r < rows; r ++) {
+			for (int x = 0, i = 0, p = r * width; x < width; x ++, p ++) {
+				int pixel = rgb[p];
+				row[i ++] = (byte) (pixel >> 16);
+				row[i ++] = (byte) (pixel >> 8);
+				row[i ++] = (byte) pixel;
+			}
+			region.put(row);
+		}
+	}
+	
+	@Override
+	public void end() throws IOException {
+		access.getChannel().force(false);
+		close();
+	}
+	
+	/**
+	 * Closes the file if it is still open. Does nothing after end().
+	 */
+	@Override
+	public void close() throws IOException {
+		if (access != null) {
+			access.close();
+			access = null;
+		}
+	}
+	
+}
@@ -0,0 +1,66 @@
+package qmpzaltb.circleizer;
+
+/**
+ * Collects bubbles into a buffer and hands the buffer to a SnapshotListener as it grows.
+ * Bubbles arrive largest first, so a smaller bubble means a size pass has ended. A snapshot is taken at the end of every pass,
+ * and within a pass whenever the interval has passed since the last one; never more often than the interval allows, except for the last.
+ * 
+ * @author qmpzaltb
+ *
+ */
+final class ProgressiveSink implements BubbleSink {
+	
+	/**
+	 * How many bubbles are added between looks at the clock.
+	 */
+	private static final int CLOCK_CHECK_INTERVAL = 1024;
+	
+	private final BubbleBuffer bubbles;
+	private final long intervalNanos;
+	private final SnapshotListener listener;
+	
+	private long lastSnapshot;
+	private int reported;
+	private int lastDiameter;
+	
+	ProgressiveSink(BubbleBuffer bubbles, long intervalNanos, SnapshotListener listener) {
+		this.bubbles = bubbles;
+		this.intervalNanos = intervalNanos;
+		this.listener = listener;
+	}
+	
+	@Override
+	public void begin(int width, int height, int backgroundColor) {
+		bubbles.begin(width, height, backgroundColor);
+		lastSnapshot = System.nanoTime();
+		reported = 0;
+		lastDiameter = Integer.MAX_VALUE;
+	}
+	
+	@Override
+	public void bubble(int x, int y, int diameter, int rgb) {
+		if (diameter < lastDiameter) {
+			lastDiameter = diameter;
+			snapshotIfDue();
+		} else if (intervalNanos > 0 && (bubbles.count - reported) % CLOCK_CHECK_INTERVAL == 0) {
+			snapshotIfDue();
+		}
+		bubbles.add(x, y, diameter, rgb);
+	}
+	
+	@Override
+	public void end() {
+		listener.snapshot(bubbles, reported, true);
+		reported = bubbles.count;
+	}
+	
+	private void snapshotIfDue() {
+		long now = System.nanoTime();
+		if (bubbles.count > reported && now - lastSnapshot >= intervalNanos) {
+			listener.snapshot(bubbles, reported, false);
+			reported = bubbles.count;
+			lastSnapshot = now;
+		}
+	}
+	
+}
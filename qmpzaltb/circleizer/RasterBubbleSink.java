@@ -0,0 +1,60 @@
+package qmpzaltb.circleizer;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+
+/**
+ * Draws bubbles into a BufferedImage with antialiased Java2D ovals.
+ * 
+ * @author qmpzaltb
+ *
+ */
+public class RasterBubbleSink implements BubbleSink {
+	
+	private static final int COLOR_CACHE_BITS = 10;
+	
+	private BufferedImage image;
+	private Graphics2D g;
+	
+	/**
+	 * A direct-mapped cache of Color objects, since palettes are small and the same colors come up over and over.
+	 */
+	private final int[] cachedRgbs = new int[1 << COLOR_CACHE_BITS];
+	private final Color[] cachedColors = new Color[1 << COLOR_CACHE_BITS];
+	
+	@Override
+	public void begin(int width, int height, int backgroundColor) {
+		image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		g = (Graphics2D) image.getGraphics();
+		g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		g.setColor(new Color(backgroundColor));
+		g.fillRect(0, 0, width, height);
+	}
+	
+	@Override
+	public void bubble(int x, int y, int diameter, int rgb) {
+		int slot = (rgb * 0x9E3779B9) >>> (32 - COLOR_CACHE_BITS);
+		if (cachedColors[slot] == null || cachedRgbs[slot] != rgb) {
+			cachedColors[slot] = new Color(rgb);
+			cachedRgbs[slot] = rgb;
+		}
+		g.setColor(cachedColors[slot]);
+		g.fillOval(x, y, diameter, diameter);
+	}
+	
+	@Override
+	public void end() {
+		g.dispose();
+		g = null;
+	}
+	
+	/**
+	 * @return the drawn image, or null if nothing has been drawn yet
+	 */
+	public BufferedImage getImage() {
+		return image;
+	}
+	
+}
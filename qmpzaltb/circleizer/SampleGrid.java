@@ -0,0 +1,252 @@
+package qmpzaltb.circleizer;
+
+/**
+ * The grid on which circles are created, essentially a downscaled version of the original image.
+ * Every sample holds the circle color closest to it, and whether a bubble already covers it.
+ * <p>
+ * Coverage and color changes are kept in bitplanes, one bit per sample and 64 samples per long.
+ * Every row starts at a new long, so row spans of a bubble can be tested and marked a whole long at a time,
+ * and bubbles whose bounding squares lie in different 64-sample column blocks never write to the same long.
+ * 
+ * @author qmpzaltb
+ *
+ */
+final class SampleGrid {
+	
+	int width;
+	int height;
+	
+	/**
+	 * The amount of longs per row of a bitplane.
+	 */
+	int rowWords;
+	
+	/**
+	 * The circle color of every sample in RGB form, row by row.
+	 */
+	int[] colors;
+	
+	/**
+	 * A bit for every sample that is covered by a bubble.
+	 */
+	long[] covered;
+	
+	/**
+	 * A bit for every sample whose color differs from the sample to its left, and for the first sample of every row.
+	 * A row span has a single color if none of its samples but the first have their bit set.
+	 */
+	long[] colorEdges;
+	
+	/**
+	 * Tells which blocks of samples have a single color and no bubble on them, kept up to date as bubbles are covered;
+	 * null unless buildIndex was called since the colors or the coverage last changed otherwise.
+	 */
+	UniformityIndex index;
+	
+	/**
+	 * The arrays of the index, kept while it isn't used so it can be built again without allocating.
+	 */
+	private UniformityIndex spareIndex;
+	
+	SampleGrid(int width, int height) {
+		this.width = width;
+		this.height = height;
+		rowWords = (width + 63) >>> 6;
+		colors = new int[width * height];
+		covered = new long[rowWords * height];
+		colorEdges = new long[rowWords * height];
+	}
+	
+	/**
+	 * Makes this grid an uncovered grid of another size, reusing its arrays if they are large enough.
+	 * The colors have to be set again, and the color edges updated.
+	 * @return whether the arrays were large enough; if not, nothing is changed
+	 */
+	boolean reset(int width, int height) {
+		int rowWords = (width + 63) >>> 6;
+		if (colors.length < width * height || covered.length < rowWords * height) {
+			return false;
+		}
+		this.width = width;
+		this.height = height;
+		this.rowWords = rowWords;
+		for (int i = 0, end = rowWords * height; i < end; i ++) {
+			covered[i] = 0;
+		}
+		index = null;
+		return true;
+	}
+	
+	/**
+	 * Builds the uniformity index for the current colors and coverage, which cover then keeps up to date.
+	 */
+	void buildIndex() {
+		if (spareIndex == null) {
+			spareIndex = new UniformityIndex();
+		}
+		spareIndex.build(this);
+		index = spareIndex;
+	}
+	
+	/**
+	 * Stops keeping the uniformity index up to date, when the bubbles still to be placed are too small to skip anything with it.
+	 */
+	void dropIndex() {
+		index = null;
+	}
+	
+	/**
+	 * Recalculates the color edges after the colors have been set.
+	 */
+	void updateColorEdges() {
+		updateColorEdges(0, height);
+	}
+	
+	/**
+	 * Recalculates the color edges of the rows from minY (inclusive) to maxY (exclusive) after their colors have changed.
+	 */
+	void updateColorEdges(int minY, int maxY) {
+		index = null;
+		if (width == 0) {
+			// rows without samples have no words to mark the start of
+			return;
+		}
+		for (int y = minY; y < maxY; y ++) {
+			int rowStart = y * width;
+			int rowBase = y * rowWords;
+			for (int w = 0; w < rowWords; w ++) {
+				colorEdges[rowBase + w] = 0;
+			}
+			colorEdges[rowBase] = 1L;
+			for (int x = 1; x < width; x ++) {
+				if (colors[rowStart + x] != colors[rowStart + x - 1]) {
+					colorEdges[rowBase + (x >>> 6)] |= 1L << x;
+				}
+			}
+		}
+	}
+	
+	boolean isCovered(int x, int y) {
+		return (covered[y * rowWords + (x >>> 6)] & (1L << x)) != 0;
+	}
+	
+	/**
+	 * Checks whether a bubble with its bounding square at x, y fits on the grid, only covers uncovered samples, and only covers samples of the given color.
+	 * The colors of all row spans are checked before their coverage, since a differently colored sample is the more common reason to fail.
+	 */
+	boolean canPlace(int x, int y, DiskMask mask, int color) {
+		int size = mask.size;
+		if (x + size > width || y + size > height) {
+			return false;
+		}
+		for (int yy = 0; yy < size; yy ++) {
+			int start = x + mask.spanStart[yy];
+			int end = x + mask.spanEnd[yy];
+			if (start == end) {
+				continue;
+			}
+			if (colors[start + (y + yy) * width] != color || anyBits(colorEdges, (y + yy) * rowWords, start + 1, end)) {
+				return false;
+			}
+		}
+		for (int yy = 0; yy < size; yy ++) {
+			if (anyBits(covered, (y + yy) * rowWords, x + mask.spanStart[yy], x + mask.spanEnd[yy])) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Marks the samples of a bubble with its bounding square at x, y as covered.
+	 */
+	void cover(int x, int y, DiskMask mask) {
+		for (int yy = 0; yy < mask.size; yy ++) {
+			setBits(covered, (y + yy) * rowWords, x + mask.spanStart[yy], x + mask.spanEnd[yy]);
+		}
+		if (index != null) {
+			index.cover(x, y, mask);
+		}
+	}
+	
+	/**
+	 * Marks the samples of a bubble with its bounding square at x, y as uncovered again, when the bubble is taken away.
+	 * The uniformity index can't follow this, so it is dropped.
+	 */
+	void uncover(int x, int y, DiskMask mask) {
+		index = null;
+		for (int yy = 0; yy < mask.size; yy ++) {
+			clearBits(covered, (y + yy) * rowWords, x + mask.spanStart[yy], x + mask.spanEnd[yy]);
+		}
+	}
+	
+	/**
+	 * Checks whether any bit from 'from' (inclusive) to 'to' (exclusive) is set in the row of a bitplane starting at rowBase.
+	 */
+	static boolean anyBits(long[] plane, int rowBase, int from, int to) {
+		if (from >= to) {
+			return false;
+		}
+		int first = rowBase + (from >>> 6);
+		int last = rowBase + ((to - 1) >>> 6);
+		long firstMask = -1L << from;
+		long lastMask = -1L >>> -to;
+		if (first == last) {
+			return (plane[first] & firstMask & lastMask) != 0;
+		}
+		if ((plane[first] & firstMask) != 0) {
+			return true;
+		}
+		for (int w = first + 1; w < last; w ++) {
+			if (plane[w] != 0) {
+				return true;
+			}
+		}
+		return (plane[last] & lastMask) != 0;
+	}
+	
+	/**
+	 * Sets every bit from 'from' (inclusive) to 'to' (exclusive) in the row of a bitplane starting at rowBase.
+	 */
+	static void setBits(long[] plane, int rowBase, int from, int to) {
+		if (from >= to) {
+			return;
+		}
+		int first = rowBase + (from >>> 6);
+		int last = rowBase + ((to - 1) >>> 6);
+		long firstMask = -1L << from;
+		long lastMask = -1L >>> -to;
+		if (first == last) {
+			plane[first] |= firstMask & lastMask;
+			return;
+		}
+		plane[first] |= firstMask;
+		for (int w = first + 1; w < last; w ++) {
+			plane[w] = -1L;
+		}
+		plane[last] |= lastMask;
+	}
+	
+	/**
+	 * Clears every bit from 'from' (inclusive) to 'to' (exclusive) in the row of a bitplane starting at rowBase.
+	 */
+	static void clearBits(long[] plane, int rowBase, int from, int to) {
+		if (from >= to) {
+			return;
+		}
+		int first = rowBase + (from >>> 6);
+		int last = rowBase + ((to - 1) >>> 6);
+		long firstMask = -1L << from;
+		long lastMask = -1L >>> -to;
+		if (first == last) {
+			plane[first] &= ~(firstMask & lastMask);
+			return;
+		}
+		plane[first] &= ~firstMask;
+		for (int w = first + 1; w < last; w ++) {
+			plane[w] = 0;
+		}
+		plane[last] &= ~lastMask;
+	}
+	
+}
@@ -0,0 +1,42 @@
+package qmpzaltb.circleizer;
+
+import java.util.ArrayDeque;
+
+/**
+ * Keeps scratch objects between calls so that concurrent calls each get their own without allocating them every time.
+ * Objects are borrowed for the length of one call and given back afterwards; at most maxIdle of them are kept.
+ * This doesn't depend on which thread a call runs on, so it also works for short-lived threads.
+ * 
+ * @author qmpzaltb
+ *
+ */
+final class ScratchPool<T> {
+	
+	private final ArrayDeque<T> idle = new ArrayDeque<T>();
+	private final int maxIdle;
+	
+	ScratchPool(int maxIdle) {
+		this.maxIdle = maxIdle;
+	}
+	
+	/**
+	 * @return an idle scratch object, or null if there is none and the caller has to create one
+	 */
+	T borrow() {
+		synchronized (idle) {
+			return idle.pollFirst();
+		}
+	}
+	
+	/**
+	 * Gives back a scratch object that is no longer used. The most recently given back object is borrowed first, since it is the most likely to still be cached.
+	 */
+	void giveBack(T scratch) {
+		synchronized (idle) {
+			if (idle.size() < maxIdle) {
+				idle.addFirst(scratch);
+			}
+		}
+	}
+	
+}
@@ -0,0 +1,20 @@
+package qmpzaltb.circleizer;
+
+/**
+ * Receives the bubbles placed so far while an image is circleized progressively.
+ * 
+ * @author qmpzaltb
+ *
+ */
+public interface SnapshotListener {
+	
+	/**
+	 * Called with all bubbles placed so far, largest first. The buffer keeps growing after this returns,
+	 * so anything that should outlive the call has to be drawn or copied before returning.
+	 * @param bubbles the bubbles placed so far; its size is the size of the image
+	 * @param firstNew the index of the first bubble that wasn't in the previous snapshot, so a drawing can be refined by drawing just the new bubbles over it
+	 * @param finished whether all bubbles are placed
+	 */
+	void snapshot(BubbleBuffer bubbles, int firstNew, boolean finished);
+	
+}
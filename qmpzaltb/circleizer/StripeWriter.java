@@ -0,0 +1,31 @@
+package qmpzaltb.circleizer;
+
+import java.io.IOException;
+
+/**
+ * Receives an image a horizontal stripe of rows at a time, top to bottom, so that the whole image never has to be in memory.
+ * 
+ * @author qmpzaltb
+ *
+ */
+public interface StripeWriter {
+	
+	/**
+	 * Called before the first stripe.
+	 */
+	void begin(int width, int height) throws IOException;
+	
+	/**
+	 * Receives the next stripe of the image.
+	 * @param y the first row of the stripe
+	 * @param rows the amount of rows of the stripe
+	 * @param rgb the pixels of the stripe in RGB form, row by row; only valid until this returns
+	 */
+	void stripe(int y, int rows, int[] rgb) throws IOException;
+	
+	/**
+	 * Called after the last stripe.
+	 */
+	void end() throws IOException;
+	
+}
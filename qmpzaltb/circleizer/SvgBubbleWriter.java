@@ -0,0 +1,51 @@
+package qmpzaltb.circleizer;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes bubbles as an SVG document, one circle element per bubble.
+ * The underlying Writer is flushed, but not closed, at the end.
+ * 
+ * @author qmpzaltb
+ *
+ */
+public class SvgBubbleWriter implements BubbleSink {
+	
+	private final Writer out;
+	
+	public SvgBubbleWriter(Writer out) {
+		this.out = out;
+	}
+	
+	@Override
+	public void begin(int width, int height, int backgroundColor) throws IOException {
+		out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		out.write("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"" + width + "\" height=\"" + height + "\" viewBox=\"0 0 " + width + " " + height + "\">\n");
+		out.write("<rect width=\"" + width + "\" height=\"" + height + "\" fill=\"" + hex(backgroundColor) + "\"/>\n");
+	}
+	
+	@Override
+	public void bubble(int x, int y, int diameter, int rgb) throws IOException {
+		out.write("<circle cx=\"" + half(2 * x + diameter) + "\" cy=\"" + half(2 * y + diameter) + "\" r=\"" + half(diameter) + "\" fill=\"" + hex(rgb) + "\"/>\n");
+	}
+	
+	@Override
+	public void end() throws IOException {
+		out.write("</svg>\n");
+		out.flush();
+	}
+	
+	/**
+	 * @return value / 2, without a fraction if there isn't one
+	 */
+	private static String half(int value) {
+		return (value & 1) == 0 ? Integer.toString(value / 2) : (value / 2) + ".5";
+	}
+	
+	private static String hex(int rgb) {
+		String digits = Integer.toHexString(rgb & 0xFFFFFF);
+		return "#000000".substring(0, 7 - digits.length()) + digits;
+	}
+	
+}
@@ -0,0 +1,187 @@
+package qmpzaltb.circleizer;
+
+/**
+ * A mipmap of the sample grid that tells which square blocks of samples are clean: all of one color, and not covered by any bubble.
+ * Level L holds a node for every aligned block of 2^L by 2^L samples, from level 1 up to the largest block that fits in the grid;
+ * a node is clean if all of its children are clean with the same color. Blocks at the right and bottom of the grid hold only the samples within it.
+ * <p>
+ * A bubble only fits where it covers a single color and no other bubble, and every bubble covers the square in the middle of its bounding square
+ * (see DiskMask.innerSize). If that square holds a block that isn't clean, no bubble of that size fits at any of the places whose middle square holds it.
+ * Placement passes ask the index how many places they can skip this way, so on busy or mostly covered parts of the grid
+ * a single look at a large block skips a whole run of places. Skipping is exact: only places a bubble wouldn't be placed at are skipped.
+ * <p>
+ * Covering a bubble marks the blocks holding its samples as not clean, going up the levels until a block already wasn't.
+ * Colors never change while bubbles are placed, and coverage only grows, so once a block isn't clean it stays that way.
+ *
+ * @author qmpzaltb
+ *
+ */
+final class UniformityIndex {
+	
+	/**
+	 * The value of a node that holds more than one color, or a covered sample. Clean nodes hold their color in RGB form.
+	 */
+	static final int MIXED = -1;
+	
+	/**
+	 * Stands for the part of a block outside the grid while building, which doesn't make the block mixed.
+	 */
+	private static final int OUTSIDE = -2;
+	
+	/**
+	 * The nodes of every level, row by row. Level 0 would be the samples themselves, so it is left out.
+	 */
+	int[][] levels = new int[0][];
+	int[] levelWidths = new int[0];
+	int[] levelHeights = new int[0];
+	int levelCount;
+	
+	/**
+	 * Builds the index for the colors and coverage of a grid, reusing the arrays of the last grid if they are large enough.
+	 */
+	void build(SampleGrid grid) {
+		int count = 0;
+		while ((2 << count) <= Math.min(grid.width, grid.height)) {
+			count ++;
+		}
+		if (levels.length <= count) {
+			int[][] grown = new int[count + 1][];
+			System.arraycopy(levels, 0, grown, 0, levels.length);
+			levels = grown;
+			levelWidths = new int[count + 1];
+			levelHeights = new int[count + 1];
+		}
+		levelCount = count;
+		
+		for (int level = 1; level <= count; level ++) {
+			int side = 1 << level;
+			int levelWidth = (grid.width + side - 1) >> level;
+			int levelHeight = (grid.height + side - 1) >> level;
+			levelWidths[level] = levelWidth;
+			levelHeights[level] = levelHeight;
+			if (levels[level] == null || levels[level].length < levelWidth * levelHeight) {
+				levels[level] = new int[levelWidth * levelHeight];
+			}
+			int[] nodes = levels[level];
+			
+			// every node is clean if the up to four nodes (or samples) below it are clean and of the same color
+			for (int by = 0; by < levelHeight; by ++) {
+				for (int bx = 0; bx < levelWidth; bx ++) {
+					int value;
+					if (level == 1) {
+						value = sampleValue(grid, 2 * bx, 2 * by);
+						value = merge(value, sampleValue(grid, 2 * bx + 1, 2 * by));
+						value = merge(value, sampleValue(grid, 2 * bx, 2 * by + 1));
+						value = merge(value, sampleValue(grid, 2 * bx + 1, 2 * by + 1));
+					} else {
+						value = nodeValue(level - 1, 2 * bx, 2 * by);
+						value = merge(value, nodeValue(level - 1, 2 * bx + 1, 2 * by));
+						value = merge(value, nodeValue(level - 1, 2 * bx, 2 * by + 1));
+						value = merge(value, nodeValue(level - 1, 2 * bx + 1, 2 * by + 1));
+					}
+					nodes[bx + by * levelWidth] = value;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @return the color of a sample if it isn't covered, MIXED if it is, or OUTSIDE
+	 */
+	private static int sampleValue(SampleGrid grid, int x, int y) {
+		if (x >= grid.width || y >= grid.height) {
+			return OUTSIDE;
+		}
+		return grid.isCovered(x, y) ? MIXED : grid.colors[x + y * grid.width];
+	}
+	
+	private int nodeValue(int level, int bx, int by) {
+		if (bx >= levelWidths[level] || by >= levelHeights[level]) {
+			return OUTSIDE;
+		}
+		return levels[level][bx + by * levelWidths[level]];
+	}
+	
+	/**
+	 * @return the value of a node holding two parts
+	 */
+	private static int merge(int a, int b) {
+		if (b == OUTSIDE) {
+			return a;
+		}
+		if (a == OUTSIDE) {
+			return b;
+		}
+		return a == b ? a : MIXED;
+	}
+	
+	/**
+	 * @return the level of the blocks that bubbles of the given mask can be skipped by: the largest one of which some block
+	 *   lies within the middle square of the bubble wherever the bubble is. 0 if bubbles of this size are too small to skip any.
+	 */
+	int skipLevel(DiskMask mask) {
+		int level = 0;
+		while (level < levelCount && (4 << level) - 1 <= mask.innerSize) {
+			level ++;
+		}
+		return level;
+	}
+	
+	/**
+	 * @return how many places from x, y along the row bubbles of the given mask are sure not to fit at, counting x, y itself;
+	 *   0 if one might fit at x, y
+	 */
+	int skipRight(int x, int y, DiskMask mask, int level) {
+		if (level == 0) {
+			return 0;
+		}
+		int side = 1 << level;
+		int bx = (x + mask.innerStart + side - 1) >> level;
+		int by = (y + mask.innerStart + side - 1) >> level;
+		if (bx >= levelWidths[level] || by >= levelHeights[level] || levels[level][bx + by * levelWidths[level]] != MIXED) {
+			return 0;
+		}
+		// every place up to the last one whose middle square still starts left of the block holds the block
+		return (bx << level) - mask.innerStart - x + 1;
+	}
+	
+	/**
+	 * Marks the blocks holding the samples of a bubble with its bounding square at x, y as not clean, after the bubble was covered.
+	 * Rows of the bubble that fall into the same row of blocks are taken together; the spans of a disk are nested, so the widest one holds the others.
+	 * Stops going up once none of the blocks of a level were clean, since the blocks above them can't be clean either.
+	 */
+	void cover(int x, int y, DiskMask mask) {
+		for (int level = 1; level <= levelCount; level ++) {
+			int[] nodes = levels[level];
+			int levelWidth = levelWidths[level];
+			boolean changed = false;
+			int yy = 0;
+			while (yy < mask.size) {
+				int by = (y + yy) >> level;
+				int rowEnd = Math.min(mask.size, ((by + 1) << level) - y);
+				int start = Integer.MAX_VALUE;
+				int end = 0;
+				for (; yy < rowEnd; yy ++) {
+					if (mask.spanStart[yy] != mask.spanEnd[yy]) {
+						start = Math.min(start, mask.spanStart[yy]);
+						end = Math.max(end, mask.spanEnd[yy]);
+					}
+				}
+				if (start >= end) {
+					continue;
+				}
+				for (int bx = (x + start) >> level, last = (x + end - 1) >> level; bx <= last; bx ++) {
+					int i = bx + by * levelWidth;
+					if (nodes[i] != MIXED) {
+						nodes[i] = MIXED;
+						changed = true;
+					}
+				}
+			}
+			if (!changed) {
+				return;
+			}
+		}
+	}
+	
+}
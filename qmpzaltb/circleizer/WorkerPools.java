@@ -0,0 +1,38 @@
+package qmpzaltb.circleizer;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The thread pools shared by everything that circleizes, finds colors or draws in parallel, one for every amount of threads asked for.
+ * Pools are created the first time they are needed and kept; their threads are daemon threads and go idle when there's no work.
+ * 
+ * @author qmpzaltb
+ *
+ */
+final class WorkerPools {
+	
+	private static ForkJoinPool[] pools = new ForkJoinPool[0];
+	
+	private WorkerPools() {
+	}
+	
+	/**
+	 * @param parallelism the amount of threads, a positive non-zero value
+	 * @return the shared pool with that many threads
+	 */
+	static synchronized ForkJoinPool get(int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+		}
+		if (parallelism >= pools.length) {
+			ForkJoinPool[] grown = new ForkJoinPool[parallelism + 1];
+			System.arraycopy(pools, 0, grown, 0, pools.length);
+			pools = grown;
+		}
+		if (pools[parallelism] == null) {
+			pools[parallelism] = new ForkJoinPool(parallelism);
+		}
+		return pools[parallelism];
+	}
+	
+}
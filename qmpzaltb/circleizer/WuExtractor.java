@@ -0,0 +1,272 @@
+package qmpzaltb.circleizer;
+
+import java.util.Arrays;
+
+/**
+ * Finds distinct colors with Xiaolin Wu's variance-minimizing method.
+ * Summed tables of the population, the color sums and the squared color sums of the color cube let the variance of any box be found in constant time.
+ * The box with the largest variance is repeatedly cut by the plane that leaves the least variance on both sides.
+ * Every final box then gives the average color of the pixels within it.
+ * <p>
+ * Uses the resolution, color amount and counting settings of ColorFinder. The moment tables take about 36 bytes per cell of the cube,
+ * so resolutions of 32 or 64 work best.
+ * 
+ * @author qmpzaltb
+ *
+ */
+public class WuExtractor extends ColorFinder {
+	
+	private static final int R = 0;
+	private static final int G = 1;
+	private static final int B = 2;
+	
+	/**
+	 * Finds up to the color amount of colors; fewer if the counted pixels can't be cut into that many boxes.
+	 */
+	@Override
+	int[] findColors(ColorHistogram histogram, int colorAmount) {
+		
+		Moments m = new Moments(histogram);
+		
+		int[][] boxes = new int[colorAmount][];
+		double[] variances = new double[colorAmount];
+		boxes[0] = new int[] {0, histogram.resolutionR, 0, histogram.resolutionG, 0, histogram.resolutionB};
+		int boxCount = 1;
+		int next = 0;
+		
+		while (boxCount < colorAmount) {
+			int[] second = new int[6];
+			if (cut(m, boxes[next], second)) {
+				boxes[boxCount] = second;
+				variances[next] = cellsOf(boxes[next]) > 1 ? m.variance(boxes[next]) : 0;
+				variances[boxCount] = cellsOf(second) > 1 ? m.variance(second) : 0;
+				boxCount ++;
+			} else {
+				variances[next] = 0;
+			}
+			
+			next = 0;
+			for (int i = 1; i < boxCount; i ++) {
+				if (variances[i] > variances[next]) {
+					next = i;
+				}
+			}
+			if (variances[next] <= 0) {
+				break;
+			}
+		}
+		
+		int colorCount = 0;
+		int[] colors = new int[boxCount];
+		for (int i = 0; i < boxCount; i ++) {
+			long weight = m.volume(boxes[i], m.weights);
+			if (weight > 0) {
+				int r = (int) (m.volume(boxes[i], m.reds) / weight);
+				int g = (int) (m.volume(boxes[i], m.greens) / weight);
+				int b = (int) (m.volume(boxes[i], m.blues) / weight);
+				colors[colorCount ++] = (r << 16) | (g << 8) | b;
+			}
+		}
+		return Arrays.copyOf(colors, colorCount);
+	}
+	
+	private static int cellsOf(int[] box) {
+		return (box[1] - box[0]) * (box[3] - box[2]) * (box[5] - box[4]);
+	}
+	
+	/**
+	 * Cuts the first box in two along the best plane of the best direction, leaving the far part in the second box.
+	 * @return false if the box can't be cut
+	 */
+	private static boolean cut(Moments m, int[] first, int[] second) {
+		long wholeR = m.volume(first, m.reds);
+		long wholeG = m.volume(first, m.greens);
+		long wholeB = m.volume(first, m.blues);
+		long wholeW = m.volume(first, m.weights);
+		
+		int[] cuts = new int[3];
+		double maxR = maximize(m, first, R, wholeR, wholeG, wholeB, wholeW, cuts);
+		double maxG = maximize(m, first, G, wholeR, wholeG, wholeB, wholeW, cuts);
+		double maxB = maximize(m, first, B, wholeR, wholeG, wholeB, wholeW, cuts);
+		
+		int direction;
+		if (maxR >= maxG && maxR >= maxB) {
+			direction = R;
+		} else if (maxG >= maxR && maxG >= maxB) {
+			direction = G;
+		} else {
+			direction = B;
+		}
+		if (cuts[direction] < 0) {
+			return false;
+		}
+		
+		System.arraycopy(first, 0, second, 0, 6);
+		first[direction * 2 + 1] = cuts[direction];
+		second[direction * 2] = cuts[direction];
+		return true;
+	}
+	
+	/**
+	 * Finds the plane along one direction that leaves the least variance on both of its sides, storing its position in cuts.
+	 * The variance that is left is the box's squared-sum moment minus this function's return value, so larger is better.
+	 */
+	private static double maximize(Moments m, int[] box, int direction, long wholeR, long wholeG, long wholeB, long wholeW, int[] cuts) {
+		long baseR = m.bottom(box, direction, m.reds);
+		long baseG = m.bottom(box, direction, m.greens);
+		long baseB = m.bottom(box, direction, m.blues);
+		long baseW = m.bottom(box, direction, m.weights);
+		
+		double max = 0;
+		cuts[direction] = -1;
+		for (int position = box[direction * 2] + 1; position < box[direction * 2 + 1]; position ++) {
+			long halfR = baseR + m.top(box, direction, position, m.reds);
+			long halfG = baseG + m.top(box, direction, position, m.greens);
+			long halfB = baseB + m.top(box, direction, position, m.blues);
+			long halfW = baseW + m.top(box, direction, position, m.weights);
+			if (halfW == 0 || halfW == wholeW) {
+				continue;
+			}
+			double temp = ((double) halfR * halfR + (double) halfG * halfG + (double) halfB * halfB) / halfW;
+			halfR = wholeR - halfR;
+			halfG = wholeG - halfG;
+			halfB = wholeB - halfB;
+			halfW = wholeW - halfW;
+			temp += ((double) halfR * halfR + (double) halfG * halfG + (double) halfB * halfB) / halfW;
+			if (temp > max) {
+				max = temp;
+				cuts[direction] = position;
+			}
+		}
+		return max;
+	}
+	
+	/**
+	 * The summed moment tables of a counted color cube, laid out like the summed-volume table of the ColorHistogram.
+	 * Cells take the color at their center.
+	 */
+	private static final class Moments {
+		
+		final ColorHistogram histogram;
+		final long[] weights;
+		final long[] reds;
+		final long[] greens;
+		final long[] blues;
+		final double[] squares;
+		
+		Moments(ColorHistogram histogram) {
+			this.histogram = histogram;
+			int size = histogram.volume.length;
+			weights = new long[size];
+			reds = new long[size];
+			greens = new long[size];
+			blues = new long[size];
+			squares = new double[size];
+			
+			for (int b = 0; b < histogram.resolutionB; b ++) {
+				for (int g = 0; g < histogram.resolutionG; g ++) {
+					for (int r = 0; r < histogram.resolutionR; r ++) {
+						long population = histogram.cellCount(r, g, b);
+						int cr = histogram.centerR(r);
+						int cg = histogram.centerG(g);
+						int cb = histogram.centerB(b);
+						int index = histogram.indexOf(r + 1, g + 1, b + 1);
+						weights[index] = population;
+						reds[index] = population * cr;
+						greens[index] = population * cg;
+						blues[index] = population * cb;
+						squares[index] = (double) population * (cr * cr + cg * cg + cb * cb);
+					}
+				}
+			}
+			
+			int[] strides = {1, histogram.resolutionR + 1, (histogram.resolutionR + 1) * (histogram.resolutionG + 1)};
+			int[] resolutions = {histogram.resolutionR, histogram.resolutionG, histogram.resolutionB};
+			for (int axis = 0; axis < 3; axis ++) {
+				for (int b = 0; b <= histogram.resolutionB; b ++) {
+					for (int g = 0; g <= histogram.resolutionG; g ++) {
+						for (int r = 0; r <= histogram.resolutionR; r ++) {
+							int position = axis == R ? r : axis == G ? g : b;
+							if (position == 0 || position > resolutions[axis]) {
+								continue;
+							}
+							int index = histogram.indexOf(r, g, b);
+							int previous = index - strides[axis];
+							weights[index] += weights[previous];
+							reds[index] += reds[previous];
+							greens[index] += greens[previous];
+							blues[index] += blues[previous];
+							squares[index] += squares[previous];
+						}
+					}
+				}
+			}
+		}
+		
+		long at(long[] moment, int r, int g, int b) {
+			return moment[histogram.indexOf(r, g, b)];
+		}
+		
+		/**
+		 * @return the sum of a moment over a box
+		 */
+		long volume(int[] box, long[] moment) {
+			return at(moment, box[1], box[3], box[5])
+					- at(moment, box[1], box[3], box[4])
+					- at(moment, box[1], box[2], box[5])
+					+ at(moment, box[1], box[2], box[4])
+					- at(moment, box[0], box[3], box[5])
+					+ at(moment, box[0], box[3], box[4])
+					+ at(moment, box[0], box[2], box[5])
+					- at(moment, box[0], box[2], box[4]);
+		}
+		
+		/**
+		 * @return the part of the volume of a box that doesn't depend on where the box ends along the given direction
+		 */
+		long bottom(int[] box, int direction, long[] moment) {
+			switch (direction) {
+			case R:
+				return - at(moment, box[0], box[3], box[5]) + at(moment, box[0], box[3], box[4]) + at(moment, box[0], box[2], box[5]) - at(moment, box[0], box[2], box[4]);
+			case G:
+				return - at(moment, box[1], box[2], box[5]) + at(moment, box[1], box[2], box[4]) + at(moment, box[0], box[2], box[5]) - at(moment, box[0], box[2], box[4]);
+			default:
+				return - at(moment, box[1], box[3], box[4]) + at(moment, box[1], box[2], box[4]) + at(moment, box[0], box[3], box[4]) - at(moment, box[0], box[2], box[4]);
+			}
+		}
+		
+		/**
+		 * @return the rest of the volume of a box that ends at the given position along the given direction
+		 */
+		long top(int[] box, int direction, int position, long[] moment) {
+			switch (direction) {
+			case R:
+				return at(moment, position, box[3], box[5]) - at(moment, position, box[3], box[4]) - at(moment, position, box[2], box[5]) + at(moment, position, box[2], box[4]);
+			case G:
+				return at(moment, box[1], position, box[5]) - at(moment, box[1], position, box[4]) - at(moment, box[0], position, box[5]) + at(moment, box[0], position, box[4]);
+			default:
+				return at(moment, box[1], box[3], position) - at(moment, box[1], box[2], position) - at(moment, box[0], box[3], position) + at(moment, box[0], box[2], position);
+			}
+		}
+		
+		/**
+		 * @return the weighted variance of the colors within a box
+		 */
+		double variance(int[] box) {
+			double dr = volume(box, reds);
+			double dg = volume(box, greens);
+			double db = volume(box, blues);
+			double squareSum = squares[histogram.indexOf(box[1], box[3], box[5])]
+					- squares[histogram.indexOf(box[1], box[3], box[4])]
+					- squares[histogram.indexOf(box[1], box[2], box[5])]
+					+ squares[histogram.indexOf(box[1], box[2], box[4])]
+					- squares[histogram.indexOf(box[0], box[3], box[5])]
+					+ squares[histogram.indexOf(box[0], box[3], box[4])]
+					+ squares[histogram.indexOf(box[0], box[2], box[5])]
+					- squares[histogram.indexOf(box[0], box[2], box[4])];
+			long weight = volume(box, weights);
+			return weight == 0 ? 0 : squareSum - (dr * dr + dg * dg + db * db) / weight;
+		}
+	}
+	
+}